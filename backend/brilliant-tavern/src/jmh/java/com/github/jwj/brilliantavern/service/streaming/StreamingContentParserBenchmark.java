@@ -0,0 +1,118 @@
+package com.github.jwj.brilliantavern.service.streaming;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比正则解析器与单遍分词解析器处理完整模型回复的耗时
+ * 回复按固定字符数切片后逐片输入，模拟Gemini流式返回的分片
+ *
+ * 运行方式：mvn -Pjmh -DskipTests test-compile exec:exec
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class StreamingContentParserBenchmark {
+
+    @Param({"long_story_zh", "bilingual_ja_zh", "bracket_heavy_zh"})
+    private String reply;
+
+    /**
+     * 每个分片的字符数，Gemini流式分片通常在几个到几十个字符之间
+     */
+    @Param({"4", "16", "64"})
+    private int chunkSize;
+
+    private List<String> chunks;
+    private LegacyRegexContentParser regexParser;
+    private StreamingContentParser tokenizerParser;
+
+    @Setup
+    public void setUp() throws IOException {
+        chunks = split(load(reply), chunkSize);
+        regexParser = new LegacyRegexContentParser();
+        tokenizerParser = new StreamingContentParser();
+        ReflectionTestUtils.setField(tokenizerParser, "diagnosticsEnabled", true);
+        ReflectionTestUtils.setField(tokenizerParser, "diagnosticsCaptureKb", 4);
+
+        // 两个解析器的标签事件和各标签内容必须一致，否则对比没有意义
+        String expected = normalize(regexParser.parseStream(Flux.fromIterable(chunks), "s", "m"));
+        String actual = normalize(tokenizerParser.parseStream(Flux.fromIterable(chunks), "s", "m"));
+        if (!expected.equals(actual)) {
+            throw new IllegalStateException("解析结果不一致: reply=" + reply + ", chunkSize=" + chunkSize
+                    + "\nregex: " + expected + "\ntokenizer: " + actual);
+        }
+    }
+
+    @Benchmark
+    public void regexParser(Blackhole blackhole) {
+        regexParser.parseStream(Flux.fromIterable(chunks), "s", "m").subscribe(blackhole::consume);
+    }
+
+    @Benchmark
+    public void tokenizerParser(Blackhole blackhole) {
+        tokenizerParser.parseStream(Flux.fromIterable(chunks), "s", "m").subscribe(blackhole::consume);
+    }
+
+    /**
+     * 开闭事件按顺序保留，相邻的内容事件合并
+     * 分词解析器会更早输出标签内的文本，内容事件的切分方式与正则解析器不同
+     */
+    private static String normalize(Flux<TagEvent> events) {
+        StringBuilder result = new StringBuilder();
+        boolean inContent = false;
+        for (TagEvent event : events.toIterable()) {
+            if (event.getEventType() == TagEvent.EventType.CONTENT_CHUNK) {
+                if (!inContent) {
+                    result.append('|').append(event.getTagType()).append(':');
+                    inContent = true;
+                }
+                result.append(event.getContent());
+            } else {
+                result.append('|').append(event.getTagType()).append(':').append(event.getEventType())
+                        .append(':').append(event.getLanguage());
+                inContent = false;
+            }
+        }
+        return result.toString();
+    }
+
+    private static String load(String name) throws IOException {
+        try (InputStream in = StreamingContentParserBenchmark.class.getResourceAsStream("/replies/" + name + ".txt")) {
+            if (in == null) {
+                throw new IOException("找不到回复样本: " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static List<String> split(String content, int size) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < content.length(); i += size) {
+            result.add(content.substring(i, Math.min(content.length(), i + size)));
+        }
+        return result;
+    }
+}
@@ -43,13 +43,8 @@ public class CacheConfig {
                 .serializeValuesWith(RedisSerializationContext.SerializationPair.fromSerializer(valueSerializer))
                 .disableCachingNullValues(); // 不缓存null值
 
-        // 特定缓存配置
+        // 特定缓存配置（TTS音频缓存由TTSCacheService直接管理，不经过Spring Cache）
         Map<String, RedisCacheConfiguration> cacheConfigurations = new HashMap<>();
-        
-        // TTS测试音频缓存配置 - 缓存1小时
-        cacheConfigurations.put("tts-test-audio", defaultConfig
-                .entryTtl(Duration.ofHours(1))
-                .prefixCacheNameWith("tts:test:"));
 
         return RedisCacheManager.builder(connectionFactory)
                 .cacheDefaults(defaultConfig)
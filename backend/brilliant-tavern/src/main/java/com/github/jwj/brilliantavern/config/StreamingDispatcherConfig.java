@@ -0,0 +1,46 @@
+package com.github.jwj.brilliantavern.config;
+
+import com.github.jwj.brilliantavern.service.streaming.TagEvent;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * 流式事件分发配置
+ * 每种标签类型使用独立的有界调度器，线程数和排队上限可分别配置
+ */
+@Data
+@Configuration
+@ConfigurationProperties(prefix = "app.streaming.dispatcher")
+public class StreamingDispatcherConfig {
+
+    /**
+     * 各标签类型的调度器配置，未配置的类型使用默认值
+     */
+    private Map<TagEvent.TagType, LaneProperties> lanes = new EnumMap<>(TagEvent.TagType.class);
+
+    /**
+     * 任务排队超过该时间时输出告警
+     */
+    private Duration slowWaitThreshold = Duration.ofSeconds(1);
+
+    /**
+     * 应用关闭时等待调度器任务结束的最长时间
+     */
+    private Duration shutdownTimeout = Duration.ofSeconds(10);
+
+    @Data
+    public static class LaneProperties {
+        private int threads = 4;
+        private int queueCapacity = 1000;
+    }
+
+    public LaneProperties laneFor(TagEvent.TagType tagType) {
+        LaneProperties properties = lanes.get(tagType);
+        return properties != null ? properties : new LaneProperties();
+    }
+}
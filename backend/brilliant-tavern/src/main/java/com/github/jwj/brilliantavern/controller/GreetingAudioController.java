@@ -0,0 +1,63 @@
+package com.github.jwj.brilliantavern.controller;
+
+import com.github.jwj.brilliantavern.config.TTSConfig;
+import com.github.jwj.brilliantavern.service.GreetingAudioService;
+import com.github.jwj.brilliantavern.service.tts.CachedTTSAudio;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.CacheControl;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 预生成开场白语音访问控制器
+ * 地址包含开场白和音色的内容指纹，内容变化后地址随之变化，可以长期缓存
+ */
+@Slf4j
+@RestController
+@RequestMapping("/public/greeting-audio")
+@RequiredArgsConstructor
+@CrossOrigin(origins = "*")
+public class GreetingAudioController {
+
+    private final GreetingAudioService greetingAudioService;
+
+    /**
+     * 获取开场白语音
+     */
+    @GetMapping("/{cardId}/{fingerprint}")
+    public ResponseEntity<byte[]> getGreetingAudio(@PathVariable UUID cardId, @PathVariable String fingerprint) {
+        if (!fingerprint.matches("[0-9a-f]{32}")) {
+            return ResponseEntity.badRequest().build();
+        }
+        try {
+            CachedTTSAudio audio = greetingAudioService.load(cardId, fingerprint);
+            if (audio == null || audio.chunks().isEmpty()) {
+                return ResponseEntity.notFound().build();
+            }
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType(getContentType(audio.audioFormat())))
+                    .cacheControl(CacheControl.maxAge(7, TimeUnit.DAYS).cachePublic().immutable())
+                    .body(audio.chunks().get(0));
+        } catch (Exception e) {
+            log.error("获取开场白语音失败: cardId={}", cardId, e);
+            return ResponseEntity.internalServerError().build();
+        }
+    }
+
+    private String getContentType(TTSConfig.AudioFormat format) {
+        if (format == null) {
+            return "audio/mpeg";
+        }
+        return switch (format) {
+            case WAV -> "audio/wav";
+            case OGG -> "audio/ogg";
+            case WEBM -> "audio/webm";
+            default -> "audio/mpeg";
+        };
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.jwj.brilliantavern.controller;
+
+import com.github.jwj.brilliantavern.service.genai.EmbeddingService;
+import com.github.jwj.brilliantavern.service.memory.MemoryConsolidationService;
+import com.github.jwj.brilliantavern.service.memory.MemoryVectorIndex;
+import com.github.jwj.brilliantavern.service.memory.MemoryWriteBehindService;
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.tags.Tag;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+/**
+ * 角色记忆监控控制器
+ * 提供记忆写入队列、进程内向量索引、嵌入服务和记忆整理的运行状态
+ */
+@Slf4j
+@RestController
+@RequestMapping("/memory")
+@RequiredArgsConstructor
+@Tag(name = "角色记忆监控", description = "记忆写入队列和检索状态")
+public class MemoryHealthController {
+
+    private final MemoryWriteBehindService memoryWriteBehindService;
+    private final MemoryVectorIndex memoryVectorIndex;
+    private final EmbeddingService embeddingService;
+    private final MemoryConsolidationService memoryConsolidationService;
+
+    /**
+     * 获取角色记忆相关组件的运行状态
+     */
+    @GetMapping("/status")
+    @Operation(summary = "查看角色记忆状态", description = "返回写入队列深度、处理中批次、死信数量以及索引、嵌入和整理统计")
+    public ResponseEntity<Map<String, Object>> getStatus() {
+        try {
+            Map<String, Object> status = Map.of(
+                "writeBehind", memoryWriteBehindService.getStats(),
+                "vectorIndex", memoryVectorIndex.getStats(),
+                "embedding", embeddingService.getStats(),
+                "consolidation", memoryConsolidationService.getStats(),
+                "timestamp", LocalDateTime.now()
+            );
+            return ResponseEntity.ok(status);
+
+        } catch (Exception e) {
+            log.error("获取角色记忆状态失败", e);
+
+            Map<String, Object> errorInfo = Map.of(
+                "status", "error",
+                "error", e.getMessage() != null ? e.getMessage() : "未知错误",
+                "timestamp", LocalDateTime.now()
+            );
+            return ResponseEntity.status(500).body(errorInfo);
+        }
+    }
+}
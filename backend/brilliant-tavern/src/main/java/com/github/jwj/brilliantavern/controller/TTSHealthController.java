@@ -170,7 +170,8 @@ public class TTSHealthController {
         String healthText = "健康检查";
         String defaultVoiceId = defaultVoiceIds.isEmpty() ? "1" : defaultVoiceIds.get(0);
         
-        return ttsManagerService.generateSpeechWithVoice(healthText, defaultVoiceId)
+        // 绕过音频缓存，否则缓存命中时TTS服务不可用也会报告健康
+        return ttsManagerService.generateSpeechWithVoice(healthText, defaultVoiceId, false)
             .timeout(Duration.ofSeconds(10))
             .map(response -> Boolean.TRUE.equals(response.getSuccess()))
             .onErrorReturn(false);
@@ -5,15 +5,22 @@ import com.github.jwj.brilliantavern.dto.voice.VoiceStreamEvent;
 import com.github.jwj.brilliantavern.service.streaming.StreamingVoiceOrchestrator;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
 import org.springframework.messaging.handler.annotation.DestinationVariable;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
 import org.springframework.messaging.simp.SimpMessagingTemplate;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import reactor.core.Disposable;
+import reactor.core.Disposables;
+
 import java.io.ByteArrayOutputStream;
 import java.util.Base64;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 语音WebSocket控制器
@@ -27,11 +34,15 @@ public class VoiceWebSocketController {
     private final SimpMessagingTemplate messagingTemplate;
     private final StreamingVoiceOrchestrator streamingVoiceOrchestrator;
 
+    // STOMP会话ID -> (对话会话ID -> 进行中轮次的订阅)，连接断开时取消并退订
+    private final Map<String, Map<UUID, Disposable.Swap>> activeTurns = new ConcurrentHashMap<>();
+
     /**
      * 处理语音消息 - 完整的语音对话流程
      */
     @MessageMapping("/voice/{sessionId}")
-    public void handleVoiceMessage(@DestinationVariable String sessionId, @Payload Map<String, Object> voiceData) {
+    public void handleVoiceMessage(@DestinationVariable String sessionId, @Payload Map<String, Object> voiceData,
+                                   SimpMessageHeaderAccessor headerAccessor) {
         if (log.isDebugEnabled()) {
             log.debug("收到语音消息，会话ID: {}，payload键: {}", sessionId, voiceData != null ? voiceData.keySet() : null);
         }
@@ -65,14 +76,20 @@ public class VoiceWebSocketController {
             StreamingVoiceOrchestrator.VoiceMessageWithMetadata payload =
                     new StreamingVoiceOrchestrator.VoiceMessageWithMetadata(voiceMessage, voiceMessage.getMessageId());
 
-        streamingVoiceOrchestrator.processVoiceInput(sessionUuid, payload)
+        String stompSessionId = headerAccessor != null ? headerAccessor.getSessionId() : null;
+        Disposable.Swap turn = Disposables.swap();
+        if (stompSessionId != null) {
+            activeTurns.computeIfAbsent(stompSessionId, key -> new ConcurrentHashMap<>()).put(sessionUuid, turn);
+        }
+        turn.update(streamingVoiceOrchestrator.processVoiceInput(sessionUuid, payload)
+            .doFinally(signal -> removeTurn(stompSessionId, sessionUuid, turn))
             .subscribe(
                 event -> sendEvent(sessionId, event),
                 error -> {
                 log.error("语音对话流程异常，会话ID: {}", sessionId, error);
                 sendErrorMessage(sessionId, voiceMessage.getMessageId(), "语音处理失败: " + (error.getMessage() != null ? error.getMessage() : "未知错误"));
                 }
-            );
+            ));
 
         } catch (Exception e) {
             log.error("处理语音消息异常，会话ID: {}", sessionId, e);
@@ -80,6 +97,51 @@ public class VoiceWebSocketController {
         }
     }
 
+    /**
+     * 取消进行中的对话轮次（用户打断），payload中的messageId可选，指定时只取消对应的消息
+     */
+    @MessageMapping("/voice/{sessionId}/cancel")
+    public void handleCancel(@DestinationVariable String sessionId, @Payload(required = false) Map<String, Object> cancelData) {
+        UUID sessionUuid;
+        try {
+            sessionUuid = UUID.fromString(sessionId);
+        } catch (IllegalArgumentException ex) {
+            sendErrorMessage(sessionId, null, "非法的sessionId: " + sessionId);
+            return;
+        }
+
+        String messageId = cancelData != null ? (String) cancelData.get("messageId") : null;
+        boolean cancelled = streamingVoiceOrchestrator.cancelTurn(sessionUuid, messageId);
+        log.info("收到取消请求，会话: {}，消息: {}，已取消: {}", sessionId, messageId, cancelled);
+    }
+
+    /**
+     * WebSocket连接断开：取消该连接上进行中的对话轮次并退订，关闭模型响应流和进行中的TTS请求
+     */
+    @EventListener
+    public void handleSessionDisconnect(SessionDisconnectEvent event) {
+        Map<UUID, Disposable.Swap> turns = activeTurns.remove(event.getSessionId());
+        if (turns == null) {
+            return;
+        }
+        turns.forEach((sessionUuid, turn) -> {
+            boolean cancelled = streamingVoiceOrchestrator.cancelTurn(sessionUuid, null);
+            turn.dispose();
+            log.info("WebSocket连接断开，取消进行中的对话，STOMP会话: {}，会话: {}，已取消: {}",
+                    event.getSessionId(), sessionUuid, cancelled);
+        });
+    }
+
+    private void removeTurn(String stompSessionId, UUID sessionUuid, Disposable.Swap turn) {
+        if (stompSessionId == null) {
+            return;
+        }
+        activeTurns.computeIfPresent(stompSessionId, (key, turns) -> {
+            turns.remove(sessionUuid, turn);
+            return turns.isEmpty() ? null : turns;
+        });
+    }
+
     /**
      * 解析语音消息数据 - 直接处理原始音频字节流
      */
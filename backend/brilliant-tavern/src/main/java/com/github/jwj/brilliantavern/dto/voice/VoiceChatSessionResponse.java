@@ -37,6 +37,11 @@ public class VoiceChatSessionResponse {
      */
     private String greetingMessage;
     
+    /**
+     * 预生成的问候语音频地址，尚未生成时为空
+     */
+    private String greetingAudioUrl;
+    
     /**
      * TTS语音ID
      */
@@ -9,6 +9,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 
@@ -23,6 +24,11 @@ public interface CharacterCardRepository extends JpaRepository<CharacterCard, UU
      */
     Page<CharacterCard> findByCreatorIdOrderByCreatedAtDesc(UUID creatorId, Pageable pageable);
 
+    /**
+     * 查找使用指定音色的角色卡
+     */
+    List<CharacterCard> findByTtsVoiceId(String ttsVoiceId);
+
     /**
      * 查找公开的角色卡
      */
@@ -7,6 +7,7 @@ import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
 import java.util.List;
 import java.util.UUID;
 
@@ -34,7 +35,9 @@ public interface CharacterMemoryRepository extends JpaRepository<CharacterMemory
 
     /**
      * 向量相似度搜索 - 查找与给定向量最相似的记忆
-     * 使用余弦相似度进行搜索
+     * 使用余弦距离，查询向量以real[]绑定一次，距离在投影中只计算一次。
+     * 候选集通过(user_id, character_card_id)索引取出并物化后再精确排序：
+     * 单个组合只占全表很小一部分，若由全局HNSW索引排序再过滤，ef_search范围内几乎取不到该组合的记录
      * 
      * @param userId 用户ID
      * @param characterCardId 角色卡ID
@@ -44,23 +47,33 @@ public interface CharacterMemoryRepository extends JpaRepository<CharacterMemory
      * @return 相似记忆列表，按相似度降序排列
      */
     @Query(value = """
-        SELECT m.*, 
-               (1 - (m.embedding <=> CAST(:queryEmbedding AS vector))) AS similarity_score
-        FROM character_memories m 
-        WHERE m.user_id = :userId 
-          AND m.character_card_id = :characterCardId
-          AND (1 - (m.embedding <=> CAST(:queryEmbedding AS vector))) >= :similarityThreshold
-        ORDER BY m.embedding <=> CAST(:queryEmbedding AS vector) ASC
+        WITH candidates AS MATERIALIZED (
+            SELECT m.id AS "id",
+                   m.user_id AS "userId",
+                   m.character_card_id AS "characterCardId",
+                   m.memory_content AS "memoryContent",
+                   m.created_at AS "createdAt",
+                   m.updated_at AS "updatedAt",
+                   m.embedding <=> CAST(:queryEmbedding AS vector) AS "distance"
+            FROM character_memories m
+            WHERE m.user_id = :userId
+              AND m.character_card_id = :characterCardId
+        )
+        SELECT c.*, 1 - c."distance" AS "similarity"
+        FROM candidates c
+        WHERE c."distance" <= 1 - :similarityThreshold
+        ORDER BY c."distance"
         LIMIT :limit
         """, nativeQuery = true)
-    List<Object[]> findSimilarMemories(@Param("userId") UUID userId,
-                                     @Param("characterCardId") UUID characterCardId,
-                                     @Param("queryEmbedding") String queryEmbedding,
-                                     @Param("similarityThreshold") double similarityThreshold,
-                                     @Param("limit") int limit);
+    List<SimilarMemory> findSimilarMemories(@Param("userId") UUID userId,
+                                            @Param("characterCardId") UUID characterCardId,
+                                            @Param("queryEmbedding") float[] queryEmbedding,
+                                            @Param("similarityThreshold") double similarityThreshold,
+                                            @Param("limit") int limit);
 
     /**
      * 向量相似度搜索（仅用户范围）
+     * 与{@link #findSimilarMemories}相同，候选集取自该用户的全部记忆
      * 
      * @param userId 用户ID
      * @param queryEmbedding 查询向量
@@ -69,18 +82,89 @@ public interface CharacterMemoryRepository extends JpaRepository<CharacterMemory
      * @return 相似记忆列表
      */
     @Query(value = """
-        SELECT m.*, 
-               (1 - (m.embedding <=> CAST(:queryEmbedding AS vector))) AS similarity_score
-        FROM character_memories m 
-        WHERE m.user_id = :userId 
-          AND (1 - (m.embedding <=> CAST(:queryEmbedding AS vector))) >= :similarityThreshold
-        ORDER BY m.embedding <=> CAST(:queryEmbedding AS vector) ASC
+        WITH candidates AS MATERIALIZED (
+            SELECT m.id AS "id",
+                   m.user_id AS "userId",
+                   m.character_card_id AS "characterCardId",
+                   m.memory_content AS "memoryContent",
+                   m.created_at AS "createdAt",
+                   m.updated_at AS "updatedAt",
+                   m.embedding <=> CAST(:queryEmbedding AS vector) AS "distance"
+            FROM character_memories m
+            WHERE m.user_id = :userId
+        )
+        SELECT c.*, 1 - c."distance" AS "similarity"
+        FROM candidates c
+        WHERE c."distance" <= 1 - :similarityThreshold
+        ORDER BY c."distance"
+        LIMIT :limit
+        """, nativeQuery = true)
+    List<SimilarMemory> findSimilarMemoriesByUser(@Param("userId") UUID userId,
+                                                  @Param("queryEmbedding") float[] queryEmbedding,
+                                                  @Param("similarityThreshold") double similarityThreshold,
+                                                  @Param("limit") int limit);
+
+    /**
+     * 读取用户和角色卡的全部记忆向量（文本格式），用于载入进程内向量索引
+     */
+    @Query(value = """
+        SELECT m.id AS "id",
+               m.user_id AS "userId",
+               m.character_card_id AS "characterCardId",
+               m.memory_content AS "memoryContent",
+               m.created_at AS "createdAt",
+               m.updated_at AS "updatedAt",
+               CAST(m.embedding AS text) AS "embedding"
+        FROM character_memories m
+        WHERE m.user_id = :userId
+          AND m.character_card_id = :characterCardId
+        ORDER BY m.id
+        LIMIT :limit
+        """, nativeQuery = true)
+    List<MemoryVector> findMemoryVectors(@Param("userId") UUID userId,
+                                         @Param("characterCardId") UUID characterCardId,
+                                         @Param("limit") int limit);
+
+    /**
+     * 读取用户和角色卡最近更新的记忆向量（文本格式），用于记忆整理
+     */
+    @Query(value = """
+        SELECT m.id AS "id",
+               m.user_id AS "userId",
+               m.character_card_id AS "characterCardId",
+               m.memory_content AS "memoryContent",
+               m.created_at AS "createdAt",
+               m.updated_at AS "updatedAt",
+               CAST(m.embedding AS text) AS "embedding"
+        FROM character_memories m
+        WHERE m.user_id = :userId
+          AND m.character_card_id = :characterCardId
+        ORDER BY m.updated_at DESC, m.id DESC
         LIMIT :limit
         """, nativeQuery = true)
-    List<Object[]> findSimilarMemoriesByUser(@Param("userId") UUID userId,
-                                           @Param("queryEmbedding") String queryEmbedding,
-                                           @Param("similarityThreshold") double similarityThreshold,
-                                           @Param("limit") int limit);
+    List<MemoryVector> findRecentMemoryVectors(@Param("userId") UUID userId,
+                                               @Param("characterCardId") UUID characterCardId,
+                                               @Param("limit") int limit);
+
+    /**
+     * 按(用户ID, 角色卡ID)顺序分页查找在(since, until]内有记忆新增或更新的组合，
+     * 从游标(afterUserId, afterCardId)之后开始
+     */
+    @Query(value = """
+        SELECT DISTINCT m.user_id AS "userId",
+               m.character_card_id AS "characterCardId"
+        FROM character_memories m
+        WHERE m.updated_at > :since
+          AND m.updated_at <= :until
+          AND (m.user_id, m.character_card_id) > (:afterUserId, :afterCardId)
+        ORDER BY "userId", "characterCardId"
+        LIMIT :limit
+        """, nativeQuery = true)
+    List<MemoryPair> findChangedPairs(@Param("since") Instant since,
+                                      @Param("until") Instant until,
+                                      @Param("afterUserId") UUID afterUserId,
+                                      @Param("afterCardId") UUID afterCardId,
+                                      @Param("limit") int limit);
 
     /**
      * 删除用户和角色卡的所有记忆
@@ -101,4 +185,59 @@ public interface CharacterMemoryRepository extends JpaRepository<CharacterMemory
      * 统计用户的总记忆数量
      */
     long countByUserId(UUID userId);
-}
\ No newline at end of file
+
+    /**
+     * 相似度搜索结果投影，不加载嵌入向量
+     */
+    interface SimilarMemory {
+        Long getId();
+
+        UUID getUserId();
+
+        UUID getCharacterCardId();
+
+        String getMemoryContent();
+
+        Instant getCreatedAt();
+
+        Instant getUpdatedAt();
+
+        /**
+         * 余弦距离
+         */
+        Double getDistance();
+
+        /**
+         * 相似度（1 - 余弦距离）
+         */
+        Double getSimilarity();
+    }
+
+    /**
+     * 记忆及其向量的投影，向量为pgvector文本格式
+     */
+    interface MemoryVector {
+        Long getId();
+
+        UUID getUserId();
+
+        UUID getCharacterCardId();
+
+        String getMemoryContent();
+
+        Instant getCreatedAt();
+
+        Instant getUpdatedAt();
+
+        String getEmbedding();
+    }
+
+    /**
+     * 用户和角色卡组合的投影
+     */
+    interface MemoryPair {
+        UUID getUserId();
+
+        UUID getCharacterCardId();
+    }
+}
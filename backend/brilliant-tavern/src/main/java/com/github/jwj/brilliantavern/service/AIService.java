@@ -4,6 +4,13 @@ import com.github.jwj.brilliantavern.config.GenAIConfig;
 import com.github.jwj.brilliantavern.dto.VoiceMessage;
 import com.github.jwj.brilliantavern.entity.CharacterCard;
 import com.github.jwj.brilliantavern.entity.CharacterMemory;
+import com.github.jwj.brilliantavern.service.context.ContextWindowService;
+import com.github.jwj.brilliantavern.service.context.MemoryPrefetchService;
+import com.github.jwj.brilliantavern.service.genai.LLMStreamTransport;
+import com.github.jwj.brilliantavern.service.genai.PromptContextCacheService;
+import com.github.jwj.brilliantavern.service.metrics.ConversationMetrics;
+import com.github.jwj.brilliantavern.service.prompt.SystemPromptService;
+import com.github.jwj.brilliantavern.service.streaming.MemRetrievalDetector;
 import com.google.genai.Client;
 import com.google.genai.types.Content;
 import com.google.genai.types.GenerateContentConfig;
@@ -12,18 +19,16 @@ import com.google.genai.types.Part;
 import com.google.genai.types.ThinkingConfig;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -39,11 +44,14 @@ public class AIService {
     private final Client genAIClient;
     private final GenAIConfig genAIConfig;
     private final ChatMemoryService chatMemoryService;
+    private final ContextWindowService contextWindowService;
+    private final SystemPromptService systemPromptService;
+    private final PromptContextCacheService promptContextCacheService;
+    private final LLMStreamTransport llmStreamTransport;
+    private final MemoryPrefetchService memoryPrefetchService;
     private final CharacterMemoryService characterMemoryService;
     private final com.github.jwj.brilliantavern.service.streaming.RetryService retryService;
     
-    @Value("classpath:prompts/character-chat-template.st")
-    private Resource promptTemplate;
 
     /**
      * 处理语音消息并返回包含分段的AI流式事件。
@@ -52,7 +60,8 @@ public class AIService {
                                                        CharacterCard characterCard,
                                                        String conversationId,
                                                        String messageId,
-                                                       UUID userId) {
+                                                       UUID userId,
+                                                       ConversationMetrics metrics) {
         return Flux.defer(() -> {
             try {
                 if (voiceMessage.getAudioData() == null || voiceMessage.getAudioData().length == 0) {
@@ -62,20 +71,28 @@ public class AIService {
                 }
 
                 String systemPrompt = buildSystemPrompt(characterCard, voiceMessage);
-                chatMemoryService.limitHistory(conversationId, 40);
-                List<Content> historyMessages = chatMemoryService.getHistory(conversationId);
-
-                log.debug("调用AI开始: conversationId={}, messageId={}, historySize={}, audioBytes={}",
-                        conversationId, messageId, historyMessages.size(), voiceMessage.getAudioData().length);
+                // 按Token预算选取历史，扣除系统提示词和本轮音频
+                ContextWindowService.ContextWindow window =
+                        contextWindowService.fit(conversationId, systemPrompt, voiceMessage);
+                window.recordTo(metrics);
+
+                // 预取可能用到的记忆放入第一次请求，命中时省去[MEM]检索和第二次模型调用
+                return memoryPrefetchService.prefetch(userId, characterCard.getId(), conversationId)
+                        .flatMapMany(prefetch -> {
+                            List<Content> historyMessages = window.history();
+                            if (prefetch.hasMemories()) {
+                                historyMessages = new ArrayList<>(historyMessages);
+                                historyMessages.add(prefetch.toContent());
+                            }
 
-                // 设置系统指令到历史消息开头
-                if (StringUtils.hasText(systemPrompt)) {
-                    Content systemContent = Content.fromParts(Part.fromText(systemPrompt));
-                    historyMessages.add(0, systemContent);
-                }
+                            log.debug("调用AI开始: conversationId={}, messageId={}, historySize={}, prefetchedMemories={}, audioBytes={}",
+                                    conversationId, messageId, historyMessages.size(), prefetch.memories().size(),
+                                    voiceMessage.getAudioData().length);
 
-                // 使用Gen AI处理消息
-                return processWithGenAI(historyMessages, voiceMessage, conversationId, messageId, characterCard, userId)
+                            // 使用Gen AI处理消息
+                            return processWithGenAI(systemPrompt, historyMessages, voiceMessage, conversationId,
+                                    messageId, characterCard, userId, prefetch, metrics);
+                        })
                         .doOnError(error -> log.error("AI处理语音消息失败", error));
             } catch (Exception e) {
                 log.error("处理语音消息失败", e);
@@ -87,14 +104,18 @@ public class AIService {
     /**
      * 使用Gen AI处理消息 - 真流式实现，支持重试
      */
-    private Flux<AIStreamEvent> processWithGenAI(List<Content> historyMessages,
+    private Flux<AIStreamEvent> processWithGenAI(String systemPrompt,
+                                                 List<Content> historyMessages,
                                                  VoiceMessage voiceMessage,
                                                  String conversationId,
                                                  String messageId,
                                                  CharacterCard characterCard,
-                                                 UUID userId) {
+                                                 UUID userId,
+                                                 MemoryPrefetchService.Prefetch prefetch,
+                                                 ConversationMetrics metrics) {
         return retryService.retryWithProgress(
-                createGenAIStream(historyMessages, voiceMessage, conversationId, messageId, characterCard, userId),
+                createGenAIStream(systemPrompt, historyMessages, voiceMessage, conversationId, messageId,
+                        characterCard, userId, prefetch, metrics),
                 conversationId,
                 messageId,
                 "LLM调用",
@@ -104,76 +125,99 @@ public class AIService {
     
     /**
      * 创建Gen AI流 - 单次调用逻辑
+     * 每次订阅（包括重试）重新决定是否引用上下文缓存，缓存失效后的重试改为内联发送系统提示词
      */
-    private Flux<AIStreamEvent> createGenAIStream(List<Content> historyMessages,
+    private Flux<AIStreamEvent> createGenAIStream(String systemPrompt,
+                                                 List<Content> historyMessages,
                                                  VoiceMessage voiceMessage,
                                                  String conversationId,
                                                  String messageId,
                                                  CharacterCard characterCard,
-                                                 UUID userId) {
-        return Flux.<AIStreamEvent>create(sink -> {
-                    try {
-                        // 构建请求内容
-                        List<Content> requestContents = new ArrayList<>();
-                        if (historyMessages != null && !historyMessages.isEmpty()) {
-                            requestContents.addAll(historyMessages);
+                                                 UUID userId,
+                                                 MemoryPrefetchService.Prefetch prefetch,
+                                                 ConversationMetrics metrics) {
+        return Flux.defer(() -> {
+            String cachedContent = promptContextCacheService.resolve(characterCard.getId(), systemPrompt);
+
+            // 构建请求内容：历史和音频，系统提示词通过systemInstruction或上下文缓存发送
+            List<Content> requestContents = buildHistoryMessages(historyMessages, List.of(),
+                    buildAudioContent(voiceMessage));
+
+            // 创建生成配置
+            GenerateContentConfig config = createGenerateContentConfig(systemPrompt, cachedContent);
+
+            StringBuilder fullResponse = new StringBuilder();
+            // 从回复开头增量判断是否为单个[MEM]标签的记忆检索请求，判定为普通回复后分片直接输出
+            MemRetrievalDetector memDetector = new MemRetrievalDetector();
+
+            // 使用真流式API，按下游需求读取，取消时关闭响应流
+            return llmStreamTransport.streamText(genAIConfig.getVertexAi().getModel(), requestContents, config)
+                    .<AIStreamEvent>handle((text, sink) -> {
+                        fullResponse.append(text);
+                        MemRetrievalDetector.Decision previous = memDetector.getDecision();
+                        if (previous == MemRetrievalDetector.Decision.NORMAL) {
+                            sink.next(AIStreamEvent.chunk(messageId, text));
+                            return;
+                        }
+                        if (previous == MemRetrievalDetector.Decision.RETRIEVAL) {
+                            return; // 记忆检索请求不发送chunk事件，等待完整响应
                         }
 
-                        Content audioContent = buildAudioContent(voiceMessage);
-                        requestContents.add(audioContent);
-
-                        // 创建生成配置
-                        GenerateContentConfig config = createGenerateContentConfig();
-
-                        StringBuilder fullResponse = new StringBuilder();
-                        boolean isMemoryRetrievalRequest = false;
-
-                        // 使用真流式API
-                        var responseStream = genAIClient.models.generateContentStream(
-                            genAIConfig.getVertexAi().getModel(),
-                            requestContents,
-                            config
-                        );
-                        
-                        // 处理流式响应 - 使用try-with-resources确保资源正确关闭
-                        try (responseStream) {
-                            for (GenerateContentResponse response : responseStream) {
-                                String text = response.text();
-                                if (StringUtils.hasText(text)) {
-                                    fullResponse.append(text);
-                                    
-                                    // 检测是否为单个[MEM]标签的记忆检索请求
-                                    if (!isMemoryRetrievalRequest && isSingleMemTagRetrieval(fullResponse.toString())) {
-                                        isMemoryRetrievalRequest = true;
-                                        log.debug("检测到记忆检索请求: {}", fullResponse.toString());
-                                        continue; // 不发送chunk事件，等待完整响应
-                                    }
-                                    
-                                    // 如果不是记忆检索请求，正常发送chunk
-                                    if (!isMemoryRetrievalRequest) {
-                                        sink.next(AIStreamEvent.chunk(messageId, text));
-                                    }
-                                }
+                        MemRetrievalDetector.Decision decision = memDetector.offer(text);
+                        if (decision == MemRetrievalDetector.Decision.NORMAL) {
+                            if (memDetector.hasRepeatedMemTag()) {
+                                log.warn("检测到重复的[MEM]标签，将作为格式错误处理: {}", fullResponse);
+                            }
+                            // 判定前暂存的分片按原顺序补发
+                            for (String held : memDetector.drainHeld()) {
+                                sink.next(AIStreamEvent.chunk(messageId, held));
                             }
+                        } else if (decision == MemRetrievalDetector.Decision.RETRIEVAL) {
+                            memDetector.drainHeld();
+                            log.debug("检测到记忆检索请求: {}", fullResponse);
                         }
-                        
+                    })
+                    .doOnError(error -> promptContextCacheService.evict(characterCard.getId(), cachedContent))
+                    .concatWith(Flux.defer(() -> {
                         String finalResponse = fullResponse.toString();
-                        
+                        boolean retrievalRequested = memDetector.getDecision() == MemRetrievalDetector.Decision.RETRIEVAL;
+                        memoryPrefetchService.recordOutcome(prefetch, retrievalRequested, metrics);
+
                         // 如果是记忆检索请求，执行检索并模拟对话轮次
-                        if (isMemoryRetrievalRequest) {
-                            handleMemoryRetrieval(finalResponse, conversationId, characterCard, userId, sink, messageId, voiceMessage);
-                        } else {
-                            // 正常完成流程
-                            ProcessedAiResponse processed = new ProcessedAiResponse(finalResponse, null);
-                            sink.next(AIStreamEvent.completed(messageId, processed));
-                            sink.complete();
+                        if (retrievalRequested) {
+                            return handleMemoryRetrieval(finalResponse, conversationId, characterCard, userId,
+                                    messageId, voiceMessage);
                         }
+                        // 正常完成流程，未闭合的[MEM]开头按普通回复补发暂存分片
+                        ProcessedAiResponse processed = new ProcessedAiResponse(finalResponse, null);
+                        return Flux.fromIterable(memDetector.drainHeld())
+                                .map(held -> AIStreamEvent.chunk(messageId, held))
+                                .concatWith(Mono.just(AIStreamEvent.completed(messageId, processed)));
+                    }));
+        });
+    }
 
-                    } catch (Exception e) {
-                        sink.error(e);
-                    }
-                })
-                .subscribeOn(Schedulers.boundedElastic());
+    /**
+     * 拼接请求内容：上下文窗口内的历史 + 虚拟消息 + 本轮音频
+     * 历史中的Content对象直接复用，只复制引用；相邻的同角色消息（摘要、预取记忆等附加上下文与用户消息相邻时）
+     * 合并为一条，保证user和model交替出现
+     */
+    private static List<Content> buildHistoryMessages(List<Content> historyPrefix, List<Content> virtualMessages,
+                                                      Content audioContent) {
+        List<Content> messages = new ArrayList<>(historyPrefix.size() + virtualMessages.size() + 1);
+        for (List<Content> source : List.of(historyPrefix, virtualMessages, List.of(audioContent))) {
+            for (Content content : source) {
+                int last = messages.size() - 1;
+                if (last >= 0 && messages.get(last).role().equals(content.role())) {
+                    List<Part> parts = new ArrayList<>(messages.get(last).parts().orElse(List.of()));
+                    parts.addAll(content.parts().orElse(List.of()));
+                    messages.set(last, Content.builder().role(content.role().orElse("user")).parts(parts).build());
+                } else {
+                    messages.add(content);
+                }
+            }
+        }
+        return messages;
     }
 
     /**
@@ -197,7 +241,7 @@ public class AIService {
         // 验证音频数据有效性
         if (voiceMessage.getAudioData() == null || voiceMessage.getAudioData().length == 0) {
             log.warn("接收到空的音频数据，仅使用文本部分");
-            return Content.fromParts(textPart);
+            return userContent(textPart);
         }
         
         // 验证音频数据大小（避免过大的文件）
@@ -205,7 +249,7 @@ public class AIService {
         if (voiceMessage.getAudioData().length > MAX_AUDIO_SIZE) {
             log.warn("音频文件过大: {}字节 > {}字节限制，仅使用文本部分", 
                     voiceMessage.getAudioData().length, MAX_AUDIO_SIZE);
-            return Content.fromParts(textPart);
+            return userContent(textPart);
         }
         
         try {
@@ -215,24 +259,37 @@ public class AIService {
             log.debug("构建多模态音频内容成功: 音频字节数={}, MIME类型={}, 格式={}", 
                     voiceMessage.getAudioData().length, mimeType, voiceMessage.getAudioFormat());
             
-            return Content.fromParts(textPart, audioPart);
+            return userContent(textPart, audioPart);
             
         } catch (IllegalArgumentException e) {
             log.warn("不支持的音频格式或数据格式错误: {}, 仅使用文本部分", e.getMessage());
-            return Content.fromParts(textPart);
+            return userContent(textPart);
         } catch (Exception e) {
             log.error("音频数据处理发生未知错误，仅使用文本部分: {}", e.getMessage(), e);
-            return Content.fromParts(textPart);
+            return userContent(textPart);
         }
     }
 
+    private static Content userContent(Part... parts) {
+        return Content.builder().role("user").parts(List.of(parts)).build();
+    }
+
+    private static Content modelContent(Part... parts) {
+        return Content.builder().role("model").parts(List.of(parts)).build();
+    }
+
     /**
-     * 创建生成内容配置
+     * 创建生成内容配置，cachedContent不为空时引用已缓存的系统提示词，否则以systemInstruction发送
      */
-    private GenerateContentConfig createGenerateContentConfig() {
+    private GenerateContentConfig createGenerateContentConfig(String systemPrompt, String cachedContent) {
         GenAIConfig.GenAIProperties config = genAIConfig.getVertexAi();
 
         GenerateContentConfig.Builder configBuilder = GenerateContentConfig.builder();
+        if (cachedContent != null) {
+            configBuilder.cachedContent(cachedContent);
+        } else if (StringUtils.hasText(systemPrompt)) {
+            configBuilder.systemInstruction(Content.fromParts(Part.fromText(systemPrompt)));
+        }
         
         if (config.getTemperature() != null) {
             configBuilder.temperature(config.getTemperature().floatValue());
@@ -285,94 +342,10 @@ public class AIService {
     }
 
     /**
-     * 构建系统提示词，使用模板
+     * 构建系统提示词，渲染结果按角色卡和语言组合缓存
      */
     public String buildSystemPrompt(CharacterCard characterCard, VoiceMessage voiceMessage) {
-        try {
-            String template = promptTemplate.getContentAsString(StandardCharsets.UTF_8);
-            
-            // 优先使用语音消息中的语言设置，如果没有则使用角色卡默认设置
-            String voiceLanguage = (voiceMessage != null && voiceMessage.getVoiceLanguage() != null) ? 
-                voiceMessage.getVoiceLanguage() : 
-                (characterCard.getVoiceLanguage() != null ? characterCard.getVoiceLanguage() : "zh");
-                
-            String subtitleLanguage = (voiceMessage != null && voiceMessage.getSubtitleLanguage() != null) ? 
-                voiceMessage.getSubtitleLanguage() : 
-                (characterCard.getSubtitleLanguage() != null ? characterCard.getSubtitleLanguage() : "zh");
-            
-            log.debug("构建系统提示词: voiceLanguage={}, subtitleLanguage={}", voiceLanguage, subtitleLanguage);
-            
-            // 手动替换占位符
-            return template
-                    .replace("{character_name}", characterCard.getName())
-                    .replace("{character_description}", getCharacterDescription(characterCard))
-                    .replace("{character_personality}", getCharacterPersonality(characterCard))
-                    .replace("{character_scenario}", getCharacterScenario(characterCard))
-                    .replace("{character_examples}", getCharacterExamples(characterCard))
-                    .replace("{voice_language}", voiceLanguage)
-                    .replace("{subtitle_language}", subtitleLanguage);
-            
-        } catch (IOException e) {
-            log.error("读取提示词模板失败", e);
-            throw new RuntimeException("无法构建系统提示词", e);
-        }
-    }
-
-    /**
-     * 获取角色描述
-     */
-    private String getCharacterDescription(CharacterCard characterCard) {
-        if (characterCard.getCardData() != null && characterCard.getCardData().getDescription() != null) {
-            return characterCard.getCardData().getDescription();
-        }
-        return characterCard.getShortDescription() != null ? characterCard.getShortDescription() : "一个有趣的角色";
-    }
-    
-    /**
-     * 获取角色性格
-     */
-    private String getCharacterPersonality(CharacterCard characterCard) {
-        if (characterCard.getCardData() != null && characterCard.getCardData().getPersonality() != null) {
-            return characterCard.getCardData().getPersonality();
-        }
-        return "友好、活泼";
-    }
-    
-    /**
-     * 获取角色对话场景
-     */
-    private String getCharacterScenario(CharacterCard characterCard) {
-        if (characterCard.getCardData() != null && characterCard.getCardData().getScenario() != null) {
-            return characterCard.getCardData().getScenario();
-        }
-        return "日常生活场景";
-    }
-    
-    /**
-     * 获取角色对话实例
-     */
-    private String getCharacterExamples(CharacterCard characterCard) {
-        if (characterCard.getCardData() != null && characterCard.getCardData().getExampleDialogs() != null) {
-            StringBuilder examples = new StringBuilder();
-            CharacterCard.CharacterCardData.ExampleDialog[] exampleDialogs = characterCard.getCardData().getExampleDialogs();
-            
-            for (int i = 0; i < exampleDialogs.length; i++) {
-                CharacterCard.CharacterCardData.ExampleDialog dialog = exampleDialogs[i];
-                if (dialog.getUser() != null && dialog.getAssistant() != null) {
-                    examples.append("示例").append(i + 1).append(":\n");
-                    examples.append("用户: ").append(dialog.getUser()).append("\n");
-                    examples.append(characterCard.getName()).append(": ").append(dialog.getAssistant());
-                    
-                    // 如果不是最后一个对话，添加分隔符
-                    if (i < exampleDialogs.length - 1) {
-                        examples.append("\n\n");
-                    }
-                }
-            }
-            
-            return examples.toString().isEmpty() ? "暂无对话示例" : examples.toString();
-        }
-        return "暂无对话示例";
+        return systemPromptService.render(characterCard, voiceMessage);
     }
 
 
@@ -451,85 +424,58 @@ public class AIService {
         }
     }
     
-    /**
-     * 检测是否为单个[MEM]标签的记忆检索请求
-     */
-    private boolean isSingleMemTagRetrieval(String response) {
-        if (!StringUtils.hasText(response)) {
-            return false;
-        }
-        
-        String trimmed = response.trim();
-        
-        // 检查是否以[MEM]开头且包含结束标签
-        if (trimmed.startsWith("[MEM]") && trimmed.contains("[/MEM]")) {
-            // 确保不包含其他标签 (TSS, SUB, ASR, DO)
-            boolean hasOtherTags = trimmed.contains("[TSS:") || 
-                                 trimmed.contains("[SUB:") || 
-                                 trimmed.contains("[ASR]") ||
-                                 trimmed.contains("[DO]");
-            
-            // 检测是否有重复的[MEM]标签（表示格式错误）
-            int memCount = (trimmed.length() - trimmed.replace("[MEM]", "").length()) / 5; // "[MEM]"长度为5
-            boolean hasRepeatedMemTags = memCount > 1;
-            
-            if (hasRepeatedMemTags) {
-                log.warn("检测到重复的[MEM]标签，将作为格式错误处理: {}", trimmed);
-                return false; // 当作格式错误，不进入记忆检索流程
-            }
-            
-            return !hasOtherTags;
-        }
-        
-        return false;
-    }
-    
     /**
      * 处理记忆检索逻辑
      */
-    private void handleMemoryRetrieval(String memTagResponse, String conversationId, 
-                                     CharacterCard characterCard, UUID userId,
-                                     reactor.core.publisher.FluxSink<AIStreamEvent> sink, String messageId,
-                                     VoiceMessage originalVoiceMessage) {
-        try {
-            log.debug("开始处理记忆检索: {}", memTagResponse);
-            
-            // 解析[MEM]标签中的查询文本
-            String queryText = extractQueryFromMemTag(memTagResponse);
-            if (queryText == null) {
-                log.warn("无法解析MEM标签中的查询文本: {}", memTagResponse);
-                sink.error(new RuntimeException("无法解析记忆检索查询"));
-                return;
-            }
-            
-            // 发送记忆检索开始事件
-            String characterName = characterCard.getName();
-            String startMessage = String.format("%s正在回忆...", characterName);
-            sink.next(AIStreamEvent.memoryRetrievalStarted(messageId, startMessage));
-            log.debug("发送记忆检索开始事件: {}", startMessage);
-            
-            // 执行记忆检索
-            String retrievalResult = executeMemoryRetrieval(queryText, characterCard, userId);
-            
-            // 发送记忆检索完成事件
-            String completedMessage = String.format("%s想起来了!", characterName);
-            sink.next(AIStreamEvent.memoryRetrievalCompleted(messageId, completedMessage));
-            log.debug("发送记忆检索完成事件: {}", completedMessage);
-            
-            // 模拟虚拟对话轮次 - 添加到对话历史但不入库
-            addVirtualConversationRound(conversationId, queryText, retrievalResult);
-            
-            log.debug("记忆检索完成，准备生成正常回复");
-            
-            // 继续正常的AI对话流程 - 重新调用AI生成真正的回复
-            continueNormalConversation(conversationId, characterCard, userId, sink, messageId, originalVoiceMessage);
-            
-        } catch (Exception e) {
-            log.error("记忆检索处理失败", e);
-            sink.error(e);
+    private Flux<AIStreamEvent> handleMemoryRetrieval(String memTagResponse, String conversationId,
+                                                      CharacterCard characterCard, UUID userId,
+                                                      String messageId, VoiceMessage originalVoiceMessage) {
+        log.debug("开始处理记忆检索: {}", memTagResponse);
+
+        // 解析[MEM]标签中的查询文本
+        String queryText = extractQueryFromMemTag(memTagResponse);
+        if (queryText == null) {
+            log.warn("无法解析MEM标签中的查询文本: {}", memTagResponse);
+            return Flux.error(new RuntimeException("无法解析记忆检索查询"));
         }
+
+        // 发送记忆检索开始事件
+        String characterName = characterCard.getName();
+        String startMessage = String.format("%s正在回忆...", characterName);
+        log.debug("发送记忆检索开始事件: {}", startMessage);
+
+        // 执行记忆检索（阻塞的向量检索放在boundedElastic上）
+        Flux<AIStreamEvent> retrieval = Mono.fromCallable(() -> executeMemoryRetrieval(queryText, characterCard, userId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(retrievalResult -> {
+                    // 模拟虚拟对话轮次 - 添加到对话历史但不入库
+                    addVirtualConversationRound(conversationId, queryText, retrievalResult);
+
+                    // 发送记忆检索完成事件
+                    String completedMessage = String.format("%s想起来了!", characterName);
+                    log.debug("记忆检索完成，准备生成正常回复: {}", completedMessage);
+                    return AIStreamEvent.memoryRetrievalCompleted(messageId, completedMessage);
+                })
+                .flux();
+
+        // 继续正常的AI对话流程 - 重新调用AI生成真正的回复
+        // 从检索开始到第二次调用的首个分片即为未命中预取的额外耗时
+        long retrievalStart = System.nanoTime();
+        AtomicBoolean penaltyRecorded = new AtomicBoolean(false);
+        Flux<AIStreamEvent> continuation = Flux.defer(() -> continueNormalConversation(conversationId, characterCard,
+                        messageId, originalVoiceMessage))
+                .doOnNext(event -> {
+                    if (event.getType() == AIStreamEvent.Type.CHUNK && penaltyRecorded.compareAndSet(false, true)) {
+                        memoryPrefetchService.recordMissPenalty((System.nanoTime() - retrievalStart) / 1_000_000);
+                    }
+                });
+        return Flux.concat(
+                        Flux.just(AIStreamEvent.memoryRetrievalStarted(messageId, startMessage)),
+                        retrieval,
+                        continuation)
+                .doOnError(e -> log.error("记忆检索处理失败", e));
     }
-    
+
     /**
      * 从[MEM]标签中提取查询文本
      */
@@ -579,13 +525,13 @@ public class AIService {
     private void addVirtualConversationRound(String conversationId, String queryText, String result) {
         try {
             // 创建明确的记忆检索完成标记，避免AI误认为需要继续检索
-            Content internalQuery = Content.fromParts(Part.fromText("(记忆检索已完成，查询: " + queryText + ")"));
+            Content internalQuery = userContent(Part.fromText("(记忆检索已完成，查询: " + queryText + ")"));
             
             // 检索结果作为已获得的知识，明确标记为已完成状态
             String memoryContext = result.isEmpty() ? 
                 "(记忆检索已完成，没有找到相关记忆，请基于现有信息回复)" : 
                 "(记忆检索已完成，获得记忆: " + result + "，请基于这些记忆回复)";
-            Content memoryResponse = Content.fromParts(Part.fromText(memoryContext));
+            Content memoryResponse = modelContent(Part.fromText(memoryContext));
             
             // 添加到对话历史但不持久化到数据库
             chatMemoryService.addVirtualMessageToHistory(conversationId, memoryResponse, internalQuery);
@@ -600,61 +546,40 @@ public class AIService {
     /**
      * 继续正常的AI对话流程
      */
-    private void continueNormalConversation(String conversationId, 
-                                          CharacterCard characterCard, 
-                                          UUID userId,
-                                          reactor.core.publisher.FluxSink<AIStreamEvent> sink, 
-                                          String messageId,
-                                          VoiceMessage originalVoiceMessage) {
-        try {
-            // 重新获取包含虚拟对话的历史记录
-            List<Content> updatedHistory = chatMemoryService.getHistory(conversationId);
-            
-            // 添加系统指令
-            String systemPrompt = buildSystemPrompt(characterCard, originalVoiceMessage);
-            if (StringUtils.hasText(systemPrompt)) {
-                Content systemContent = Content.fromParts(Part.fromText(systemPrompt));
-                updatedHistory.add(0, systemContent);
-            }
-            
-            // 重新添加原始音频内容到请求中
-            Content audioContent = buildAudioContent(originalVoiceMessage);
-            updatedHistory.add(audioContent);
-            
-            GenerateContentConfig config = createGenerateContentConfig();
-            StringBuilder fullResponse = new StringBuilder();
-            
-            var responseStream = genAIClient.models.generateContentStream(
-                genAIConfig.getVertexAi().getModel(),
-                updatedHistory,
-                config
-            );
-            
-            try (responseStream) {
-                for (GenerateContentResponse response : responseStream) {
-                    String text = response.text();
-                    if (StringUtils.hasText(text)) {
-                        fullResponse.append(text);
-                        sink.next(AIStreamEvent.chunk(messageId, text));
-                    }
-                }
-            }
-            
-            ProcessedAiResponse processed = new ProcessedAiResponse(fullResponse.toString(), null);
-            sink.next(AIStreamEvent.completed(messageId, processed));
-            
-            // 清除虚拟消息缓存，避免影响后续对话
-            chatMemoryService.clearVirtualHistory(conversationId);
-            log.debug("已清除虚拟记忆上下文: conversationId={}", conversationId);
-            
-            sink.complete();
-            
-        } catch (Exception e) {
-            log.error("继续正常对话失败", e);
-            sink.error(e);
-        }
+    private Flux<AIStreamEvent> continueNormalConversation(String conversationId,
+                                                           CharacterCard characterCard,
+                                                           String messageId,
+                                                           VoiceMessage originalVoiceMessage) {
+        // 重新获取包含虚拟对话的历史记录
+        String systemPrompt = buildSystemPrompt(characterCard, originalVoiceMessage);
+        String cachedContent = promptContextCacheService.resolve(characterCard.getId(), systemPrompt);
+        // 重新添加原始音频内容到请求中
+        List<Content> updatedHistory = buildHistoryMessages(
+                contextWindowService.fit(conversationId, systemPrompt, originalVoiceMessage).history(),
+                chatMemoryService.getVirtualHistory(conversationId),
+                buildAudioContent(originalVoiceMessage));
+
+        GenerateContentConfig config = createGenerateContentConfig(systemPrompt, cachedContent);
+        StringBuilder fullResponse = new StringBuilder();
+
+        return llmStreamTransport.streamText(genAIConfig.getVertexAi().getModel(), updatedHistory, config)
+                .map(text -> {
+                    fullResponse.append(text);
+                    return AIStreamEvent.chunk(messageId, text);
+                })
+                .concatWith(Mono.fromSupplier(() ->
+                        AIStreamEvent.completed(messageId, new ProcessedAiResponse(fullResponse.toString(), null))))
+                .doOnError(e -> {
+                    log.error("继续正常对话失败", e);
+                    promptContextCacheService.evict(characterCard.getId(), cachedContent);
+                })
+                .doFinally(signal -> {
+                    // 清除虚拟消息缓存，避免影响后续对话（失败或取消时同样清除，重试会重新检索）
+                    chatMemoryService.clearVirtualHistory(conversationId);
+                    log.debug("已清除虚拟记忆上下文: conversationId={}", conversationId);
+                });
     }
-    
+
     /**
      * 创建记忆检索事件 - 使用专门的事件类型，不通过CHUNK发送
      */
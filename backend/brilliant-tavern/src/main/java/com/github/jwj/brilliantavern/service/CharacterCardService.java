@@ -13,6 +13,8 @@ import com.github.jwj.brilliantavern.exception.BusinessException;
 import com.github.jwj.brilliantavern.repository.CharacterCardRepository;
 import com.github.jwj.brilliantavern.repository.TTSVoiceRepository;
 import com.github.jwj.brilliantavern.repository.UserLikeRepository;
+import com.github.jwj.brilliantavern.service.genai.PromptContextCacheService;
+import com.github.jwj.brilliantavern.service.prompt.SystemPromptService;
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.PersistenceContext;
 import jakarta.persistence.TypedQuery;
@@ -31,6 +33,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -46,6 +49,9 @@ public class CharacterCardService {
     private final CharacterCardRepository characterCardRepository;
     private final UserLikeRepository userLikeRepository;
     private final TTSVoiceRepository ttsVoiceRepository;
+    private final GreetingAudioService greetingAudioService;
+    private final SystemPromptService systemPromptService;
+    private final PromptContextCacheService promptContextCacheService;
 
     @PersistenceContext
     private EntityManager entityManager;
@@ -79,6 +85,9 @@ public class CharacterCardService {
         CharacterCard savedCard = characterCardRepository.save(card);
         log.info("角色卡创建成功: ID={}", savedCard.getId());
 
+        // 事务提交后在后台预生成开场白语音
+        greetingAudioService.precomputeAfterCommit(savedCard.getId(), savedCard.getGreetingMessage(), savedCard.getTtsVoiceId());
+
         return CharacterCardResponse.fromEntity(savedCard);
     }
 
@@ -97,6 +106,9 @@ public class CharacterCardService {
             throw new BusinessException(403, "无权限修改该角色卡");
         }
 
+        String previousGreeting = card.getGreetingMessage();
+        String previousVoiceId = card.getTtsVoiceId();
+
         // 更新字段
         if (request.getName() != null) {
             card.setName(request.getName());
@@ -128,8 +140,16 @@ public class CharacterCardService {
         }
 
         CharacterCard savedCard = characterCardRepository.save(card);
+        systemPromptService.invalidate(savedCard.getId());
+        promptContextCacheService.invalidate(savedCard.getId());
         log.info("角色卡更新成功: ID={}", savedCard.getId());
 
+        // 开场白或音色变化时重新生成开场白语音
+        if (!Objects.equals(previousGreeting, savedCard.getGreetingMessage())
+                || !Objects.equals(previousVoiceId, savedCard.getTtsVoiceId())) {
+            greetingAudioService.precomputeAfterCommit(savedCard.getId(), savedCard.getGreetingMessage(), savedCard.getTtsVoiceId());
+        }
+
         return CharacterCardResponse.fromEntity(savedCard);
     }
 
@@ -149,6 +169,8 @@ public class CharacterCardService {
         }
 
         characterCardRepository.delete(card);
+        systemPromptService.invalidate(cardId);
+        promptContextCacheService.invalidate(cardId);
         log.info("角色卡删除成功: ID={}", cardId);
     }
 
@@ -2,21 +2,20 @@ package com.github.jwj.brilliantavern.service;
 
 import com.github.jwj.brilliantavern.entity.CharacterMemory;
 import com.github.jwj.brilliantavern.repository.CharacterMemoryRepository;
-import com.google.genai.Client;
-import com.google.genai.types.ContentEmbedding;
-import com.google.genai.types.EmbedContentResponse;
-import com.google.genai.types.EmbedContentConfig;
+import com.github.jwj.brilliantavern.service.genai.EmbeddingService;
+import com.github.jwj.brilliantavern.service.memory.MemoryVectorIndex;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.util.StringUtils;
 
-import java.util.Arrays;
+import java.time.ZoneOffset;
 import java.util.List;
-import java.util.Optional;
 import java.util.UUID;
 
 /**
@@ -29,10 +28,8 @@ import java.util.UUID;
 public class CharacterMemoryService {
 
     private final CharacterMemoryRepository characterMemoryRepository;
-    private final Client genAIClient;
-
-    @Value("${vertex.ai.embedding.model:gemini-embedding-001}")
-    private String embeddingModel;
+    private final EmbeddingService embeddingService;
+    private final MemoryVectorIndex memoryVectorIndex;
 
     @Value("${character.memory.similarity.threshold:0.7}")
     private double similarityThreshold;
@@ -40,9 +37,6 @@ public class CharacterMemoryService {
     @Value("${character.memory.max.results:5}")
     private int maxResults;
 
-    // 限制向量维度以支持HNSW索引 (PostgreSQL vector HNSW索引最大支持2000维)
-    private static final int MAX_EMBEDDING_DIMENSIONS = 1536;
-
     /**
      * 存储角色记忆
      */
@@ -73,6 +67,9 @@ public class CharacterMemoryService {
             log.info("角色记忆存储成功: memoryId={}, userId={}, characterCardId={}, contentLength={}", 
                 savedMemory.getId(), userId, characterCardId, memoryContent.length());
 
+            // 提交后写入已载入的进程内索引
+            afterCommit(() -> memoryVectorIndex.add(savedMemory));
+
         } catch (Exception e) {
             log.error("存储角色记忆失败: userId={}, characterCardId={}", userId, characterCardId, e);
             throw new RuntimeException("存储记忆失败: " + e.getMessage(), e);
@@ -101,22 +98,8 @@ public class CharacterMemoryService {
             // 生成查询文本的嵌入向量
             float[] queryEmbedding = generateEmbedding(queryText);
             
-            // 将float数组转换为向量字符串格式
-            StringBuilder embeddingBuilder = new StringBuilder("[");
-            for (int i = 0; i < queryEmbedding.length; i++) {
-                if (i > 0) embeddingBuilder.append(",");
-                embeddingBuilder.append(queryEmbedding[i]);
-            }
-            embeddingBuilder.append("]");
-            String embeddingStr = embeddingBuilder.toString();
-
-            // 执行向量相似度搜索
-            List<Object[]> results = characterMemoryRepository.findSimilarMemories(
-                userId, characterCardId, embeddingStr, similarityThreshold, limit);
-
-            List<CharacterMemory> memories = results.stream()
-                .map(this::mapToCharacterMemory)
-                .toList();
+            List<CharacterMemory> memories = findSimilarMemories(
+                    userId, characterCardId, queryEmbedding, similarityThreshold, limit);
 
             log.debug("检索到 {} 条相似记忆", memories.size());
             return memories;
@@ -127,6 +110,23 @@ public class CharacterMemoryService {
         }
     }
 
+    /**
+     * 按向量检索相似记忆，活跃组合的记忆已载入进程内索引时直接在本地检索，否则查询数据库
+     */
+    public List<CharacterMemory> findSimilarMemories(UUID userId, UUID characterCardId, float[] embedding,
+                                                     double threshold, int limit) {
+        List<CharacterMemory> indexed = memoryVectorIndex.search(userId, characterCardId, embedding, threshold, limit);
+        if (indexed != null) {
+            log.debug("从进程内索引检索到 {} 条相似记忆", indexed.size());
+            return indexed;
+        }
+        // 向量直接作为数组参数绑定
+        return characterMemoryRepository.findSimilarMemories(userId, characterCardId, embedding, threshold, limit)
+            .stream()
+            .map(this::toCharacterMemory)
+            .toList();
+    }
+
     /**
      * 获取用户和角色卡的最新记忆
      */
@@ -150,6 +150,7 @@ public class CharacterMemoryService {
         try {
             long count = characterMemoryRepository.countByUserIdAndCharacterCardId(userId, characterCardId);
             characterMemoryRepository.deleteByUserIdAndCharacterCardId(userId, characterCardId);
+            afterCommit(() -> memoryVectorIndex.invalidate(userId, characterCardId));
             log.info("删除角色记忆成功: userId={}, characterCardId={}, count={}", 
                 userId, characterCardId, count);
         } catch (Exception e) {
@@ -166,90 +167,44 @@ public class CharacterMemoryService {
     }
 
     /**
-     * 生成文本嵌入向量
+     * 在当前事务提交后执行，没有事务时立即执行
      */
-    private float[] generateEmbedding(String text) {
-        try {
-            log.debug("生成文本嵌入: model={}, textLength={}", embeddingModel, text.length());
-
-            EmbedContentConfig config;
-            try {
-                config = EmbedContentConfig.builder()
-                    .outputDimensionality(MAX_EMBEDDING_DIMENSIONS)
-                    .build();
-            } catch (Exception e) {
-                // 如果不支持outputDimensionality，则使用null配置，后续截断处理
-                log.debug("嵌入配置不支持outputDimensionality参数，将在后续截断向量: {}", e.getMessage());
-                config = null;
-            }
-            
-            // 调用最新的Gemini嵌入API
-            EmbedContentResponse response = genAIClient.models.embedContent(embeddingModel, text, config);
-            
-            if (response != null && response.embeddings().isPresent() && !response.embeddings().get().isEmpty()) {
-                // 获取第一个嵌入对象
-                ContentEmbedding contentEmbedding = response.embeddings().get().get(0);
-                Optional<List<Float>> valuesOpt = contentEmbedding.values();
-                
-                if (valuesOpt.isPresent() && !valuesOpt.get().isEmpty()) {
-                    List<Float> values = valuesOpt.get();
-                    
-                    // 限制向量维度以支持HNSW索引
-                    int actualDimensions = Math.min(values.size(), MAX_EMBEDDING_DIMENSIONS);
-                    float[] embedding = new float[actualDimensions];
-                    
-                    for (int i = 0; i < actualDimensions; i++) {
-                        embedding[i] = values.get(i);
-                    }
-                    
-                    if (values.size() > MAX_EMBEDDING_DIMENSIONS) {
-                        log.debug("嵌入向量从{}维截断到{}维以支持HNSW索引", values.size(), actualDimensions);
-                    }
-                    
-                    log.debug("嵌入向量生成成功: dimension={}", embedding.length);
-                    return embedding;
-                } else {
-                    throw new RuntimeException("嵌入向量值为空");
-                }
-            } else {
-                throw new RuntimeException("嵌入响应为空或格式错误");
+    private void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
             }
+        });
+    }
 
-        } catch (Exception e) {
-            log.error("生成文本嵌入失败: textLength={}", text.length(), e);
-            throw new RuntimeException("生成嵌入向量失败: " + e.getMessage(), e);
-        }
+    /**
+     * 生成文本嵌入向量
+     */
+    private float[] generateEmbedding(String text) {
+        return embeddingService.embed(text);
     }
 
     /**
-     * 将数据库查询结果映射为CharacterMemory实体
+     * 将相似度搜索结果映射为CharacterMemory实体
+     * 注意：embedding字段从数据库查询中不需要返回，因为它很大且在检索时不需要
      */
-    private CharacterMemory mapToCharacterMemory(Object[] result) {
-        try {
-            CharacterMemory memory = new CharacterMemory();
-            memory.setId(((Number) result[0]).longValue());
-            memory.setUserId((UUID) result[1]);
-            memory.setCharacterCardId((UUID) result[2]);
-            memory.setMemoryContent((String) result[3]);
-            // 注意：embedding字段从数据库查询中不需要返回，因为它很大且在检索时不需要
-            
-            // 处理时间类型转换，支持Timestamp和Instant
-            if (result[5] instanceof java.sql.Timestamp) {
-                memory.setCreatedAt(((java.sql.Timestamp) result[5]).toLocalDateTime().atOffset(java.time.ZoneOffset.UTC));
-            } else if (result[5] instanceof java.time.Instant) {
-                memory.setCreatedAt(((java.time.Instant) result[5]).atOffset(java.time.ZoneOffset.UTC));
-            }
-            
-            if (result[6] instanceof java.sql.Timestamp) {
-                memory.setUpdatedAt(((java.sql.Timestamp) result[6]).toLocalDateTime().atOffset(java.time.ZoneOffset.UTC));
-            } else if (result[6] instanceof java.time.Instant) {
-                memory.setUpdatedAt(((java.time.Instant) result[6]).atOffset(java.time.ZoneOffset.UTC));
-            }
-            
-            return memory;
-        } catch (Exception e) {
-            log.error("映射CharacterMemory失败", e);
-            throw new RuntimeException("数据映射失败", e);
+    private CharacterMemory toCharacterMemory(CharacterMemoryRepository.SimilarMemory result) {
+        CharacterMemory memory = new CharacterMemory();
+        memory.setId(result.getId());
+        memory.setUserId(result.getUserId());
+        memory.setCharacterCardId(result.getCharacterCardId());
+        memory.setMemoryContent(result.getMemoryContent());
+        if (result.getCreatedAt() != null) {
+            memory.setCreatedAt(result.getCreatedAt().atOffset(ZoneOffset.UTC));
+        }
+        if (result.getUpdatedAt() != null) {
+            memory.setUpdatedAt(result.getUpdatedAt().atOffset(ZoneOffset.UTC));
         }
+        return memory;
     }
 }
\ No newline at end of file
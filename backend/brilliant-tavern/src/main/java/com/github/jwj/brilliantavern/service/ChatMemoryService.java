@@ -1,22 +1,38 @@
 package com.github.jwj.brilliantavern.service;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.jwj.brilliantavern.service.context.TokenEstimator;
 import com.google.genai.types.Content;
 import com.google.genai.types.Part;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 
 /**
  * 对话记忆管理服务，使用Redis存储对话历史
+ * 历史以Redis列表保存，每条消息单独编码，追加和截断在同一个脚本中原子完成。
+ * 本地近端缓存保存解析后的历史并随写入同步更新，每次修改递增版本号并广播，
+ * 其他节点收到版本变化后丢弃本地副本。本地副本距上次与Redis确认版本超过version-refresh时，
+ * 读取前再比对一次Redis中的版本号（一次GET），广播丢失时最多在该间隔内读到旧历史。
+ * 每条消息在写入时估算Token数并分配递增序号，供上下文窗口按Token预算裁剪和滚动摘要定位
  */
 @Slf4j
 @Service
@@ -25,25 +41,150 @@ public class ChatMemoryService {
 
     private final StringRedisTemplate redisTemplate;
     private final ObjectMapper objectMapper;
-    
+    private final RedisMessageListenerContainer listenerContainer;
+
     private static final String CHAT_HISTORY_PREFIX = "chat:history:";
+    private static final String VERSION_PREFIX = "chat:history:ver:";
+    private static final String SUMMARY_PREFIX = "chat:history:summary:";
+    private static final String INVALIDATION_CHANNEL = "chat:history:invalidate";
     private static final long DEFAULT_EXPIRE_MINUTES = 120; // 2小时过期
-    
+    private static final String ROLE_USER = "user";
+    private static final String ROLE_MODEL = "model";
+
+    // 本节点标识，忽略自己发出的失效广播（本节点的写入已同步更新近端缓存）
+    private static final String NODE_ID = UUID.randomUUID().toString();
+
+    /**
+     * 旧版本把整个历史存为一个JSON字符串，遇到时先就地转换为列表
+     */
+    private static final String MIGRATE_LEGACY = """
+            if redis.call('TYPE', KEYS[1]).ok == 'string' then
+              local legacy = cjson.decode(redis.call('GET', KEYS[1]))
+              redis.call('DEL', KEYS[1])
+              for _, message in ipairs(legacy) do
+                redis.call('RPUSH', KEYS[1], cjson.encode(message))
+              end
+            end
+            """;
+
+    /**
+     * 追加消息：ARGV[1]=最大条数，ARGV[2]=过期秒数，ARGV[3]=失效广播频道，ARGV[4]=广播内容，其余为编码后的消息；
+     * 返回{追加后的版本号, 列表长度}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> APPEND_SCRIPT = new DefaultRedisScript<>(MIGRATE_LEGACY + """
+            for i = 5, #ARGV do
+              redis.call('RPUSH', KEYS[1], ARGV[i])
+            end
+            redis.call('LTRIM', KEYS[1], -tonumber(ARGV[1]), -1)
+            redis.call('EXPIRE', KEYS[1], ARGV[2])
+            local version = redis.call('INCR', KEYS[2])
+            redis.call('EXPIRE', KEYS[2], ARGV[2])
+            redis.call('PUBLISH', ARGV[3], ARGV[4] .. '|' .. version)
+            return {version, redis.call('LLEN', KEYS[1])}
+            """, List.class);
+
+    /**
+     * 读取全部消息，第一个元素为当前版本号
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> READ_SCRIPT = new DefaultRedisScript<>(MIGRATE_LEGACY + """
+            local items = redis.call('LRANGE', KEYS[1], 0, -1)
+            table.insert(items, 1, redis.call('GET', KEYS[2]) or '0')
+            return items
+            """, List.class);
+
+    /**
+     * 截断到最近的ARGV[1]条消息，ARGV[2]=失效广播频道，ARGV[3]=广播内容；返回{删除条数, 当前版本号}
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> TRIM_SCRIPT = new DefaultRedisScript<>(MIGRATE_LEGACY + """
+            local before = redis.call('LLEN', KEYS[1])
+            redis.call('LTRIM', KEYS[1], -tonumber(ARGV[1]), -1)
+            local removed = before - redis.call('LLEN', KEYS[1])
+            local version = tonumber(redis.call('GET', KEYS[2]) or '0')
+            if removed > 0 then
+              version = redis.call('INCR', KEYS[2])
+              redis.call('PUBLISH', ARGV[2], ARGV[3] .. '|' .. version)
+            end
+            return {removed, version}
+            """, List.class);
+
+    /**
+     * 存储上限，送入模型的部分由上下文窗口按Token预算另行选取
+     */
+    @Value("${app.chat.history.max-stored-messages:200}")
+    private int maxStoredMessages;
+
+    @Value("${app.chat.history.near-cache.enabled:true}")
+    private boolean nearCacheEnabled;
+
+    @Value("${app.chat.history.near-cache.max-conversations:10000}")
+    private int nearCacheMaxConversations;
+
+    @Value("${app.chat.history.near-cache.ttl:10m}")
+    private Duration nearCacheTtl;
+
+    /**
+     * 本地副本在该间隔内直接使用，超过后读取时与Redis比对一次版本号
+     */
+    @Value("${app.chat.history.near-cache.version-refresh:30s}")
+    private Duration versionRefresh;
+
+    private HistoryNearCache nearCache;
+
+    private Map<String, HistorySummary> summaryCache;
+
     // 临时存储虚拟消息，不持久化到Redis
     private final Map<String, List<Content>> virtualHistoryCache = new ConcurrentHashMap<>();
 
+    @PostConstruct
+    public void init() {
+        nearCache = new HistoryNearCache(Math.max(1, nearCacheMaxConversations), nearCacheTtl.toMillis(),
+                versionRefresh.toMillis());
+        int maxSummaries = Math.max(1, nearCacheMaxConversations);
+        summaryCache = Collections.synchronizedMap(new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HistorySummary> eldest) {
+                return size() > maxSummaries;
+            }
+        });
+        listenerContainer.addMessageListener((message, pattern) ->
+                onInvalidation(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(INVALIDATION_CHANNEL));
+    }
+
     /**
      * 简化的消息类，用于序列化
      */
     public static class SerializableMessage {
         public String role;
         public String text;
-        
+        public Integer tokens; // 写入时估算的Token数，旧数据为空
+        public Long seq; // 写入时分配的序号，旧数据为空
+
         public SerializableMessage() {}
-        
+
         public SerializableMessage(String role, String text) {
             this.role = role;
             this.text = text;
+            this.tokens = TokenEstimator.estimateMessage(text);
+        }
+    }
+
+    /**
+     * 持久化历史中的一条消息：已构建的Content、估算Token数和序号
+     */
+    public record HistoryMessage(Content content, int tokens, long seq) {}
+
+    /**
+     * 被移出上下文窗口的早期对话的滚动摘要，覆盖序号不大于throughSeq的消息
+     */
+    public record HistorySummary(String text, long throughSeq, int tokens) {
+        public static final HistorySummary NONE = new HistorySummary("", 0, 0);
+
+        public boolean hasText() {
+            return text != null && !text.isEmpty();
         }
     }
 
@@ -51,7 +192,7 @@ public class ChatMemoryService {
      * 添加用户消息到对话历史
      */
     public void addUserMessage(String conversationId, String message) {
-        SerializableMessage userMessage = new SerializableMessage("user", message);
+        SerializableMessage userMessage = new SerializableMessage(ROLE_USER, message);
         addToHistory(conversationId, userMessage);
     }
 
@@ -59,113 +200,281 @@ public class ChatMemoryService {
      * 添加助手消息到对话历史
      */
     public void addAssistantMessage(String conversationId, String message) {
-        SerializableMessage assistantMessage = new SerializableMessage("model", message);
+        SerializableMessage assistantMessage = new SerializableMessage(ROLE_MODEL, message);
         addToHistory(conversationId, assistantMessage);
     }
 
+    /**
+     * 添加一轮完整对话（用户消息和助手回复一次写入）
+     */
+    public void addTurn(String conversationId, String userMessage, String assistantMessage) {
+        addToHistory(conversationId, List.of(
+                new SerializableMessage(ROLE_USER, userMessage),
+                new SerializableMessage(ROLE_MODEL, assistantMessage)));
+    }
+
     /**
      * 获取对话历史（包含虚拟消息）
+     * 近端缓存命中时不访问Redis
      */
     public List<Content> getHistory(String conversationId) {
-        String key = CHAT_HISTORY_PREFIX + conversationId;
-        String historyJson = redisTemplate.opsForValue().get(key);
-        
-        List<Content> history = new ArrayList<>();
-        if (historyJson != null) {
-            try {
-                List<SerializableMessage> messages = objectMapper.readValue(
-                        historyJson, new TypeReference<List<SerializableMessage>>() {});
-                
-                for (SerializableMessage msg : messages) {
-                    Content content = Content.fromParts(Part.fromText(msg.text));
-                    // 注意：新SDK中role通过不同的方法处理，这里暂时简化
-                    history.add(content);
-                }
-            } catch (Exception e) {
-                log.error("解析对话历史失败: conversationId={}", conversationId, e);
-            }
-        }
-        
+        List<Content> history = new ArrayList<>(loadHistory(conversationId).contents());
+
         // 添加虚拟消息（如果有）
         List<Content> virtualMessages = virtualHistoryCache.get(conversationId);
         if (virtualMessages != null && !virtualMessages.isEmpty()) {
             history.addAll(virtualMessages);
             log.debug("添加虚拟消息到历史: conversationId={}, 虚拟消息数={}", conversationId, virtualMessages.size());
         }
-        
+
         log.debug("获取对话历史: conversationId={}, 消息数量={}", conversationId, history.size());
         return history;
     }
 
+    /**
+     * 获取持久化的历史（不含虚拟消息），返回不可变列表
+     * 其中的Content对象在写入时构建一次，之后各轮对话直接复用，调用方在此基础上拼接请求
+     */
+    public List<Content> getHistoryPrefix(String conversationId) {
+        return loadHistory(conversationId).contents();
+    }
+
+    /**
+     * 获取持久化的历史消息及其Token估算和序号，返回不可变列表
+     */
+    public List<HistoryMessage> getHistoryMessages(String conversationId) {
+        return loadHistory(conversationId).messages();
+    }
+
+    /**
+     * 获取当前的虚拟消息（不可变副本）
+     */
+    public List<Content> getVirtualHistory(String conversationId) {
+        List<Content> virtualMessages = virtualHistoryCache.get(conversationId);
+        return virtualMessages != null ? List.copyOf(virtualMessages) : List.of();
+    }
+
+    /**
+     * 读取持久化的历史：本地副本最近确认过版本时直接使用，否则与Redis中的版本号一致时使用
+     */
+    private CachedHistory loadHistory(String conversationId) {
+        String key = CHAT_HISTORY_PREFIX + conversationId;
+        try {
+            if (nearCacheEnabled) {
+                HistoryNearCache.Lookup cached = nearCache.get(conversationId);
+                if (cached != null) {
+                    if (cached.verified()) {
+                        return cached.history();
+                    }
+                    if (cached.history().version() == currentVersion(conversationId)) {
+                        nearCache.markVerified(conversationId, cached.history().version());
+                        return cached.history();
+                    }
+                }
+            }
+
+            List<?> result = redisTemplate.execute(READ_SCRIPT, List.of(key, VERSION_PREFIX + conversationId));
+            if (result == null || result.isEmpty()) {
+                return CachedHistory.EMPTY;
+            }
+            long version = Long.parseLong(String.valueOf(result.get(0)));
+            List<HistoryMessage> messages = new ArrayList<>(result.size() - 1);
+            for (int i = 1; i < result.size(); i++) {
+                SerializableMessage msg = decode(conversationId, String.valueOf(result.get(i)));
+                if (msg != null) {
+                    // 旧数据没有序号，按位置编号，均早于任何新写入的消息
+                    messages.add(toHistoryMessage(msg, msg.seq != null ? msg.seq : i));
+                }
+            }
+            CachedHistory loaded = CachedHistory.of(version, messages);
+            if (nearCacheEnabled) {
+                // 读取期间本节点可能已追加消息，只在快照不旧于已知版本时写入近端缓存
+                nearCache.putIfNewer(conversationId, loaded);
+            }
+            return loaded;
+        } catch (Exception e) {
+            log.error("读取对话历史失败: conversationId={}", conversationId, e);
+            return CachedHistory.EMPTY;
+        }
+    }
+
+    private long currentVersion(String conversationId) {
+        String version = redisTemplate.opsForValue().get(VERSION_PREFIX + conversationId);
+        return version != null ? Long.parseLong(version) : 0;
+    }
+
+    private HistoryMessage toHistoryMessage(SerializableMessage msg, long seq) {
+        int tokens = msg.tokens != null ? msg.tokens : TokenEstimator.estimateMessage(msg.text);
+        return new HistoryMessage(toContent(msg), tokens, seq);
+    }
+
+    private Content toContent(SerializableMessage msg) {
+        String role = ROLE_MODEL.equals(msg.role) ? ROLE_MODEL : ROLE_USER;
+        return Content.builder()
+                .role(role)
+                .parts(List.of(Part.fromText(msg.text != null ? msg.text : "")))
+                .build();
+    }
+
     /**
      * 添加消息到对话历史
      */
     private void addToHistory(String conversationId, SerializableMessage message) {
+        addToHistory(conversationId, List.of(message));
+    }
+
+    /**
+     * 追加消息到对话历史，追加、截断和续期在一次脚本调用中完成，并发写入不会互相覆盖
+     */
+    private void addToHistory(String conversationId, List<SerializableMessage> messages) {
         String key = CHAT_HISTORY_PREFIX + conversationId;
-        
+
         try {
-            // 获取现有历史
-            List<SerializableMessage> history = new ArrayList<>();
-            String existingJson = redisTemplate.opsForValue().get(key);
-            if (existingJson != null) {
-                history = objectMapper.readValue(existingJson, new TypeReference<List<SerializableMessage>>() {});
-            }
-            
-            // 添加新消息
-            history.add(message);
-            
-            // 限制历史长度
-            if (history.size() > 50) { // 最多保留50条消息
-                history = history.subList(history.size() - 50, history.size());
-            }
-            
-            // 保存更新后的历史
-            String updatedJson = objectMapper.writeValueAsString(history);
-            redisTemplate.opsForValue().set(key, updatedJson, Duration.ofMinutes(DEFAULT_EXPIRE_MINUTES));
-            
-            log.debug("添加消息到对话历史: conversationId={}, role={}", conversationId, message.role);
-            
+            // 序号按写入时间递增，同一批次内按顺序编号
+            long baseSeq = System.currentTimeMillis() * 1000;
+            for (int i = 0; i < messages.size(); i++) {
+                messages.get(i).seq = baseSeq + i;
+            }
+
+            Object[] args = new Object[messages.size() + 4];
+            args[0] = String.valueOf(maxStoredMessages);
+            args[1] = String.valueOf(DEFAULT_EXPIRE_MINUTES * 60);
+            args[2] = INVALIDATION_CHANNEL;
+            args[3] = NODE_ID + "|" + conversationId;
+            for (int i = 0; i < messages.size(); i++) {
+                args[i + 4] = objectMapper.writeValueAsString(messages.get(i));
+            }
+            List<?> result = redisTemplate.execute(APPEND_SCRIPT, List.of(key, VERSION_PREFIX + conversationId), args);
+            Long version = result != null && result.size() == 2 ? ((Number) result.get(0)).longValue() : null;
+
+            if (nearCacheEnabled && version != null) {
+                List<HistoryMessage> appended = new ArrayList<>(messages.size());
+                for (SerializableMessage message : messages) {
+                    appended.add(toHistoryMessage(message, message.seq));
+                }
+                long length = ((Number) result.get(1)).longValue();
+                nearCache.append(conversationId, version, appended, length, maxStoredMessages);
+            }
+
+            log.debug("添加消息到对话历史: conversationId={}, 新增消息数={}, version={}",
+                    conversationId, messages.size(), version);
+
         } catch (Exception e) {
+            if (nearCacheEnabled) {
+                nearCache.remove(conversationId);
+            }
             log.error("保存对话历史失败: conversationId={}", conversationId, e);
         }
     }
 
+    private SerializableMessage decode(String conversationId, String encoded) {
+        try {
+            return objectMapper.readValue(encoded, SerializableMessage.class);
+        } catch (JsonProcessingException e) {
+            log.warn("跳过无法解析的历史消息: conversationId={}, error={}", conversationId, e.getMessage());
+            return null;
+        }
+    }
+
     /**
      * 清除对话历史
      */
     public void clearHistory(String conversationId) {
         String key = CHAT_HISTORY_PREFIX + conversationId;
-        redisTemplate.delete(key);
+        redisTemplate.delete(List.of(key, VERSION_PREFIX + conversationId, SUMMARY_PREFIX + conversationId));
+        redisTemplate.convertAndSend(INVALIDATION_CHANNEL, NODE_ID + "|" + conversationId + "|0");
+        if (nearCacheEnabled) {
+            nearCache.remove(conversationId);
+        }
+        summaryCache.remove(conversationId);
         log.debug("清除对话历史: conversationId={}", conversationId);
     }
 
     /**
      * 限制对话历史长度，保留最近的消息
+     * 本地副本可能落后于其他节点的写入，不能据此跳过截断；未超出上限时脚本不修改版本号
      */
     public void limitHistory(String conversationId, int maxMessages) {
         String key = CHAT_HISTORY_PREFIX + conversationId;
-        String historyJson = redisTemplate.opsForValue().get(key);
-        
-        if (historyJson != null) {
-            try {
-                List<SerializableMessage> history = objectMapper.readValue(
-                        historyJson, new TypeReference<List<SerializableMessage>>() {});
-                
-                if (history.size() > maxMessages) {
-                    List<SerializableMessage> limitedHistory = history.subList(
-                            history.size() - maxMessages, history.size());
-                    
-                    String updatedJson = objectMapper.writeValueAsString(limitedHistory);
-                    redisTemplate.opsForValue().set(key, updatedJson, Duration.ofMinutes(DEFAULT_EXPIRE_MINUTES));
-                    
-                    log.debug("限制对话历史长度: conversationId={}, 保留消息数={}", conversationId, maxMessages);
-                }
-            } catch (Exception e) {
-                log.error("限制对话历史失败: conversationId={}", conversationId, e);
+        try {
+            List<?> result = redisTemplate.execute(TRIM_SCRIPT, List.of(key, VERSION_PREFIX + conversationId),
+                    String.valueOf(maxMessages), INVALIDATION_CHANNEL, NODE_ID + "|" + conversationId);
+            if (result == null || result.size() < 2) {
+                return;
+            }
+            long removed = ((Number) result.get(0)).longValue();
+            long version = ((Number) result.get(1)).longValue();
+            if (nearCacheEnabled && removed > 0) {
+                nearCache.trim(conversationId, version, maxMessages);
             }
+            log.debug("限制对话历史长度: conversationId={}, 删除消息数={}, 保留消息数上限={}", conversationId, removed, maxMessages);
+        } catch (Exception e) {
+            log.error("限制对话历史失败: conversationId={}", conversationId, e);
+        }
+    }
+
+    /**
+     * 其他节点修改了历史，版本号与本地副本不一致时丢弃本地副本
+     * 广播内容格式：节点ID|会话ID|版本号
+     */
+    private void onInvalidation(String payload) {
+        String[] parts = payload.split("\\|");
+        if (parts.length != 3 || NODE_ID.equals(parts[0]) || !nearCacheEnabled) {
+            return;
+        }
+        try {
+            String conversationId = parts[1];
+            long version = Long.parseLong(parts[2]);
+            nearCache.invalidateUnlessVersion(conversationId, version);
+            if (version == 0) {
+                // 历史被清除，摘要同时失效
+                summaryCache.remove(conversationId);
+            }
+        } catch (NumberFormatException e) {
+            log.warn("无效的对话历史失效通知: {}", payload);
         }
     }
-    
+
+    /**
+     * 获取滚动摘要，优先使用本地副本，没有摘要时返回NONE
+     */
+    public HistorySummary getSummary(String conversationId) {
+        HistorySummary cached = summaryCache.get(conversationId);
+        return cached != null ? cached : reloadSummary(conversationId);
+    }
+
+    /**
+     * 从Redis重新读取滚动摘要（其他节点可能已更新）
+     */
+    public HistorySummary reloadSummary(String conversationId) {
+        HistorySummary summary = HistorySummary.NONE;
+        try {
+            String encoded = redisTemplate.opsForValue().get(SUMMARY_PREFIX + conversationId);
+            if (encoded != null) {
+                summary = objectMapper.readValue(encoded, HistorySummary.class);
+            }
+        } catch (Exception e) {
+            log.warn("读取对话摘要失败: conversationId={}, error={}", conversationId, e.getMessage());
+        }
+        summaryCache.put(conversationId, summary);
+        return summary;
+    }
+
+    /**
+     * 保存滚动摘要，过期时间与对话历史一致
+     */
+    public void saveSummary(String conversationId, HistorySummary summary) {
+        try {
+            redisTemplate.opsForValue().set(SUMMARY_PREFIX + conversationId,
+                    objectMapper.writeValueAsString(summary), Duration.ofMinutes(DEFAULT_EXPIRE_MINUTES));
+            summaryCache.put(conversationId, summary);
+            log.debug("保存对话摘要: conversationId={}, throughSeq={}, tokens={}",
+                    conversationId, summary.throughSeq(), summary.tokens());
+        } catch (Exception e) {
+            log.error("保存对话摘要失败: conversationId={}", conversationId, e);
+        }
+    }
+
     /**
      * 添加虚拟消息到对话历史（不持久化）
      */
@@ -173,10 +482,10 @@ public class ChatMemoryService {
         List<Content> virtualMessages = virtualHistoryCache.computeIfAbsent(conversationId, k -> new ArrayList<>());
         virtualMessages.add(aiMessage);
         virtualMessages.add(userMessage);
-        
+
         log.debug("添加虚拟消息到缓存: conversationId={}, 当前虚拟消息数={}", conversationId, virtualMessages.size());
     }
-    
+
     /**
      * 清除虚拟消息缓存
      */
@@ -184,7 +493,7 @@ public class ChatMemoryService {
         virtualHistoryCache.remove(conversationId);
         log.debug("清除虚拟消息缓存: conversationId={}", conversationId);
     }
-    
+
     /**
      * 清除所有虚拟消息缓存
      */
@@ -192,4 +501,157 @@ public class ChatMemoryService {
         virtualHistoryCache.clear();
         log.debug("清除所有虚拟消息缓存");
     }
-}
\ No newline at end of file
+
+    /**
+     * 已解析的持久化历史及其版本号，contents为messages中Content的视图，构建一次后复用
+     */
+    private record CachedHistory(long version, List<HistoryMessage> messages, List<Content> contents) {
+        static final CachedHistory EMPTY = new CachedHistory(0, List.of(), List.of());
+
+        static CachedHistory of(long version, List<HistoryMessage> messages) {
+            List<Content> contents = new ArrayList<>(messages.size());
+            for (HistoryMessage message : messages) {
+                contents.add(message.content());
+            }
+            return new CachedHistory(version, List.copyOf(messages), List.copyOf(contents));
+        }
+    }
+
+    /**
+     * 按会话数量和存活时间限制的近端缓存，访问顺序淘汰
+     * 另外记录每个会话已知的最新版本号（本地副本被丢弃后仍保留），较旧的快照不会再写入。
+     * 写入的副本都来自Redis脚本的返回，写入时视为已确认版本
+     */
+    private static final class HistoryNearCache {
+
+        private final int maxEntries;
+        private final long ttlMillis;
+        private final long versionRefreshMillis;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+        private final LinkedHashMap<String, Long> latestVersions = new LinkedHashMap<>(256, 0.75f, true);
+
+        private record Entry(CachedHistory history, long expiresAt, long verifiedAt) {}
+
+        /**
+         * 查找结果，verified表示在version-refresh间隔内确认过版本，可不访问Redis直接使用
+         */
+        record Lookup(CachedHistory history, boolean verified) {}
+
+        HistoryNearCache(int maxEntries, long ttlMillis, long versionRefreshMillis) {
+            this.maxEntries = maxEntries;
+            this.ttlMillis = ttlMillis;
+            this.versionRefreshMillis = versionRefreshMillis;
+        }
+
+        synchronized Lookup get(String conversationId) {
+            Entry entry = entries.get(conversationId);
+            if (entry == null) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (entry.expiresAt() < now) {
+                entries.remove(conversationId);
+                return null;
+            }
+            return new Lookup(entry.history(), now - entry.verifiedAt() < versionRefreshMillis);
+        }
+
+        /**
+         * 本地副本与Redis版本一致，重新开始计算确认间隔
+         */
+        synchronized void markVerified(String conversationId, long version) {
+            Entry entry = entries.get(conversationId);
+            if (entry != null && entry.history().version() == version) {
+                entries.put(conversationId, new Entry(entry.history(), entry.expiresAt(), System.currentTimeMillis()));
+            }
+        }
+
+        synchronized void put(String conversationId, CachedHistory history) {
+            long now = System.currentTimeMillis();
+            entries.put(conversationId, new Entry(history, now + ttlMillis, now));
+            if (entries.size() > maxEntries) {
+                entries.remove(entries.keySet().iterator().next());
+            }
+            seen(conversationId, history.version());
+        }
+
+        /**
+         * 写入从Redis读取的快照，版本低于已知版本（读取后本节点又有写入）时丢弃
+         */
+        synchronized void putIfNewer(String conversationId, CachedHistory history) {
+            Long latest = latestVersions.get(conversationId);
+            if (latest != null && history.version() < latest) {
+                return;
+            }
+            put(conversationId, history);
+        }
+
+        /**
+         * 写穿：本地副本恰好是上一个版本时直接追加，否则说明有其他写入，丢弃本地副本
+         */
+        synchronized void append(String conversationId, long version, List<HistoryMessage> appended, long length,
+                                 int maxMessages) {
+            seen(conversationId, version);
+            Entry entry = entries.get(conversationId);
+            if (entry == null) {
+                if (length == appended.size()) {
+                    // 列表中只有本次写入的消息（如新会话的第一轮），本地即为完整历史
+                    put(conversationId, CachedHistory.of(version, appended));
+                }
+                return;
+            }
+            if (entry.history().version() != version - 1) {
+                entries.remove(conversationId);
+                return;
+            }
+            List<HistoryMessage> messages = new ArrayList<>(entry.history().messages());
+            messages.addAll(appended);
+            if (messages.size() > maxMessages) {
+                messages = messages.subList(messages.size() - maxMessages, messages.size());
+            }
+            put(conversationId, CachedHistory.of(version, messages));
+        }
+
+        synchronized void trim(String conversationId, long version, int maxMessages) {
+            seen(conversationId, version);
+            Entry entry = entries.get(conversationId);
+            if (entry == null) {
+                return;
+            }
+            if (entry.history().version() != version - 1) {
+                entries.remove(conversationId);
+                return;
+            }
+            List<HistoryMessage> messages = entry.history().messages();
+            if (messages.size() > maxMessages) {
+                messages = messages.subList(messages.size() - maxMessages, messages.size());
+            }
+            put(conversationId, CachedHistory.of(version, messages));
+        }
+
+        synchronized void invalidateUnlessVersion(String conversationId, long version) {
+            if (version == 0) {
+                // 历史被清除，版本号从头计数
+                remove(conversationId);
+                return;
+            }
+            seen(conversationId, version);
+            Entry entry = entries.get(conversationId);
+            if (entry != null && entry.history().version() != version) {
+                entries.remove(conversationId);
+            }
+        }
+
+        synchronized void remove(String conversationId) {
+            entries.remove(conversationId);
+            latestVersions.remove(conversationId);
+        }
+
+        private void seen(String conversationId, long version) {
+            latestVersions.merge(conversationId, version, Math::max);
+            if (latestVersions.size() > maxEntries) {
+                latestVersions.remove(latestVersions.keySet().iterator().next());
+            }
+        }
+    }
+}
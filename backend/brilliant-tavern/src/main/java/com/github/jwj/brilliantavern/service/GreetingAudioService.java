@@ -0,0 +1,259 @@
+package com.github.jwj.brilliantavern.service;
+
+import com.github.jwj.brilliantavern.config.TTSConfig;
+import com.github.jwj.brilliantavern.entity.CharacterCard;
+import com.github.jwj.brilliantavern.repository.CharacterCardRepository;
+import com.github.jwj.brilliantavern.service.tts.CachedTTSAudio;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 角色卡开场白语音预生成服务
+ * 开场白或音色变化后在后台合成语音并保存，创建会话时直接返回音频地址，开场无需等待TTS。
+ * 每次提交合成时记录角色卡的期望版本，合成完成后只有指纹仍是期望版本才切换当前版本，
+ * 晚到的旧版本结果直接丢弃，不会覆盖或删除更新的音频
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class GreetingAudioService {
+
+    private static final String AUDIO_KEY_PREFIX = "tts:greeting:";
+    private static final String CURRENT_SUFFIX = ":current";
+    private static final String EXPECTED_SUFFIX = ":expected";
+
+    /**
+     * 指纹仍是期望版本时切换当前版本，返回被替换的旧指纹（没有旧版本时为空串）；
+     * 已不是期望版本时删除刚写入的音频并返回nil。
+     * KEYS[1]=期望版本，KEYS[2]=当前版本，KEYS[3]=本次音频；ARGV[1]=指纹，ARGV[2]=过期秒数
+     */
+    private static final RedisScript<String> SWAP_CURRENT_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('GET', KEYS[1]) ~= ARGV[1] then
+              redis.call('DEL', KEYS[3])
+              return false
+            end
+            local previous = redis.call('GET', KEYS[2])
+            redis.call('SET', KEYS[2], ARGV[1], 'EX', ARGV[2])
+            return previous or ''
+            """, String.class);
+
+    /**
+     * 删除指定指纹的音频，期望版本和当前版本仍指向该指纹时一并清除
+     * KEYS[1]=期望版本，KEYS[2]=当前版本，KEYS[3]=音频；ARGV[1]=指纹
+     */
+    private static final RedisScript<Long> DROP_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('GET', KEYS[1]) == ARGV[1] then
+              redis.call('DEL', KEYS[1])
+            end
+            if redis.call('GET', KEYS[2]) == ARGV[1] then
+              redis.call('DEL', KEYS[2])
+            end
+            return redis.call('DEL', KEYS[3])
+            """, Long.class);
+
+    private final TTSManagerService ttsManagerService;
+    private final RedisTemplate<String, byte[]> binaryRedisTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CharacterCardRepository characterCardRepository;
+
+    @Value("${app.tts.greeting.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.tts.greeting.ttl:30d}")
+    private Duration ttl;
+
+    @Value("${app.tts.greeting.timeout:60s}")
+    private Duration timeout;
+
+    @Value("${app.tts.greeting.base-url:/api/public/greeting-audio}")
+    private String baseUrl;
+
+    // 正在合成的开场白，避免同一内容重复提交
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 在当前事务提交后预生成开场白语音；没有事务时立即提交
+     */
+    public void precomputeAfterCommit(UUID cardId, String greeting, String referenceId) {
+        if (!enabled || cardId == null || !StringUtils.hasText(greeting)) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    precompute(cardId, greeting, referenceId);
+                }
+            });
+        } else {
+            precompute(cardId, greeting, referenceId);
+        }
+    }
+
+    /**
+     * 后台合成开场白语音并保存
+     */
+    public void precompute(UUID cardId, String greeting, String referenceId) {
+        if (!enabled || !StringUtils.hasText(greeting)) {
+            return;
+        }
+        String voiceId = resolveVoiceId(referenceId);
+        String fingerprint = fingerprint(greeting, voiceId);
+        try {
+            // 最近一次提交的版本为期望版本，之前仍在合成的版本完成后会被丢弃
+            stringRedisTemplate.opsForValue().set(cardKey(cardId, EXPECTED_SUFFIX), fingerprint, ttl);
+        } catch (Exception e) {
+            log.warn("记录开场白期望版本失败: cardId={}, error={}", cardId, e.getMessage());
+            return;
+        }
+        String taskKey = cardId + ":" + fingerprint;
+        if (!inFlight.add(taskKey)) {
+            return;
+        }
+
+        log.info("开始预生成开场白语音: cardId={}, voiceId={}", cardId, voiceId);
+        ttsManagerService.generateSpeechWithVoice(greeting.trim(), voiceId)
+                .timeout(timeout)
+                .publishOn(Schedulers.boundedElastic())
+                .doOnNext(response -> {
+                    if (!Boolean.TRUE.equals(response.getSuccess()) || response.getAudioData() == null) {
+                        log.warn("开场白语音生成失败: cardId={}, error={}", cardId, response.getErrorMessage());
+                        return;
+                    }
+                    store(cardId, fingerprint, response.getAudioFormat(), response.getAudioData());
+                })
+                .doOnError(error -> log.warn("开场白语音生成异常: cardId={}, error={}", cardId, error.getMessage()))
+                .doFinally(signal -> inFlight.remove(taskKey))
+                .onErrorResume(error -> Mono.empty())
+                .subscribe();
+    }
+
+    /**
+     * 查找与当前开场白和音色匹配的预生成语音（阻塞调用）
+     * 尚未生成时返回null，并在后台补充生成
+     */
+    public GreetingAudio findReady(UUID cardId, String greeting, String referenceId) {
+        if (!enabled || cardId == null || !StringUtils.hasText(greeting)) {
+            return null;
+        }
+        String fingerprint = fingerprint(greeting, resolveVoiceId(referenceId));
+        try {
+            if (Boolean.TRUE.equals(binaryRedisTemplate.hasKey(audioKey(cardId, fingerprint)))) {
+                return new GreetingAudio(baseUrl + "/" + cardId + "/" + fingerprint, fingerprint);
+            }
+        } catch (Exception e) {
+            log.warn("查询开场白语音失败: cardId={}, error={}", cardId, e.getMessage());
+            return null;
+        }
+        // 历史角色卡或生成尚未完成，后台补充生成，下次创建会话即可使用
+        precompute(cardId, greeting, referenceId);
+        return null;
+    }
+
+    /**
+     * 删除使用该音色合成的开场白语音（阻塞调用）
+     * 同时清除期望版本，该音色正在合成的开场白完成后直接丢弃
+     */
+    public void invalidateVoice(String referenceId) {
+        if (!StringUtils.hasText(referenceId)) {
+            return;
+        }
+        int dropped = 0;
+        for (CharacterCard card : characterCardRepository.findByTtsVoiceId(referenceId)) {
+            if (!StringUtils.hasText(card.getGreetingMessage())) {
+                continue;
+            }
+            UUID cardId = card.getId();
+            String fingerprint = fingerprint(card.getGreetingMessage(), referenceId);
+            try {
+                stringRedisTemplate.execute(DROP_SCRIPT, List.of(cardKey(cardId, EXPECTED_SUFFIX),
+                        cardKey(cardId, CURRENT_SUFFIX), audioKey(cardId, fingerprint)), fingerprint);
+                dropped++;
+            } catch (Exception e) {
+                log.warn("删除开场白语音失败: cardId={}, error={}", cardId, e.getMessage());
+            }
+        }
+        log.info("音色的开场白语音已删除: referenceId={}, cards={}", referenceId, dropped);
+    }
+
+    /**
+     * 读取预生成的开场白语音（阻塞调用）
+     */
+    public CachedTTSAudio load(UUID cardId, String fingerprint) {
+        byte[] data = binaryRedisTemplate.opsForValue().get(audioKey(cardId, fingerprint));
+        return CachedTTSAudio.decode(data);
+    }
+
+    private void store(UUID cardId, String fingerprint, TTSConfig.AudioFormat format, byte[] audio) {
+        try {
+            CachedTTSAudio entry = new CachedTTSAudio(format, null, null, null, List.of(audio));
+            binaryRedisTemplate.opsForValue().set(audioKey(cardId, fingerprint), entry.encode(), ttl);
+
+            // 仍是期望版本时切换当前版本并删除旧版本的音频，否则丢弃本次结果
+            String previous = stringRedisTemplate.execute(SWAP_CURRENT_SCRIPT,
+                    List.of(cardKey(cardId, EXPECTED_SUFFIX), cardKey(cardId, CURRENT_SUFFIX), audioKey(cardId, fingerprint)),
+                    fingerprint, String.valueOf(ttl.toSeconds()));
+            if (previous == null) {
+                log.info("开场白已变更，丢弃过期的开场白语音: cardId={}, fingerprint={}", cardId, fingerprint);
+                return;
+            }
+            if (!previous.isEmpty() && !previous.equals(fingerprint)) {
+                binaryRedisTemplate.delete(audioKey(cardId, previous));
+            }
+            log.info("开场白语音预生成完成: cardId={}, size={}B", cardId, audio.length);
+        } catch (Exception e) {
+            log.warn("保存开场白语音失败: cardId={}, error={}", cardId, e.getMessage());
+        }
+    }
+
+    private String audioKey(UUID cardId, String fingerprint) {
+        return AUDIO_KEY_PREFIX + cardId + ":" + fingerprint;
+    }
+
+    private String cardKey(UUID cardId, String suffix) {
+        return AUDIO_KEY_PREFIX + cardId + suffix;
+    }
+
+    private String resolveVoiceId(String referenceId) {
+        return StringUtils.hasText(referenceId) ? referenceId : "default";
+    }
+
+    private String fingerprint(String greeting, String voiceId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((greeting.trim() + '\u0000' + voiceId).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256不可用", e);
+        }
+    }
+
+    /**
+     * 预生成的开场白语音引用
+     *
+     * @param url 音频访问地址
+     * @param fingerprint 开场白和音色的内容指纹
+     */
+    public record GreetingAudio(String url, String fingerprint) {}
+}
@@ -1,137 +1,407 @@
 package com.github.jwj.brilliantavern.service;
 
-import lombok.RequiredArgsConstructor;
+import com.github.jwj.brilliantavern.service.tts.CachedTTSAudio;
+import jakarta.annotation.PostConstruct;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
 
-import java.util.Base64;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 /**
- * TTS测试语音缓存服务
- * 使用Spring Cache来缓存测试语音，提高响应速度
+ * TTS合成音频缓存服务
+ * 以规范化文本、音色、输出格式和采样参数的SHA-256作为键，
+ * 本地有界LRU作为一级缓存，Redis保存原始字节作为二级缓存。
+ * 每个音色的键带有版本号，失效时只需递增版本并广播给所有节点，无需扫描键空间
  */
 @Service
 @Slf4j
-@RequiredArgsConstructor
 public class TTSCacheService {
 
-    // 前端固定的测试文本
-    public static final String TEST_TEXT = "这是一个语音测试，用来演示音色效果。";
+    private static final String KEY_PREFIX = "tts:audio:";
+    private static final String FREQUENCY_PREFIX = "tts:audio:freq:";
+    private static final String VERSION_PREFIX = "tts:audio:ver:";
+    private static final String INVALIDATION_CHANNEL = "tts:audio:invalidate";
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+    private static final int STATS_LOG_INTERVAL = 200;
 
-    private static final String CACHE_NAME = "tts-test-audio";
+    private final RedisTemplate<String, byte[]> binaryRedisTemplate;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
 
-    private final CacheManager cacheManager;
+    @Value("${app.tts.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.tts.cache.ttl:24h}")
+    private Duration ttl;
+
+    @Value("${app.tts.cache.local-ttl:10m}")
+    private Duration localTtl;
+
+    @Value("${app.tts.cache.max-entry-size:2MB}")
+    private DataSize maxEntrySize;
+
+    @Value("${app.tts.cache.admit-max-text-length:40}")
+    private int admitMaxTextLength;
+
+    @Value("${app.tts.cache.admit-min-frequency:2}")
+    private int admitMinFrequency;
+
+    @Value("${app.tts.cache.frequency-window:24h}")
+    private Duration frequencyWindow;
+
+    @Value("${app.tts.cache.version-refresh:60s}")
+    private Duration versionRefresh;
+
+    private final LocalAudioCache localCache;
+
+    // 各音色当前的缓存版本，收到失效广播时立即更新，其余情况按间隔从Redis刷新
+    private final Map<String, VoiceVersion> voiceVersions = new ConcurrentHashMap<>();
+
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public TTSCacheService(RedisTemplate<String, byte[]> binaryRedisTemplate,
+                           StringRedisTemplate stringRedisTemplate,
+                           RedisMessageListenerContainer listenerContainer,
+                           @Value("${app.tts.cache.local-max-size:32MB}") DataSize localMaxSize) {
+        this.binaryRedisTemplate = binaryRedisTemplate;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.listenerContainer = listenerContainer;
+        this.localCache = new LocalAudioCache(localMaxSize.toBytes());
+    }
+
+    @PostConstruct
+    public void subscribeInvalidation() {
+        listenerContainer.addMessageListener((message, pattern) ->
+                onInvalidation(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(INVALIDATION_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
 
     /**
-     * 检查文本是否为测试文本
+     * 计算缓存键
+     *
+     * @param text 合成文本
+     * @param referenceId 音色引用ID
+     * @param profile 输出格式和采样参数描述，由TTS实现提供
      */
-    public boolean isTestText(String text) {
-        return TEST_TEXT.equals(text);
+    public CacheKey keyFor(String text, String referenceId, String profile) {
+        String normalized = normalizeText(text);
+        String voice = referenceId != null ? referenceId : "default";
+        String hash = sha256(normalized + '\u0000' + voice + '\u0000' + profile);
+        return new CacheKey(voice, hash, normalized.length());
     }
 
     /**
-     * 生成缓存键（供SpEL表达式使用）
+     * 只查询本地缓存，不访问Redis，可在任意线程调用
      */
-    public String generateCacheKey(String text, String voiceId) {
-        return (voiceId != null ? voiceId : "default") + ":" + text.hashCode();
+    public CachedTTSAudio getLocal(CacheKey key) {
+        if (!enabled) {
+            return null;
+        }
+        VoiceVersion version = voiceVersions.get(key.referenceId());
+        if (version == null) {
+            return null;
+        }
+        CachedTTSAudio audio = localCache.get(key.hash(), version.version());
+        if (audio != null) {
+            localHits.incrementAndGet();
+            logStatsIfDue();
+        }
+        return audio;
     }
 
     /**
-     * 缓存测试语音
-     * 只有测试文本才会被缓存
+     * 查询Redis缓存，命中后回填本地缓存（阻塞调用）
      */
-    public byte[] getCachedTestAudio(String text, String voiceId) {
-        if (!isTestText(text)) {
+    public CachedTTSAudio getRemote(CacheKey key) {
+        if (!enabled) {
             return null;
         }
-        Cache cache = getCache();
-        String key = generateCacheKey(text, voiceId);
-        Cache.ValueWrapper wrapper = cache.get(key);
-        if (wrapper == null) {
+        try {
+            long version = currentVersion(key.referenceId());
+            CachedTTSAudio audio = CachedTTSAudio.decode(binaryRedisTemplate.opsForValue().get(redisKey(key, version)));
+            if (audio != null) {
+                redisHits.incrementAndGet();
+                localCache.put(key, version, audio, localTtl);
+                log.debug("TTS缓存命中(Redis): voice={}, hash={}", key.referenceId(), key.hash());
+            } else {
+                misses.incrementAndGet();
+            }
+            logStatsIfDue();
+            return audio;
+        } catch (Exception e) {
+            misses.incrementAndGet();
+            log.warn("读取TTS缓存失败: voice={}, error={}", key.referenceId(), e.getMessage());
             return null;
         }
-        Object value = wrapper.get();
-        byte[] bytes = convertToBytes(value, key, cache);
-        if (bytes != null) {
-            log.debug("从缓存获取测试语音: voiceId={}, textLength={}", voiceId, text != null ? text.length() : 0);
-            return bytes;
+    }
+
+    /**
+     * 先查本地再查Redis（阻塞调用）
+     */
+    public CachedTTSAudio get(CacheKey key) {
+        CachedTTSAudio local = getLocal(key);
+        return local != null ? local : getRemote(key);
+    }
+
+    /**
+     * 写入缓存：短文本直接准入，长文本需要在统计窗口内重复出现（阻塞调用）
+     */
+    public void put(CacheKey key, CachedTTSAudio audio) {
+        if (!enabled || audio == null || audio.chunks().isEmpty()) {
+            return;
+        }
+        long size = audio.totalBytes();
+        if (size == 0 || size > maxEntrySize.toBytes() || !shouldAdmit(key)) {
+            rejected.incrementAndGet();
+            return;
+        }
+        try {
+            long version = currentVersion(key.referenceId());
+            binaryRedisTemplate.opsForValue().set(redisKey(key, version), audio.encode(), ttl);
+            localCache.put(key, version, audio, localTtl);
+            stores.incrementAndGet();
+            log.debug("写入TTS缓存: voice={}, hash={}, chunks={}, size={}B",
+                    key.referenceId(), key.hash(), audio.chunks().size(), size);
+        } catch (Exception e) {
+            log.warn("写入TTS缓存失败: voice={}, error={}", key.referenceId(), e.getMessage());
         }
-        return null;
     }
 
-    public void putCachedTestAudio(String text, String voiceId, byte[] audioData) {
-        if (!isTestText(text) || audioData == null || audioData.length == 0) {
+    /**
+     * 使指定音色的全部缓存失效
+     * 递增音色版本号，旧版本的Redis条目不再被访问并随TTL过期；同时广播通知所有节点清除本地条目
+     */
+    public void invalidateVoice(String referenceId) {
+        if (referenceId == null) {
             return;
         }
-        Cache cache = getCache();
-        String key = generateCacheKey(text, voiceId);
-        String encoded = Base64.getEncoder().encodeToString(audioData);
-        cache.put(key, encoded);
-        log.debug("写入测试语音缓存: voiceId={}, textLength={}, size={}B", voiceId,
-                text != null ? text.length() : 0, audioData.length);
+        try {
+            Long version = stringRedisTemplate.opsForValue().increment(VERSION_PREFIX + referenceId);
+            if (version != null) {
+                applyVersion(referenceId, version);
+                stringRedisTemplate.convertAndSend(INVALIDATION_CHANNEL, referenceId + "|" + version);
+            }
+            log.info("音色语音缓存已失效: referenceId={}, version={}", referenceId, version);
+        } catch (Exception e) {
+            localCache.removeVoice(referenceId);
+            voiceVersions.remove(referenceId);
+            log.warn("音色语音缓存失效失败，仅清除本地缓存: referenceId={}, error={}", referenceId, e.getMessage());
+        }
     }
 
     /**
-     * 清除指定音色的所有测试语音缓存
+     * 缓存命中统计
      */
-    public void clearVoiceTestCache(String voiceId) {
-        Cache cache = getCache();
-        cache.clear();
-        log.info("清除音色测试语音缓存: voiceId={}", voiceId);
+    public CacheStats getStats() {
+        return new CacheStats(localHits.get(), redisHits.get(), misses.get(), stores.get(), rejected.get(),
+                localCache.size(), localCache.bytes());
+    }
+
+    private boolean shouldAdmit(CacheKey key) {
+        if (key.textLength() <= admitMaxTextLength) {
+            return true;
+        }
+        try {
+            String frequencyKey = FREQUENCY_PREFIX + key.hash();
+            Long count = stringRedisTemplate.opsForValue().increment(frequencyKey);
+            if (count != null && count == 1L) {
+                stringRedisTemplate.expire(frequencyKey, frequencyWindow);
+            }
+            return count != null && count >= admitMinFrequency;
+        } catch (Exception e) {
+            log.debug("统计TTS文本频率失败: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private String redisKey(CacheKey key, long version) {
+        return KEY_PREFIX + key.referenceId() + ":v" + version + ":" + key.hash();
     }
 
     /**
-     * 清除所有测试语音缓存
+     * 获取音色当前版本（阻塞调用），本地记录过期后从Redis刷新
      */
-    public void clearAllTestCache() {
-        Cache cache = getCache();
-        cache.clear();
-        log.info("清除所有测试语音缓存");
+    private long currentVersion(String referenceId) {
+        VoiceVersion known = voiceVersions.get(referenceId);
+        long now = System.currentTimeMillis();
+        if (known != null && now - known.fetchedAt() < versionRefresh.toMillis()) {
+            return known.version();
+        }
+        String stored = stringRedisTemplate.opsForValue().get(VERSION_PREFIX + referenceId);
+        long version = stored != null ? Long.parseLong(stored) : 0L;
+        applyVersion(referenceId, version);
+        return version;
     }
 
-    private Cache getCache() {
-        Cache cache = cacheManager.getCache(CACHE_NAME);
-        if (cache == null) {
-            throw new IllegalStateException("未找到缓存: " + CACHE_NAME);
+    private void applyVersion(String referenceId, long version) {
+        VoiceVersion previous = voiceVersions.put(referenceId, new VoiceVersion(version, System.currentTimeMillis()));
+        if (previous != null && previous.version() != version) {
+            localCache.removeVoice(referenceId);
         }
-        return cache;
     }
 
-    private byte[] convertToBytes(Object value, String key, Cache cache) {
-        if (value == null) {
-            return null;
+    private void onInvalidation(String payload) {
+        int separator = payload.lastIndexOf('|');
+        if (separator <= 0) {
+            return;
+        }
+        try {
+            String referenceId = payload.substring(0, separator);
+            long version = Long.parseLong(payload.substring(separator + 1));
+            applyVersion(referenceId, version);
+            log.debug("收到音色缓存失效通知: referenceId={}, version={}", referenceId, version);
+        } catch (NumberFormatException e) {
+            log.warn("无效的音色缓存失效通知: {}", payload);
+        }
+    }
+
+    private void logStatsIfDue() {
+        long lookups = localHits.get() + redisHits.get() + misses.get();
+        if (lookups > 0 && lookups % STATS_LOG_INTERVAL == 0) {
+            CacheStats stats = getStats();
+            log.info("TTS缓存统计: lookups={}, localHits={}, redisHits={}, misses={}, hitRate={}%, stores={}, rejected={}, localEntries={}, localBytes={}",
+                    lookups, stats.localHits(), stats.redisHits(), stats.misses(),
+                    String.format("%.1f", stats.hitRate() * 100), stats.stores(), stats.rejected(),
+                    stats.localEntries(), stats.localBytes());
         }
-        if (value instanceof byte[] bytes) {
-            return bytes;
+    }
+
+    private static String normalizeText(String text) {
+        if (text == null) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC);
+        return WHITESPACE.matcher(normalized.trim()).replaceAll(" ");
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256不可用", e);
         }
-        if (value instanceof String str) {
-            try {
-                return Base64.getDecoder().decode(str);
-            } catch (IllegalArgumentException ex) {
-                log.warn("缓存中的测试音频Base64内容异常，将移除: key={}, error={}", key, ex.getMessage());
-                cache.evict(key);
+    }
+
+    /**
+     * 缓存键
+     *
+     * @param referenceId 音色引用ID
+     * @param hash 内容哈希
+     * @param textLength 规范化后的文本长度，用于准入判断
+     */
+    public record CacheKey(String referenceId, String hash, int textLength) {}
+
+    private record VoiceVersion(long version, long fetchedAt) {}
+
+    /**
+     * 缓存统计
+     */
+    public record CacheStats(long localHits, long redisHits, long misses, long stores, long rejected,
+                             int localEntries, long localBytes) {
+
+        public double hitRate() {
+            long lookups = localHits + redisHits + misses;
+            return lookups == 0 ? 0.0 : (double) (localHits + redisHits) / lookups;
+        }
+    }
+
+    /**
+     * 按字节数限制容量的本地LRU缓存
+     */
+    private static final class LocalAudioCache {
+
+        private final long maxBytes;
+        private final LinkedHashMap<String, LocalEntry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        private long currentBytes;
+
+        LocalAudioCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized CachedTTSAudio get(String hash, long version) {
+            LocalEntry entry = entries.get(hash);
+            if (entry == null) {
                 return null;
             }
+            if (entry.version() != version || entry.expiresAt() < System.currentTimeMillis()) {
+                remove(hash);
+                return null;
+            }
+            return entry.audio();
+        }
+
+        synchronized void put(CacheKey key, long version, CachedTTSAudio audio, Duration ttl) {
+            long size = audio.totalBytes();
+            if (size > maxBytes) {
+                return;
+            }
+            remove(key.hash());
+            entries.put(key.hash(), new LocalEntry(key.referenceId(), version, audio, size,
+                    System.currentTimeMillis() + ttl.toMillis()));
+            currentBytes += size;
+
+            Iterator<Map.Entry<String, LocalEntry>> iterator = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && iterator.hasNext()) {
+                currentBytes -= iterator.next().getValue().size();
+                iterator.remove();
+            }
         }
-        if (value instanceof List<?>) {
-            List<?> list = (List<?>) value;
-            byte[] bytes = new byte[list.size()];
-            for (int i = 0; i < list.size(); i++) {
-                Object element = list.get(i);
-                if (!(element instanceof Number number)) {
-                    log.warn("缓存中的测试音频列表包含非数字元素，将移除: key={}", key);
-                    cache.evict(key);
-                    return null;
+
+        synchronized int removeVoice(String referenceId) {
+            int removed = 0;
+            Iterator<Map.Entry<String, LocalEntry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                LocalEntry entry = iterator.next().getValue();
+                if (entry.referenceId().equals(referenceId)) {
+                    currentBytes -= entry.size();
+                    iterator.remove();
+                    removed++;
                 }
-                bytes[i] = number.byteValue();
             }
-            return bytes;
+            return removed;
         }
-        log.warn("缓存中存在无法识别的测试音频数据类型({}), 将移除: key={}", value.getClass().getName(), key);
-        cache.evict(key);
-        return null;
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long bytes() {
+            return currentBytes;
+        }
+
+        private void remove(String hash) {
+            LocalEntry removed = entries.remove(hash);
+            if (removed != null) {
+                currentBytes -= removed.size();
+            }
+        }
+
+        private record LocalEntry(String referenceId, long version, CachedTTSAudio audio, long size, long expiresAt) {}
     }
 }
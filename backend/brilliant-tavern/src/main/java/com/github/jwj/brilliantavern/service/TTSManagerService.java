@@ -2,6 +2,7 @@ package com.github.jwj.brilliantavern.service;
 
 import com.github.jwj.brilliantavern.config.TTSConfig;
 import com.github.jwj.brilliantavern.dto.TTSResponse;
+import com.github.jwj.brilliantavern.service.tts.CachedTTSAudio;
 import com.github.jwj.brilliantavern.service.tts.TTSService;
 import com.github.jwj.brilliantavern.service.tts.TTSStreamChunk;
 import lombok.RequiredArgsConstructor;
@@ -11,7 +12,9 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
-import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * TTS管理服务
@@ -28,62 +31,95 @@ public class TTSManagerService {
 
     /**
      * 流式生成语音（指定音色），支持重试
+     * 命中缓存时按原分片顺序回放，未命中时边合成边收集分片并在完成后写入缓存
      */
     public Flux<TTSStreamChunk> streamSpeechWithVoice(String text, String voiceId, String sessionId, String messageId) {
+        return streamSpeechWithVoice(text, voiceId, sessionId, messageId, true);
+    }
+
+    /**
+     * 流式生成语音（指定音色），useCache为false时不读写缓存，直接调用TTS服务（健康检查、预热）
+     */
+    public Flux<TTSStreamChunk> streamSpeechWithVoice(String text, String voiceId, String sessionId, String messageId,
+                                                      boolean useCache) {
         if (text == null || text.trim().isEmpty()) {
             return Flux.error(new IllegalArgumentException("文本内容为空"));
         }
 
-        final boolean isTestText = ttsCacheService.isTestText(text);
-        if (isTestText) {
-            byte[] cachedAudio = ttsCacheService.getCachedTestAudio(text, voiceId);
-            if (cachedAudio != null) {
-                return Flux.just(TTSStreamChunk.builder()
-                        .chunkIndex(0)
-                        .audioData(cachedAudio)
-                        .audioFormat(TTSConfig.AudioFormat.MP3)
-                        .last(true)
-                        .fromCache(true)
-                        .build());
-            }
+        if (!useCache || !ttsCacheService.isEnabled()) {
+            return synthesizeWithRetry(text, voiceId, sessionId, messageId, null);
         }
 
+        TTSCacheService.CacheKey cacheKey = ttsCacheService.keyFor(text, voiceId, ttsService.cacheProfile(true));
+        CachedTTSAudio local = ttsCacheService.getLocal(cacheKey);
+        if (local != null) {
+            log.debug("TTS缓存命中(本地): voiceId={}, chunks={}", voiceId, local.chunks().size());
+            return Flux.fromIterable(local.toStreamChunks());
+        }
+
+        return Mono.fromCallable(() -> ttsCacheService.getRemote(cacheKey))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapIterable(CachedTTSAudio::toStreamChunks)
+                .switchIfEmpty(Flux.defer(() -> synthesizeWithRetry(text, voiceId, sessionId, messageId, cacheKey)));
+    }
+
+    private Flux<TTSStreamChunk> synthesizeWithRetry(String text, String voiceId, String sessionId, String messageId,
+                                                     TTSCacheService.CacheKey cacheKey) {
+        // 已经向下游推送过音频后不再重试，避免同一段文本重复播放
+        AtomicBoolean audioEmitted = new AtomicBoolean(false);
         return retryService.retryWithProgress(
-                createTTSStream(text, voiceId, isTestText),
+                createTTSStream(text, voiceId, cacheKey, audioEmitted),
                 sessionId,
                 messageId,
                 "TTS调用",
-                context -> Flux.just(retryService.createRetryProgressEvent(context))
+                context -> Flux.just(retryService.createRetryProgressEvent(context)),
+                error -> !audioEmitted.get()
         );
     }
     
     /**
      * 创建TTS流 - 单次调用逻辑
      */
-    private Flux<TTSStreamChunk> createTTSStream(String text, String voiceId, boolean isTestText) {
+    private Flux<TTSStreamChunk> createTTSStream(String text, String voiceId, TTSCacheService.CacheKey cacheKey,
+                                                 AtomicBoolean audioEmitted) {
         return Flux.defer(() -> {
-            ByteArrayOutputStream cacheCollector = new ByteArrayOutputStream();
+            List<TTSStreamChunk> collected = new ArrayList<>();
 
             return ttsService.streamTextToSpeech(text, voiceId)
                     .publishOn(Schedulers.boundedElastic())
                     .map(chunk -> {
-                        if (isTestText && chunk.getAudioData() != null && chunk.getAudioData().length > 0) {
-                            try {
-                                cacheCollector.write(chunk.getAudioData());
-                            } catch (Exception e) {
-                                log.warn("缓存测试音频失败", e);
+                        if (chunk.getAudioData() != null && chunk.getAudioData().length > 0) {
+                            audioEmitted.set(true);
+                            if (cacheKey != null) {
+                                collected.add(chunk);
                             }
                         }
                         return chunk;
                     })
                     .doOnError(error -> log.error("流式语音生成失败，音色: {}, 错误: {}", voiceId, error.getMessage(), error))
                     .doOnComplete(() -> {
-                        if (isTestText && cacheCollector.size() > 0) {
-                            ttsCacheService.putCachedTestAudio(text, voiceId, cacheCollector.toByteArray());
+                        if (cacheKey != null && !collected.isEmpty()) {
+                            storeAsync(cacheKey, toCachedAudio(collected));
                         }
                     });
         });
     }
+
+    private CachedTTSAudio toCachedAudio(List<TTSStreamChunk> chunks) {
+        TTSStreamChunk first = chunks.get(0);
+        List<byte[]> audio = new ArrayList<>(chunks.size());
+        for (TTSStreamChunk chunk : chunks) {
+            audio.add(chunk.getAudioData());
+        }
+        return new CachedTTSAudio(first.getAudioFormat(), first.getSampleRate(), first.getChannels(),
+                first.getBitsPerSample(), audio);
+    }
+
+    private void storeAsync(TTSCacheService.CacheKey cacheKey, CachedTTSAudio audio) {
+        Mono.fromRunnable(() -> ttsCacheService.put(cacheKey, audio))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe();
+    }
     
     /**
      * 流式生成语音（指定音色） - 向后兼容方法
@@ -104,13 +140,20 @@ public class TTSManagerService {
 
     /**
      * 生成语音（指定音色）
-     * 对测试文本启用缓存功能
+     * 生成完整音频文件，结果同样经过音频缓存
      * 
      * @param text 要转换的文本
      * @param voiceId 音色ID
      * @return TTS响应结果
      */
     public Mono<TTSResponse> generateSpeechWithVoice(String text, String voiceId) {
+        return generateSpeechWithVoice(text, voiceId, true);
+    }
+
+    /**
+     * 生成语音（指定音色），useCache为false时不读写缓存，直接调用TTS服务（健康检查、预热）
+     */
+    public Mono<TTSResponse> generateSpeechWithVoice(String text, String voiceId, boolean useCache) {
         if (text == null || text.trim().isEmpty()) {
             return Mono.just(TTSResponse.builder()
                     .success(false)
@@ -118,37 +161,42 @@ public class TTSManagerService {
                     .build());
         }
 
-        // 如果是测试文本，尝试从缓存获取
-        if (ttsCacheService.isTestText(text)) {
-            byte[] cachedAudio = ttsCacheService.getCachedTestAudio(text, voiceId);
-            if (cachedAudio != null) {
-                log.debug("从缓存返回测试音频: voiceId={}", voiceId);
-                return Mono.just(TTSResponse.builder()
-                        .audioData(cachedAudio)
-                        .audioFormat(TTSConfig.AudioFormat.MP3)
-                        .success(true)
-                        .voiceId(voiceId)
-                        .fromCache(true)
-                        .build());
-            }
-        }
+        TTSConfig.AudioFormat defaultFormat = TTSConfig.AudioFormat.MP3;
+        TTSCacheService.CacheKey cacheKey = useCache && ttsCacheService.isEnabled()
+                ? ttsCacheService.keyFor(text, voiceId, ttsService.cacheProfile(false))
+                : null;
+
+        Mono<TTSResponse> cached = cacheKey == null ? Mono.empty() : Mono.fromCallable(() -> ttsCacheService.get(cacheKey))
+                .subscribeOn(Schedulers.boundedElastic())
+                .filter(audio -> audio.chunks().size() == 1)
+                .map(audio -> {
+                    log.debug("从缓存返回语音: voiceId={}", voiceId);
+                    return TTSResponse.builder()
+                            .audioData(audio.chunks().get(0))
+                            .audioFormat(audio.audioFormat() != null ? audio.audioFormat() : defaultFormat)
+                            .success(true)
+                            .voiceId(voiceId)
+                            .fromCache(true)
+                            .build();
+                });
 
-        // 缓存未命中或非测试文本，调用TTS服务
-        return ttsService.textToSpeech(text, voiceId)
+        // 缓存未命中，调用TTS服务
+        Mono<TTSResponse> generated = Mono.defer(() -> ttsService.textToSpeech(text, voiceId)
                 .<TTSResponse>map(audioData -> {
-                    // 如果是测试文本，将生成的音频缓存起来
-                    if (ttsCacheService.isTestText(text)) {
-                        ttsCacheService.putCachedTestAudio(text, voiceId, audioData);
+                    if (cacheKey != null) {
+                        storeAsync(cacheKey, new CachedTTSAudio(defaultFormat, null, null, null, List.of(audioData)));
                     }
                     
                     return TTSResponse.builder()
                             .audioData(audioData)
-                            .audioFormat(TTSConfig.AudioFormat.MP3)
+                            .audioFormat(defaultFormat)
                             .success(true)
                             .voiceId(voiceId)
                             .fromCache(false)
                             .build();
-                })
+                }));
+
+        return cached.switchIfEmpty(generated)
                 .onErrorResume(error -> {
                     log.error("语音生成失败，音色: {}, 错误: {}", voiceId, error.getMessage());
                     return Mono.just(TTSResponse.builder()
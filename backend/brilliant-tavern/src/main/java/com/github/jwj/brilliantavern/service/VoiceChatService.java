@@ -43,6 +43,7 @@ public class VoiceChatService {
     private final ObjectMapper objectMapper;
     private final AIService aiService;
     private final SimpMessagingTemplate messagingTemplate;
+    private final GreetingAudioService greetingAudioService;
     
     // Redis键前缀
     private static final String SESSION_KEY_PREFIX = "voice_chat_session:";
@@ -80,12 +81,17 @@ public class VoiceChatService {
             }
         }
         
+        // 开场白语音已预生成时直接返回地址，客户端无需等待合成
+        GreetingAudioService.GreetingAudio greetingAudio = greetingAudioService.findReady(
+                characterCard.getId(), characterCard.getGreetingMessage(), characterCard.getTtsVoiceId());
+
         // 构建会话信息
         VoiceChatSessionResponse session = VoiceChatSessionResponse.builder()
                 .sessionId(sessionId)
                 .characterCardId(characterCard.getId())
                 .characterName(characterCard.getName())
                 .greetingMessage(characterCard.getGreetingMessage())
+                .greetingAudioUrl(greetingAudio != null ? greetingAudio.url() : null)
                 .ttsVoiceId(ttsReferenceId) // 使用reference_id而不是数据库ID
                 .createdAt(OffsetDateTime.now())
                 .websocketEndpoint("/ws/voice-chat")
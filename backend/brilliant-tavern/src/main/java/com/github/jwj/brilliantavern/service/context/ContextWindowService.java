@@ -0,0 +1,251 @@
+package com.github.jwj.brilliantavern.service.context;
+
+import com.github.jwj.brilliantavern.config.GenAIConfig;
+import com.github.jwj.brilliantavern.dto.VoiceMessage;
+import com.github.jwj.brilliantavern.service.ChatMemoryService;
+import com.github.jwj.brilliantavern.service.ChatMemoryService.HistoryMessage;
+import com.github.jwj.brilliantavern.service.ChatMemoryService.HistorySummary;
+import com.github.jwj.brilliantavern.service.metrics.ConversationMetrics;
+import com.google.genai.Client;
+import com.google.genai.types.Content;
+import com.google.genai.types.GenerateContentConfig;
+import com.google.genai.types.GenerateContentResponse;
+import com.google.genai.types.Part;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 上下文窗口管理服务
+ * 按Token预算从最新消息向前选取历史，预算扣除系统提示词、本轮音频和预留部分，条数不超过上限。
+ * 开启滚动摘要后，被移出窗口的早期对话在后台合并为摘要，放在窗口最前面，不占用对话主流程的时间
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ContextWindowService {
+
+    private final ChatMemoryService chatMemoryService;
+    private final Client genAIClient;
+    private final GenAIConfig genAIConfig;
+
+    /**
+     * 单次请求的输入Token上限
+     */
+    @Value("${app.chat.context.max-input-tokens:16000}")
+    private int maxInputTokens;
+
+    /**
+     * 送入模型的历史消息条数上限，与Token预算同时生效
+     */
+    @Value("${app.chat.context.max-messages:40}")
+    private int maxMessages;
+
+    /**
+     * 为记忆检索等临时消息预留的Token数
+     */
+    @Value("${app.chat.context.reserved-tokens:2048}")
+    private int reservedTokens;
+
+    /**
+     * 非WAV音频按该平均字节率估算时长
+     */
+    @Value("${app.chat.context.compressed-audio-bytes-per-second:16000}")
+    private int compressedAudioBytesPerSecond;
+
+    @Value("${app.chat.context.summary.enabled:false}")
+    private boolean summaryEnabled;
+
+    /**
+     * 窗口外未被摘要覆盖的消息达到该条数时才生成新摘要
+     */
+    @Value("${app.chat.context.summary.min-evicted-messages:10}")
+    private int summaryMinEvictedMessages;
+
+    @Value("${app.chat.context.summary.max-tokens:512}")
+    private int summaryMaxTokens;
+
+    // 正在生成摘要的会话，同一会话同时只生成一个
+    private final Set<String> summarizing = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 为本轮请求选取历史窗口
+     */
+    public ContextWindow fit(String conversationId, String systemPrompt, VoiceMessage voiceMessage) {
+        int systemTokens = TokenEstimator.estimateMessage(systemPrompt);
+        int audioTokens = voiceMessage != null
+                ? TokenEstimator.estimateAudio(voiceMessage.getAudioData(), voiceMessage.getAudioFormat(),
+                        compressedAudioBytesPerSecond)
+                : 0;
+        List<HistoryMessage> messages = chatMemoryService.getHistoryMessages(conversationId);
+        HistorySummary summary = summaryEnabled
+                ? chatMemoryService.getSummary(conversationId) : HistorySummary.NONE;
+
+        int budget = maxInputTokens - systemTokens - audioTokens - reservedTokens;
+        int summaryTokens = summary.hasText() ? summary.tokens() : 0;
+        int historyBudget = budget - summaryTokens;
+
+        // 从最新消息向前累加，直到超出预算或条数上限
+        int start = messages.size();
+        int historyTokens = 0;
+        while (start > 0 && messages.size() - start < maxMessages) {
+            int tokens = messages.get(start - 1).tokens();
+            if (historyTokens + tokens > historyBudget) {
+                break;
+            }
+            historyTokens += tokens;
+            start--;
+        }
+        // 窗口从用户消息开始，避免以孤立的模型回复开头
+        while (start < messages.size() && isModel(messages.get(start).content())) {
+            historyTokens -= messages.get(start).tokens();
+            start++;
+        }
+
+        List<Content> history = new ArrayList<>(messages.size() - start + 1);
+        // 摘要只描述窗口之前的消息，窗口已包含全部历史时不再附加
+        long firstIncludedSeq = start < messages.size() ? messages.get(start).seq() : Long.MAX_VALUE;
+        boolean withSummary = summaryTokens > 0 && start > 0 && summary.throughSeq() < firstIncludedSeq;
+        if (withSummary) {
+            history.add(Content.builder()
+                    .role("user")
+                    .parts(List.of(Part.fromText("(此前对话摘要: " + summary.text() + ")")))
+                    .build());
+        } else {
+            summaryTokens = 0;
+        }
+        for (int i = start; i < messages.size(); i++) {
+            history.add(messages.get(i).content());
+        }
+
+        if (summaryEnabled && start > 0) {
+            scheduleSummary(conversationId, messages.subList(0, start), summary);
+        }
+
+        ContextWindow window = new ContextWindow(List.copyOf(history), systemTokens, summaryTokens, historyTokens,
+                audioTokens, messages.size() - start, start);
+        log.debug("上下文窗口: conversationId={}, 总Token={}, 历史={}条/{}Token, 淘汰={}条, 摘要={}Token",
+                conversationId, window.totalTokens(), window.includedMessages(), historyTokens,
+                window.evictedMessages(), summaryTokens);
+        return window;
+    }
+
+    /**
+     * 窗口外尚未被摘要覆盖的消息足够多时，在后台把它们合并进摘要
+     */
+    private void scheduleSummary(String conversationId, List<HistoryMessage> evicted, HistorySummary current) {
+        long lastEvictedSeq = evicted.get(evicted.size() - 1).seq();
+        if (lastEvictedSeq <= current.throughSeq()) {
+            return;
+        }
+        int pending = 0;
+        for (HistoryMessage message : evicted) {
+            if (message.seq() > current.throughSeq()) {
+                pending++;
+            }
+        }
+        if (pending < summaryMinEvictedMessages || !summarizing.add(conversationId)) {
+            return;
+        }
+
+        Mono.fromRunnable(() -> summarize(conversationId, evicted))
+                .subscribeOn(Schedulers.boundedElastic())
+                .doFinally(signal -> summarizing.remove(conversationId))
+                .subscribe(null, error -> log.warn("生成对话摘要失败: conversationId={}, error={}",
+                        conversationId, error.getMessage()));
+    }
+
+    private void summarize(String conversationId, List<HistoryMessage> evicted) {
+        // 其他节点可能已经更新了摘要，以Redis中的为准
+        HistorySummary previous = chatMemoryService.reloadSummary(conversationId);
+        long throughSeq = evicted.get(evicted.size() - 1).seq();
+        if (throughSeq <= previous.throughSeq()) {
+            return;
+        }
+
+        StringBuilder prompt = new StringBuilder(1024);
+        prompt.append("请把下面的角色扮演对话压缩为一段简洁的摘要，保留人物关系、关键事件、约定和用户透露的个人信息，")
+              .append("使用第三人称，不超过300字，只输出摘要本身。\n\n");
+        if (previous.hasText()) {
+            prompt.append("已有摘要：").append(previous.text()).append("\n\n");
+        }
+        prompt.append("新增对话：\n");
+        for (HistoryMessage message : evicted) {
+            if (message.seq() <= previous.throughSeq()) {
+                continue;
+            }
+            prompt.append(isModel(message.content()) ? "角色: " : "用户: ")
+                  .append(textOf(message.content()))
+                  .append('\n');
+        }
+
+        GenerateContentConfig config = GenerateContentConfig.builder()
+                .temperature(0.3f)
+                .maxOutputTokens(summaryMaxTokens)
+                .build();
+        GenerateContentResponse response = genAIClient.models.generateContent(
+                genAIConfig.getVertexAi().getModel(),
+                List.of(Content.fromParts(Part.fromText(prompt.toString()))),
+                config);
+        String text = response != null ? response.text() : null;
+        if (!StringUtils.hasText(text)) {
+            log.warn("对话摘要为空: conversationId={}", conversationId);
+            return;
+        }
+        String summary = text.trim();
+        chatMemoryService.saveSummary(conversationId,
+                new HistorySummary(summary, throughSeq, TokenEstimator.estimateMessage(summary) + 8));
+        log.info("更新对话摘要: conversationId={}, throughSeq={}, 长度={}", conversationId, throughSeq, summary.length());
+    }
+
+    private static boolean isModel(Content content) {
+        return "model".equals(content.role().orElse(null));
+    }
+
+    private static String textOf(Content content) {
+        StringBuilder text = new StringBuilder();
+        content.parts().ifPresent(parts -> parts.forEach(part -> part.text().ifPresent(text::append)));
+        return text.toString();
+    }
+
+    /**
+     * 本轮选取的历史窗口及各部分的Token估算
+     */
+    public record ContextWindow(List<Content> history,
+                                int systemTokens,
+                                int summaryTokens,
+                                int historyTokens,
+                                int audioTokens,
+                                int includedMessages,
+                                int evictedMessages) {
+
+        public int totalTokens() {
+            return systemTokens + summaryTokens + historyTokens + audioTokens;
+        }
+
+        /**
+         * 记录到本轮性能指标
+         */
+        public void recordTo(ConversationMetrics metrics) {
+            if (metrics == null) {
+                return;
+            }
+            metrics.record("context_total_tokens", totalTokens());
+            metrics.record("context_system_tokens", systemTokens);
+            metrics.record("context_summary_tokens", summaryTokens);
+            metrics.record("context_history_tokens", historyTokens);
+            metrics.record("context_audio_tokens", audioTokens);
+            metrics.record("context_history_messages", includedMessages);
+            metrics.record("context_evicted_messages", evictedMessages);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.github.jwj.brilliantavern.service.context;
+
+import com.github.jwj.brilliantavern.entity.CharacterMemory;
+import com.github.jwj.brilliantavern.service.CharacterMemoryService;
+import com.github.jwj.brilliantavern.service.ChatMemoryService;
+import com.github.jwj.brilliantavern.service.ChatMemoryService.HistoryMessage;
+import com.github.jwj.brilliantavern.service.metrics.ConversationMetrics;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 角色记忆预取服务
+ * 轮次开始时按最近的记忆和上一条用户转写的语义检索结果预先取出记忆，直接放入第一次请求。
+ * 模型不再输出[MEM]即为命中，省去检索和第二次完整的模型调用；仍然输出[MEM]时照常走两次调用的流程
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MemoryPrefetchService {
+
+    private static final int STATS_LOG_INTERVAL = 100;
+
+    private final CharacterMemoryService characterMemoryService;
+    private final ChatMemoryService chatMemoryService;
+
+    @Value("${app.chat.memory-prefetch.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.chat.memory-prefetch.top-k:3}")
+    private int topK;
+
+    @Value("${app.chat.memory-prefetch.recent:2}")
+    private int recentCount;
+
+    /**
+     * 等待预取结果的最长时间，超时按未预取处理，不拖慢首Token
+     */
+    @Value("${app.chat.memory-prefetch.wait-timeout:300ms}")
+    private Duration waitTimeout;
+
+    private final AtomicLong turns = new AtomicLong();
+    private final AtomicLong injectedTurns = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong prefetchMillisTotal = new AtomicLong();
+    private final AtomicLong missPenaltyMillisTotal = new AtomicLong();
+    private final AtomicLong missPenaltyCount = new AtomicLong();
+
+    /**
+     * 预取本轮可能用到的记忆，未开启、失败或超时时返回NONE，不会出错
+     */
+    public Mono<Prefetch> prefetch(UUID userId, UUID characterCardId, String conversationId) {
+        if (!enabled || userId == null || characterCardId == null) {
+            return Mono.just(Prefetch.NONE);
+        }
+        long start = System.nanoTime();
+        return Mono.fromCallable(() -> load(userId, characterCardId, conversationId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(memories -> new Prefetch(memories, (System.nanoTime() - start) / 1_000_000))
+                .timeout(waitTimeout, Mono.fromSupplier(() -> {
+                    log.debug("记忆预取超时: conversationId={}, timeout={}", conversationId, waitTimeout);
+                    return new Prefetch(List.of(), waitTimeout.toMillis());
+                }))
+                .onErrorResume(error -> {
+                    log.warn("记忆预取失败: conversationId={}, error={}", conversationId, error.getMessage());
+                    return Mono.just(Prefetch.NONE);
+                });
+    }
+
+    private List<CharacterMemory> load(UUID userId, UUID characterCardId, String conversationId) {
+        Map<Long, CharacterMemory> selected = new LinkedHashMap<>();
+        String lastTranscription = lastUserMessage(conversationId);
+        if (StringUtils.hasText(lastTranscription)) {
+            for (CharacterMemory memory : characterMemoryService.retrieveSimilarMemories(
+                    userId, characterCardId, lastTranscription, topK)) {
+                selected.putIfAbsent(memory.getId(), memory);
+            }
+        }
+        if (recentCount > 0) {
+            for (CharacterMemory memory : characterMemoryService.getRecentMemories(userId, characterCardId, recentCount)) {
+                selected.putIfAbsent(memory.getId(), memory);
+            }
+        }
+        return List.copyOf(selected.values());
+    }
+
+    private String lastUserMessage(String conversationId) {
+        List<HistoryMessage> history = chatMemoryService.getHistoryMessages(conversationId);
+        for (int i = history.size() - 1; i >= 0; i--) {
+            Content content = history.get(i).content();
+            if (!"model".equals(content.role().orElse(null))) {
+                StringBuilder text = new StringBuilder();
+                content.parts().ifPresent(parts -> parts.forEach(part -> part.text().ifPresent(text::append)));
+                return text.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 记录本轮结果：预取到记忆且模型没有再请求检索为命中
+     */
+    public void recordOutcome(Prefetch prefetch, boolean retrievalRequested, ConversationMetrics metrics) {
+        if (!enabled) {
+            return;
+        }
+        long turn = turns.incrementAndGet();
+        prefetchMillisTotal.addAndGet(prefetch.elapsedMillis());
+        if (prefetch.hasMemories()) {
+            injectedTurns.incrementAndGet();
+        }
+        if (retrievalRequested) {
+            misses.incrementAndGet();
+        } else if (prefetch.hasMemories()) {
+            hits.incrementAndGet();
+        }
+        if (metrics != null) {
+            metrics.record("memory_prefetch_ms", prefetch.elapsedMillis());
+            metrics.record("memory_prefetch_count", prefetch.memories().size());
+            metrics.record("memory_prefetch_hit", !retrievalRequested && prefetch.hasMemories() ? 1 : 0);
+            metrics.record("memory_retrieval_requested", retrievalRequested ? 1 : 0);
+        }
+        if (turn % STATS_LOG_INTERVAL == 0) {
+            log.info("记忆预取统计: {}", getStats());
+        }
+    }
+
+    /**
+     * 记录一次未命中的额外耗时（检索开始到第二次调用的首个分片）
+     */
+    public void recordMissPenalty(long millis) {
+        missPenaltyMillisTotal.addAndGet(millis);
+        missPenaltyCount.incrementAndGet();
+    }
+
+    public PrefetchStats getStats() {
+        long turnCount = turns.get();
+        long hitCount = hits.get();
+        long penaltyCount = missPenaltyCount.get();
+        long avgMissPenalty = penaltyCount > 0 ? missPenaltyMillisTotal.get() / penaltyCount : 0;
+        return new PrefetchStats(turnCount, injectedTurns.get(), hitCount, misses.get(),
+                turnCount > 0 ? prefetchMillisTotal.get() / turnCount : 0,
+                avgMissPenalty, hitCount * avgMissPenalty);
+    }
+
+    /**
+     * 预取结果
+     */
+    public record Prefetch(List<CharacterMemory> memories, long elapsedMillis) {
+        public static final Prefetch NONE = new Prefetch(List.of(), 0);
+
+        public boolean hasMemories() {
+            return !memories.isEmpty();
+        }
+
+        /**
+         * 放在本轮音频之前的记忆上下文
+         */
+        public Content toContent() {
+            StringBuilder text = new StringBuilder("(已预先取出可能相关的记忆，足以回复时直接回复，无需再使用[MEM]检索:\n");
+            for (int i = 0; i < memories.size(); i++) {
+                text.append(i + 1).append(". ").append(memories.get(i).getMemoryContent()).append('\n');
+            }
+            text.append(')');
+            return Content.builder().role("user").parts(List.of(Part.fromText(text.toString()))).build();
+        }
+    }
+
+    /**
+     * 预取统计，savedMillis按命中次数乘以未命中时的平均额外耗时估算
+     */
+    public record PrefetchStats(long turns, long injectedTurns, long hits, long misses,
+                                long avgPrefetchMillis, long avgMissPenaltyMillis, long savedMillis) {
+        public double hitRate() {
+            return injectedTurns > 0 ? (double) hits / injectedTurns : 0;
+        }
+    }
+}
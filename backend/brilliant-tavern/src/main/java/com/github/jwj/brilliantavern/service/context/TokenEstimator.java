@@ -0,0 +1,83 @@
+package com.github.jwj.brilliantavern.service.context;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * 输入Token数估算
+ * 不调用countTokens接口，按字符类别近似：中日韩字符约每字1个Token，其他文字约每4个字符1个Token，
+ * 音频按Gemini每秒32个Token计算。估算只用于上下文窗口裁剪，不要求精确
+ */
+public final class TokenEstimator {
+
+    /**
+     * 每条消息的角色和分隔开销
+     */
+    private static final int MESSAGE_OVERHEAD = 4;
+
+    private static final int AUDIO_TOKENS_PER_SECOND = 32;
+
+    private TokenEstimator() {
+    }
+
+    /**
+     * 估算一段文本作为一条消息时的Token数
+     */
+    public static int estimateMessage(CharSequence text) {
+        return estimateText(text) + MESSAGE_OVERHEAD;
+    }
+
+    /**
+     * 估算文本Token数
+     */
+    public static int estimateText(CharSequence text) {
+        if (text == null || text.isEmpty()) {
+            return 0;
+        }
+        int cjk = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isCjk(c)) {
+                cjk++;
+            } else if (!Character.isLowSurrogate(c)) {
+                other++;
+            }
+        }
+        return cjk + (other + 3) / 4;
+    }
+
+    /**
+     * 估算音频Token数
+     * WAV按头部中的字节率计算时长，其他压缩格式按给定的平均字节率估算
+     */
+    public static int estimateAudio(byte[] audio, String format, int compressedBytesPerSecond) {
+        if (audio == null || audio.length == 0) {
+            return 0;
+        }
+        double seconds;
+        int byteRate = wavByteRate(audio);
+        if (byteRate > 0) {
+            seconds = (audio.length - 44) / (double) byteRate;
+        } else {
+            seconds = audio.length / (double) Math.max(1, compressedBytesPerSecond);
+        }
+        return (int) Math.ceil(Math.max(0, seconds) * AUDIO_TOKENS_PER_SECOND);
+    }
+
+    private static int wavByteRate(byte[] audio) {
+        if (audio.length < 44 || audio[0] != 'R' || audio[1] != 'I' || audio[2] != 'F' || audio[3] != 'F') {
+            return 0;
+        }
+        return ByteBuffer.wrap(audio, 28, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static boolean isCjk(char c) {
+        return (c >= 0x4E00 && c <= 0x9FFF)      // 中日韩统一表意文字
+                || (c >= 0x3400 && c <= 0x4DBF)  // 扩展A
+                || (c >= 0x3040 && c <= 0x30FF)  // 平假名、片假名
+                || (c >= 0xAC00 && c <= 0xD7AF)  // 韩文音节
+                || (c >= 0x3000 && c <= 0x303F)  // 中日韩标点
+                || (c >= 0xFF00 && c <= 0xFFEF); // 全角字符
+    }
+}
@@ -0,0 +1,389 @@
+package com.github.jwj.brilliantavern.service.genai;
+
+import com.google.genai.Client;
+import com.google.genai.types.ContentEmbedding;
+import com.google.genai.types.EmbedContentConfig;
+import com.google.genai.types.EmbedContentResponse;
+import com.google.genai.types.HttpOptions;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * 文本嵌入服务
+ * 按（模型、维度、规范化文本）缓存向量，相同文本不再重复调用嵌入接口；
+ * 未命中的请求在一个很短的时间窗口内合并为一次批量调用，同一文本的并发请求共用一次调用
+ */
+@Slf4j
+@Service
+public class EmbeddingService {
+
+    /**
+     * 限制向量维度以支持HNSW索引 (PostgreSQL vector HNSW索引最大支持2000维)
+     */
+    public static final int MAX_EMBEDDING_DIMENSIONS = 1536;
+
+    private static final int STATS_LOG_INTERVAL = 500;
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    private final Client genAIClient;
+    private final String model;
+    private final int maxBatchSize;
+    private final Duration timeout;
+    private final Duration batchWindow;
+    private final int maxConcurrency;
+    private final long batchReprobeNanos;
+    private final EmbedContentConfig config;
+
+    private final Map<EmbeddingKey, float[]> cache;
+    private final Map<EmbeddingKey, CompletableFuture<float[]>> inFlight = new ConcurrentHashMap<>();
+    private final Object batcherLock = new Object();
+    private Sinks.Many<PendingEmbedding> requests;
+    private Disposable batcher;
+    private boolean shutdown;
+
+    // 批量调用失败而逐条调用全部成功时，认为模型可能不支持批量输入，在此时间之前逐条调用，之后重新尝试批量
+    private volatile long batchDisabledUntil;
+    private volatile boolean batchDisabled;
+
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder requestMillisTotal = new LongAdder();
+    private final AtomicLong calls = new AtomicLong();
+    private final LongAdder callFailures = new LongAdder();
+    private final LongAdder embeddedTexts = new LongAdder();
+    private final LongAdder callMillisTotal = new LongAdder();
+    private final AtomicLong maxCallMillis = new AtomicLong();
+
+    public EmbeddingService(Client genAIClient,
+                            @Value("${vertex.ai.embedding.model:gemini-embedding-001}") String model,
+                            @Value("${app.genai.embedding.cache-size:2000}") int cacheSize,
+                            @Value("${app.genai.embedding.batch-window:5ms}") Duration batchWindow,
+                            @Value("${app.genai.embedding.max-batch-size:16}") int maxBatchSize,
+                            @Value("${app.genai.embedding.max-concurrency:4}") int maxConcurrency,
+                            @Value("${app.genai.embedding.timeout:10s}") Duration timeout,
+                            @Value("${app.genai.embedding.batch-reprobe-interval:10m}") Duration batchReprobeInterval) {
+        this.genAIClient = genAIClient;
+        this.model = model;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.timeout = timeout;
+        this.batchWindow = batchWindow;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.batchReprobeNanos = batchReprobeInterval.toNanos();
+        // 单次调用也设置超时，挂起的调用不会一直占用并发名额
+        this.config = EmbedContentConfig.builder()
+                .outputDimensionality(MAX_EMBEDDING_DIMENSIONS)
+                .httpOptions(HttpOptions.builder().timeout((int) timeout.toMillis()).build())
+                .build();
+        int capacity = Math.max(0, cacheSize);
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<EmbeddingKey, float[]> eldest) {
+                return size() > capacity;
+            }
+        };
+        startBatcher();
+        log.info("嵌入服务初始化: model={}, 缓存条目上限={}, 批处理窗口={}, 单批上限={}, 并发调用上限={}",
+                model, capacity, batchWindow, this.maxBatchSize, this.maxConcurrency);
+    }
+
+    /**
+     * 启动批处理管道；bufferTimeout开启公平背压，并发调用已满时攒批而不是报错
+     */
+    private void startBatcher() {
+        synchronized (batcherLock) {
+            if (shutdown) {
+                return;
+            }
+            Sinks.Many<PendingEmbedding> sink = Sinks.many().unicast().onBackpressureBuffer();
+            requests = sink;
+            batcher = sink.asFlux()
+                    .bufferTimeout(maxBatchSize, batchWindow, true)
+                    .flatMap(batch -> Mono.fromRunnable(() -> execute(batch))
+                            .subscribeOn(Schedulers.boundedElastic()), maxConcurrency)
+                    .subscribe(null,
+                            error -> onBatcherTerminated(sink, error),
+                            () -> onBatcherTerminated(sink, null));
+        }
+    }
+
+    /**
+     * 批处理管道意外终止：让所有等待中的请求失败，重新建立管道
+     */
+    private void onBatcherTerminated(Sinks.Many<PendingEmbedding> sink, Throwable error) {
+        synchronized (batcherLock) {
+            if (shutdown || requests != sink) {
+                return;
+            }
+            sink.tryEmitComplete();
+        }
+        log.error("嵌入批处理管道终止，等待中的请求将失败并重建管道: pending={}", inFlight.size(), error);
+        IllegalStateException failure = new IllegalStateException("嵌入批处理管道终止", error);
+        inFlight.forEach((key, future) -> {
+            if (inFlight.remove(key, future)) {
+                future.completeExceptionally(failure);
+            }
+        });
+        startBatcher();
+    }
+
+    /**
+     * 生成单条文本的嵌入向量，阻塞直到结果返回
+     */
+    public float[] embed(String text) {
+        return embedAll(List.of(text)).get(0);
+    }
+
+    /**
+     * 生成多条文本的嵌入向量，结果与输入顺序一致
+     */
+    public List<float[]> embedAll(List<String> texts) {
+        List<CompletableFuture<float[]>> futures = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            futures.add(submit(text));
+        }
+        List<float[]> embeddings = new ArrayList<>(futures.size());
+        for (CompletableFuture<float[]> future : futures) {
+            // 缓存中的数组共享，返回副本避免调用方修改
+            embeddings.add(await(future).clone());
+        }
+        return embeddings;
+    }
+
+    public EmbeddingStats getStats() {
+        long requestTotal = requestCount.sum();
+        long hitCount = cacheHits.sum();
+        long coalescedCount = coalesced.sum();
+        long missCount = requestTotal - hitCount - coalescedCount;
+        long callTotal = calls.get();
+        int cacheEntries;
+        synchronized (cache) {
+            cacheEntries = cache.size();
+        }
+        return new EmbeddingStats(requestTotal, hitCount, coalescedCount, callTotal, callFailures.sum(),
+                callTotal > 0 ? (double) embeddedTexts.sum() / callTotal : 0,
+                callTotal > 0 ? callMillisTotal.sum() / callTotal : 0,
+                maxCallMillis.get(),
+                missCount > 0 ? requestMillisTotal.sum() / missCount : 0,
+                cacheEntries, batchEnabled() && maxBatchSize > 1);
+    }
+
+    private CompletableFuture<float[]> submit(String text) {
+        requestCount.increment();
+        EmbeddingKey key = new EmbeddingKey(model, MAX_EMBEDDING_DIMENSIONS, normalize(text));
+        float[] cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<float[]> created = new CompletableFuture<>();
+        CompletableFuture<float[]> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            coalesced.increment();
+            return existing;
+        }
+        // 超时后移出inFlight，之后相同文本的请求重新提交，而不是一直等待挂起的调用
+        created.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((embedding, error) -> {
+                    if (inFlight.remove(key, created) && error instanceof TimeoutException) {
+                        log.warn("生成嵌入向量超时，已移出等待队列: textLength={}, timeout={}", key.text().length(), timeout);
+                    }
+                });
+        Sinks.EmitResult result;
+        synchronized (batcherLock) {
+            result = shutdown
+                    ? Sinks.EmitResult.FAIL_TERMINATED
+                    : requests.tryEmitNext(new PendingEmbedding(key, created, System.nanoTime()));
+        }
+        if (result.isFailure()) {
+            inFlight.remove(key, created);
+            created.completeExceptionally(new IllegalStateException("嵌入批处理已关闭: " + result));
+        }
+        return created;
+    }
+
+    private float[] await(CompletableFuture<float[]> future) {
+        try {
+            return future.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("生成嵌入向量超时: " + timeout, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof TimeoutException) {
+                throw new RuntimeException("生成嵌入向量超时: " + timeout, cause);
+            }
+            throw new RuntimeException("生成嵌入向量失败: " + cause.getMessage(), cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("生成嵌入向量被中断", e);
+        }
+    }
+
+    /**
+     * 执行一批嵌入请求，批量调用失败时逐条重试；逐条全部成功说明模型可能不支持批量输入，
+     * 暂停合并一段时间后再重新尝试批量调用，避免一次偶发失败永久关闭批处理
+     */
+    private void execute(List<PendingEmbedding> batch) {
+        if (batch.size() > 1 && batchEnabled()) {
+            try {
+                complete(batch, request(batch.stream().map(p -> p.key().text()).toList()));
+                if (batchDisabled) {
+                    batchDisabled = false;
+                    log.info("嵌入批量调用恢复: model={}", model);
+                }
+                return;
+            } catch (Exception e) {
+                log.debug("批量嵌入失败，改为逐条调用: size={}, error={}", batch.size(), e.getMessage());
+            }
+            boolean allSucceeded = executeEach(batch);
+            if (allSucceeded) {
+                batchDisabled = true;
+                batchDisabledUntil = System.nanoTime() + batchReprobeNanos;
+                log.warn("嵌入批量调用失败而逐条调用成功，暂停批量调用: model={}, 重新尝试间隔={}s",
+                        model, batchReprobeNanos / 1_000_000_000);
+            }
+            return;
+        }
+        executeEach(batch);
+    }
+
+    private boolean batchEnabled() {
+        return !batchDisabled || System.nanoTime() - batchDisabledUntil >= 0;
+    }
+
+    private boolean executeEach(List<PendingEmbedding> batch) {
+        boolean allSucceeded = true;
+        for (PendingEmbedding pending : batch) {
+            try {
+                complete(List.of(pending), request(List.of(pending.key().text())));
+            } catch (Exception e) {
+                allSucceeded = false;
+                log.error("生成文本嵌入失败: textLength={}", pending.key().text().length(), e);
+                inFlight.remove(pending.key(), pending.future());
+                pending.future().completeExceptionally(e);
+            }
+        }
+        return allSucceeded;
+    }
+
+    private void complete(List<PendingEmbedding> batch, List<float[]> embeddings) {
+        long now = System.nanoTime();
+        for (int i = 0; i < batch.size(); i++) {
+            PendingEmbedding pending = batch.get(i);
+            float[] embedding = embeddings.get(i);
+            synchronized (cache) {
+                cache.put(pending.key(), embedding);
+            }
+            inFlight.remove(pending.key(), pending.future());
+            requestMillisTotal.add((now - pending.submittedAt()) / 1_000_000);
+            pending.future().complete(embedding);
+        }
+    }
+
+    /**
+     * 调用嵌入接口并记录耗时
+     */
+    private List<float[]> request(List<String> texts) {
+        long start = System.nanoTime();
+        EmbedContentResponse response;
+        try {
+            response = texts.size() == 1
+                    ? genAIClient.models.embedContent(model, texts.get(0), config)
+                    : genAIClient.models.embedContent(model, texts, config);
+        } catch (RuntimeException e) {
+            callFailures.increment();
+            throw e;
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        long call = calls.incrementAndGet();
+        embeddedTexts.add(texts.size());
+        callMillisTotal.add(elapsedMillis);
+        maxCallMillis.accumulateAndGet(elapsedMillis, Math::max);
+        log.debug("嵌入调用完成: model={}, texts={}, 耗时={}ms", model, texts.size(), elapsedMillis);
+        if (call % STATS_LOG_INTERVAL == 0) {
+            log.info("嵌入服务统计: {}", getStats());
+        }
+
+        List<ContentEmbedding> contentEmbeddings = response != null ? response.embeddings().orElse(List.of()) : List.of();
+        if (contentEmbeddings.size() != texts.size()) {
+            throw new IllegalStateException(String.format("嵌入响应数量不符: expected=%d, actual=%d",
+                    texts.size(), contentEmbeddings.size()));
+        }
+        List<float[]> embeddings = new ArrayList<>(texts.size());
+        for (ContentEmbedding contentEmbedding : contentEmbeddings) {
+            embeddings.add(toVector(contentEmbedding));
+        }
+        return embeddings;
+    }
+
+    private float[] toVector(ContentEmbedding contentEmbedding) {
+        List<Float> values = contentEmbedding.values().orElse(List.of());
+        if (values.isEmpty()) {
+            throw new IllegalStateException("嵌入向量值为空");
+        }
+        // 模型忽略outputDimensionality时截断，保证能使用HNSW索引
+        int dimensions = Math.min(values.size(), MAX_EMBEDDING_DIMENSIONS);
+        float[] embedding = new float[dimensions];
+        for (int i = 0; i < dimensions; i++) {
+            embedding[i] = values.get(i);
+        }
+        return embedding;
+    }
+
+    /**
+     * 规范化文本：全角/半角等兼容字符统一，合并连续空白
+     */
+    private static String normalize(String text) {
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).strip();
+        return WHITESPACE.matcher(normalized).replaceAll(" ");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        synchronized (batcherLock) {
+            shutdown = true;
+            batcher.dispose();
+            requests.tryEmitComplete();
+        }
+    }
+
+    private record EmbeddingKey(String model, int dimensions, String text) {}
+
+    private record PendingEmbedding(EmbeddingKey key, CompletableFuture<float[]> future, long submittedAt) {}
+
+    /**
+     * 嵌入服务统计，avgRequestMillis为未命中缓存的请求从提交到拿到向量的平均耗时（含批处理等待）
+     */
+    public record EmbeddingStats(long requests, long cacheHits, long coalesced, long calls, long callFailures,
+                                 double avgBatchSize, long avgCallMillis, long maxCallMillis,
+                                 long avgRequestMillis, int cacheEntries, boolean batching) {
+        public double cacheHitRate() {
+            return requests > 0 ? (double) cacheHits / requests : 0;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.jwj.brilliantavern.service.genai;
+
+import com.google.genai.Client;
+import com.google.genai.ResponseStream;
+import com.google.genai.types.Content;
+import com.google.genai.types.GenerateContentConfig;
+import com.google.genai.types.GenerateContentResponse;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * LLM流式传输层
+ * SDK的流式响应是阻塞迭代器，这里在专用调度器上按下游请求逐个读取，不再占用公共的boundedElastic线程，
+ * 流的并发上限单独配置。下游取消（客户端断开、本轮被丢弃）时立即关闭响应流，阻塞中的读取随之结束
+ */
+@Slf4j
+@Component
+public class LLMStreamTransport {
+
+    private final Client genAIClient;
+    private final Scheduler scheduler;
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    public LLMStreamTransport(Client genAIClient,
+                              @Value("${app.genai.stream.max-concurrency:256}") int maxConcurrency,
+                              @Value("${app.genai.stream.queue-capacity:1000}") int queueCapacity) {
+        this.genAIClient = genAIClient;
+        this.scheduler = Schedulers.newBoundedElastic(Math.max(1, maxConcurrency), Math.max(1, queueCapacity),
+                "llm-stream", 60, true);
+        log.info("LLM流式传输初始化: 最大并发流={}, 排队上限={}", maxConcurrency, queueCapacity);
+    }
+
+    /**
+     * 流式生成，按顺序输出非空文本片段
+     */
+    public Flux<String> streamText(String model, List<Content> contents, GenerateContentConfig config) {
+        return streamText(() -> genAIClient.models.generateContentStream(model, contents, config));
+    }
+
+    /**
+     * 读取opener打开的响应流，下游取消或结束时关闭
+     */
+    Flux<String> streamText(Supplier<ResponseStream<GenerateContentResponse>> opener) {
+        return Flux.using(
+                        () -> open(opener),
+                        Flux::fromIterable,
+                        this::close)
+                .<String>handle((response, sink) -> {
+                    String text = response.text();
+                    if (StringUtils.hasText(text)) {
+                        sink.next(text);
+                    }
+                })
+                .subscribeOn(scheduler);
+    }
+
+    /**
+     * 当前打开的流数量
+     */
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    private ResponseStream<GenerateContentResponse> open(Supplier<ResponseStream<GenerateContentResponse>> opener) {
+        ResponseStream<GenerateContentResponse> stream = opener.get();
+        activeStreams.incrementAndGet();
+        return stream;
+    }
+
+    private void close(ResponseStream<GenerateContentResponse> stream) {
+        activeStreams.decrementAndGet();
+        try {
+            stream.close();
+        } catch (Exception e) {
+            log.debug("关闭LLM响应流失败: {}", e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.dispose();
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.jwj.brilliantavern.service.genai;
+
+import com.github.jwj.brilliantavern.config.GenAIConfig;
+import com.github.jwj.brilliantavern.service.context.TokenEstimator;
+import com.google.genai.Client;
+import com.google.genai.types.CachedContent;
+import com.google.genai.types.Content;
+import com.google.genai.types.CreateCachedContentConfig;
+import com.google.genai.types.DeleteCachedContentConfig;
+import com.google.genai.types.Part;
+import com.google.genai.types.UpdateCachedContentConfig;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 角色系统提示词的Gemini上下文缓存
+ * 每个角色卡（及语言组合）渲染出的系统提示词注册为一个缓存内容，该卡的所有会话共用，
+ * 请求只引用缓存名称，不再重复发送和分词整段提示词。
+ * 创建和续期都在后台完成，缓存未就绪时调用方照常内联发送提示词
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PromptContextCacheService {
+
+    private final Client genAIClient;
+    private final GenAIConfig genAIConfig;
+
+    @Value("${app.genai.context-cache.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.genai.context-cache.ttl:1h}")
+    private Duration ttl;
+
+    /**
+     * 距离过期不足该时间时续期
+     */
+    @Value("${app.genai.context-cache.refresh-before:10m}")
+    private Duration refreshBefore;
+
+    /**
+     * 低于模型的最小缓存长度时不创建缓存
+     */
+    @Value("${app.genai.context-cache.min-tokens:1024}")
+    private int minTokens;
+
+    @Value("${app.genai.context-cache.max-entries:500}")
+    private int maxEntries;
+
+    private final Map<CacheKey, CacheEntry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 获取系统提示词对应的缓存名称，未就绪时返回null并在后台创建
+     */
+    public String resolve(UUID cardId, String systemPrompt) {
+        if (!enabled || cardId == null || systemPrompt == null) {
+            return null;
+        }
+        CacheKey key = new CacheKey(cardId, systemPrompt.hashCode(), systemPrompt.length());
+        CacheEntry entry = entries.get(key);
+        Instant now = Instant.now();
+
+        if (entry == null || !entry.prompt.equals(systemPrompt)
+                || (entry.name != null && !now.isBefore(entry.expireTime))) {
+            createAsync(key, systemPrompt, entry);
+            return null;
+        }
+        if (entry.name == null) {
+            // 正在创建
+            return null;
+        }
+        if (now.plus(refreshBefore).isAfter(entry.expireTime)) {
+            refreshAsync(entry);
+        }
+        return entry.name;
+    }
+
+    /**
+     * 使用缓存的请求失败时丢弃本地引用，下一次请求内联发送提示词并重新创建缓存
+     */
+    public void evict(UUID cardId, String cacheName) {
+        if (cacheName == null) {
+            return;
+        }
+        entries.entrySet().removeIf(e -> e.getKey().cardId().equals(cardId) && cacheName.equals(e.getValue().name));
+        log.info("丢弃上下文缓存: cardId={}, cache={}", cardId, cacheName);
+    }
+
+    /**
+     * 角色卡修改或删除后删除其全部缓存
+     */
+    public void invalidate(UUID cardId) {
+        if (!enabled) {
+            return;
+        }
+        entries.entrySet().removeIf(e -> {
+            if (!e.getKey().cardId().equals(cardId)) {
+                return false;
+            }
+            String name = e.getValue().name;
+            if (name != null) {
+                Mono.fromRunnable(() -> genAIClient.caches.delete(name, DeleteCachedContentConfig.builder().build()))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .subscribe(null, error -> log.warn("删除上下文缓存失败: cache={}, error={}",
+                                name, error.getMessage()));
+            }
+            return true;
+        });
+        log.debug("角色卡上下文缓存已失效: cardId={}", cardId);
+    }
+
+    private void createAsync(CacheKey key, String systemPrompt, CacheEntry stale) {
+        if (TokenEstimator.estimateMessage(systemPrompt) < minTokens) {
+            return;
+        }
+        if (entries.size() >= maxEntries) {
+            Instant now = Instant.now();
+            entries.values().removeIf(e -> e.name != null && !now.isBefore(e.expireTime));
+            if (entries.size() >= maxEntries) {
+                return;
+            }
+        }
+        CacheEntry pending = new CacheEntry(systemPrompt);
+        boolean claimed = stale == null
+                ? entries.putIfAbsent(key, pending) == null
+                : entries.replace(key, stale, pending);
+        if (!claimed) {
+            return;
+        }
+
+        Mono.fromCallable(() -> genAIClient.caches.create(genAIConfig.getVertexAi().getModel(),
+                        CreateCachedContentConfig.builder()
+                                .systemInstruction(Content.fromParts(Part.fromText(systemPrompt)))
+                                .ttl(ttl)
+                                .displayName("card-" + key.cardId())
+                                .build()))
+                .subscribeOn(Schedulers.boundedElastic())
+                .subscribe(cached -> onCreated(key, pending, cached), error -> {
+                    entries.remove(key, pending);
+                    log.warn("创建上下文缓存失败: cardId={}, error={}", key.cardId(), error.getMessage());
+                });
+    }
+
+    private void onCreated(CacheKey key, CacheEntry pending, CachedContent cached) {
+        String name = cached.name().orElse(null);
+        if (name == null) {
+            entries.remove(key, pending);
+            return;
+        }
+        pending.expireTime = cached.expireTime().orElse(Instant.now().plus(ttl));
+        pending.name = name;
+        if (entries.get(key) != pending) {
+            // 创建期间角色卡已失效，删除刚创建的缓存
+            genAIClient.caches.delete(name, DeleteCachedContentConfig.builder().build());
+            return;
+        }
+        log.info("创建上下文缓存: cardId={}, cache={}, expireTime={}", key.cardId(), name, pending.expireTime);
+    }
+
+    private void refreshAsync(CacheEntry entry) {
+        if (!entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        String name = entry.name;
+        Mono.fromCallable(() -> genAIClient.caches.update(name, UpdateCachedContentConfig.builder().ttl(ttl).build()))
+                .subscribeOn(Schedulers.boundedElastic())
+                .doFinally(signal -> entry.refreshing.set(false))
+                .subscribe(updated -> {
+                    entry.expireTime = updated.expireTime().orElse(Instant.now().plus(ttl));
+                    log.debug("上下文缓存续期: cache={}, expireTime={}", name, entry.expireTime);
+                }, error -> log.warn("上下文缓存续期失败: cache={}, error={}", name, error.getMessage()));
+    }
+
+    private record CacheKey(UUID cardId, int promptHash, int promptLength) {}
+
+    private static final class CacheEntry {
+        final String prompt;
+        final AtomicBoolean refreshing = new AtomicBoolean(false);
+        volatile String name;
+        volatile Instant expireTime = Instant.MAX;
+
+        CacheEntry(String prompt) {
+            this.prompt = prompt;
+        }
+    }
+}
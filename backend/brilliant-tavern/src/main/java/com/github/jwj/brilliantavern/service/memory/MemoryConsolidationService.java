@@ -0,0 +1,390 @@
+package com.github.jwj.brilliantavern.service.memory;
+
+import com.github.jwj.brilliantavern.repository.CharacterMemoryRepository;
+import com.github.jwj.brilliantavern.repository.CharacterMemoryRepository.MemoryPair;
+import com.github.jwj.brilliantavern.repository.CharacterMemoryRepository.MemoryVector;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 角色记忆整理
+ * 定期检查有新增或更新记忆的用户-角色组合：近似重复的记忆只保留最新的一条，其余标记为被其取代；
+ * 记忆数超过上限的组合中长期未更新的旧记忆归档。被整理的记忆移入 character_memory_archive，
+ * 检索表和向量索引的规模随之受限。
+ * 每次运行处理上次完成时间之后变化的组合，处理进度写入Redis，中断后从游标处继续。
+ * 本次运行的截止时间取数据库时钟并回退settle-delay，保证截止时间之前写入的记忆都已提交
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MemoryConsolidationService {
+
+    private static final String CHECKPOINT_KEY = "memory:consolidation:checkpoint";
+    private static final String LOCK_KEY = "memory:consolidation:lock";
+    private static final String FIELD_WATERMARK = "watermark";
+    private static final String FIELD_RUN_UNTIL = "runUntil";
+    private static final String FIELD_CURSOR_USER = "cursorUserId";
+    private static final String FIELD_CURSOR_CARD = "cursorCardId";
+    private static final UUID MIN_UUID = new UUID(0L, 0L);
+    private static final int PAGE_SIZE = 100;
+
+    private static final RedisScript<Long> RELEASE_LOCK_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('GET', KEYS[1]) == ARGV[1] then
+              return redis.call('DEL', KEYS[1])
+            end
+            return 0
+            """, Long.class);
+
+    /**
+     * 锁仍由本实例持有时续期：ARGV[1]=实例ID，ARGV[2]=租约毫秒数；返回1表示续期成功
+     */
+    private static final RedisScript<Long> RENEW_LOCK_SCRIPT = new DefaultRedisScript<>("""
+            if redis.call('GET', KEYS[1]) == ARGV[1] then
+              return redis.call('PEXPIRE', KEYS[1], ARGV[2])
+            end
+            return 0
+            """, Long.class);
+
+    private static final String ARCHIVE_COLUMNS =
+            "id, user_id, character_card_id, memory_content, embedding, write_id, created_at, updated_at";
+
+    private final CharacterMemoryRepository characterMemoryRepository;
+    private final StringRedisTemplate redisTemplate;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final MemoryVectorIndex memoryVectorIndex;
+
+    @Value("${app.memory.consolidation.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.memory.consolidation.interval:10m}")
+    private Duration interval;
+
+    /**
+     * 相似度不低于该值的记忆视为重复
+     */
+    @Value("${app.memory.consolidation.duplicate-threshold:0.92}")
+    private double duplicateThreshold;
+
+    /**
+     * 每个组合保留的记忆数上限，超出部分中长期未更新的记忆会被归档
+     */
+    @Value("${app.memory.consolidation.max-active-per-pair:1000}")
+    private int maxActivePerPair;
+
+    @Value("${app.memory.consolidation.stale-after:90d}")
+    private Duration staleAfter;
+
+    /**
+     * 去重时每个组合最多比较的记忆数（按更新时间取最新的）
+     */
+    @Value("${app.memory.consolidation.scan-limit:2000}")
+    private int scanLimit;
+
+    /**
+     * 单次运行最多处理的组合数，其余留到下次运行
+     */
+    @Value("${app.memory.consolidation.max-pairs-per-run:200}")
+    private int maxPairsPerRun;
+
+    @Value("${app.memory.consolidation.lock-lease:10m}")
+    private Duration lockLease;
+
+    /**
+     * 截止时间相对数据库当前时间的回退量，需大于最长事务时间与应用和数据库时钟偏差之和（同步写入用应用时钟），
+     * 否则较晚提交的记忆会落在已推进的watermark之前而不被整理
+     */
+    @Value("${app.memory.consolidation.settle-delay:10m}")
+    private Duration settleDelay;
+
+    private final String instanceId = UUID.randomUUID().toString();
+    private Scheduler scheduler;
+    private Disposable worker;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final LongAdder pairsProcessed = new LongAdder();
+    private final LongAdder duplicatesArchived = new LongAdder();
+    private final LongAdder staleArchived = new LongAdder();
+    private volatile long lastRunMillis;
+    private volatile Instant lastRunAt;
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Schedulers.newSingle("memory-consolidation", true);
+        worker = Flux.interval(interval, interval, scheduler)
+                .onBackpressureDrop()
+                .concatMap(tick -> Mono.fromRunnable(this::runOnce)
+                        .onErrorResume(error -> {
+                            log.error("记忆整理失败", error);
+                            return Mono.empty();
+                        }), 1)
+                .subscribe();
+        log.info("记忆整理已启动: 间隔={}, 重复阈值={}, 单组合上限={}, 过期时间={}",
+                interval, duplicateThreshold, maxActivePerPair, staleAfter);
+    }
+
+    /**
+     * 执行一次整理，其他实例正在整理时直接返回
+     */
+    public void runOnce() {
+        Boolean locked = redisTemplate.opsForValue().setIfAbsent(LOCK_KEY, instanceId, lockLease);
+        if (!Boolean.TRUE.equals(locked)) {
+            log.debug("其他实例正在整理记忆，跳过本次");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            int processed = consolidateChangedPairs();
+            lastRunMillis = System.currentTimeMillis() - start;
+            lastRunAt = Instant.now();
+            runs.incrementAndGet();
+            if (processed > 0) {
+                log.info("记忆整理完成: 处理组合={}, 耗时={}ms, 统计={}", processed, lastRunMillis, getStats());
+            }
+        } finally {
+            redisTemplate.execute(RELEASE_LOCK_SCRIPT, List.of(LOCK_KEY), instanceId);
+        }
+    }
+
+    public ConsolidationStats getStats() {
+        Map<Object, Object> checkpoint = redisTemplate.opsForHash().entries(CHECKPOINT_KEY);
+        Object watermark = checkpoint.get(FIELD_WATERMARK);
+        return new ConsolidationStats(enabled, runs.get(), pairsProcessed.sum(), duplicatesArchived.sum(),
+                staleArchived.sum(), lastRunAt, lastRunMillis,
+                watermark != null ? Instant.ofEpochMilli(Long.parseLong(watermark.toString())) : null,
+                checkpoint.containsKey(FIELD_RUN_UNTIL));
+    }
+
+    /**
+     * 从检查点继续处理(watermark, runUntil]内变化的组合；全部处理完后把watermark推进到runUntil
+     */
+    private int consolidateChangedPairs() {
+        Map<Object, Object> checkpoint = redisTemplate.opsForHash().entries(CHECKPOINT_KEY);
+        Instant since = Instant.ofEpochMilli(parseLong(checkpoint.get(FIELD_WATERMARK), 0L));
+        Instant until;
+        UUID cursorUserId;
+        UUID cursorCardId;
+        if (checkpoint.containsKey(FIELD_RUN_UNTIL)) {
+            until = Instant.ofEpochMilli(parseLong(checkpoint.get(FIELD_RUN_UNTIL), 0L));
+            cursorUserId = parseUuid(checkpoint.get(FIELD_CURSOR_USER));
+            cursorCardId = parseUuid(checkpoint.get(FIELD_CURSOR_CARD));
+            log.debug("继续上次未完成的记忆整理: since={}, until={}, cursor={}:{}", since, until, cursorUserId, cursorCardId);
+        } else {
+            until = jdbcTemplate.queryForObject("SELECT now()", Timestamp.class).toInstant().minus(settleDelay);
+            if (!until.isAfter(since)) {
+                return 0;
+            }
+            cursorUserId = MIN_UUID;
+            cursorCardId = MIN_UUID;
+            redisTemplate.opsForHash().putAll(CHECKPOINT_KEY, Map.of(
+                    FIELD_RUN_UNTIL, String.valueOf(until.toEpochMilli()),
+                    FIELD_CURSOR_USER, cursorUserId.toString(),
+                    FIELD_CURSOR_CARD, cursorCardId.toString()));
+        }
+
+        int processed = 0;
+        while (processed < maxPairsPerRun) {
+            int pageSize = Math.min(PAGE_SIZE, maxPairsPerRun - processed);
+            List<MemoryPair> pairs = characterMemoryRepository.findChangedPairs(since, until, cursorUserId, cursorCardId,
+                    pageSize);
+            for (MemoryPair pair : pairs) {
+                consolidatePair(pair.getUserId(), pair.getCharacterCardId(), since);
+                cursorUserId = pair.getUserId();
+                cursorCardId = pair.getCharacterCardId();
+                redisTemplate.opsForHash().putAll(CHECKPOINT_KEY, Map.of(
+                        FIELD_CURSOR_USER, cursorUserId.toString(),
+                        FIELD_CURSOR_CARD, cursorCardId.toString()));
+                processed++;
+                if (!renewLock()) {
+                    log.warn("记忆整理锁已失效，停止本次运行，下次从游标处继续: processed={}", processed);
+                    return processed;
+                }
+            }
+            if (pairs.size() < pageSize) {
+                redisTemplate.opsForHash().put(CHECKPOINT_KEY, FIELD_WATERMARK, String.valueOf(until.toEpochMilli()));
+                redisTemplate.opsForHash().delete(CHECKPOINT_KEY, FIELD_RUN_UNTIL, FIELD_CURSOR_USER, FIELD_CURSOR_CARD);
+                break;
+            }
+        }
+        return processed;
+    }
+
+    private boolean renewLock() {
+        Long renewed = redisTemplate.execute(RENEW_LOCK_SCRIPT, List.of(LOCK_KEY), instanceId,
+                String.valueOf(lockLease.toMillis()));
+        return renewed != null && renewed == 1L;
+    }
+
+    /**
+     * 整理一个组合：先归档重复记忆，再归档超出上限的过期记忆
+     */
+    private void consolidatePair(UUID userId, UUID characterCardId, Instant since) {
+        List<MemoryVector> rows = characterMemoryRepository.findRecentMemoryVectors(userId, characterCardId, scanLimit);
+        Map<Long, List<Long>> duplicates = findDuplicates(rows, since);
+
+        List<Long> archived = transactionTemplate.execute(status -> {
+            List<Long> ids = new ArrayList<>();
+            duplicates.forEach((survivorId, duplicateIds) -> ids.addAll(archiveDuplicates(survivorId, duplicateIds)));
+            int duplicateCount = ids.size();
+            ids.addAll(archiveStale(userId, characterCardId));
+            duplicatesArchived.add(duplicateCount);
+            staleArchived.add(ids.size() - duplicateCount);
+            return ids;
+        });
+        pairsProcessed.increment();
+
+        if (archived != null && !archived.isEmpty()) {
+            memoryVectorIndex.remove(userId, characterCardId, archived);
+            log.debug("记忆整理: userId={}, characterCardId={}, 归档={}", userId, characterCardId, archived.size());
+        }
+    }
+
+    /**
+     * 按更新时间从新到旧做贪心聚类：每条记忆与已保留的记忆比较，相似度达到阈值则被最早匹配到的（较新的）记忆取代。
+     * 两条都在since之前的记忆已在之前的运行中比较过，跳过；返回 保留记忆ID -> 被取代的记忆ID
+     */
+    private Map<Long, List<Long>> findDuplicates(List<MemoryVector> rows, Instant since) {
+        List<float[]> keptVectors = new ArrayList<>();
+        List<Long> keptIds = new ArrayList<>();
+        List<Boolean> keptChanged = new ArrayList<>();
+        Map<Long, List<Long>> duplicates = new LinkedHashMap<>();
+
+        for (MemoryVector row : rows) {
+            float[] vector = MemoryVectorIndex.normalize(MemoryVectorIndex.parseVector(row.getEmbedding()));
+            if (vector == null) {
+                continue;
+            }
+            boolean changed = row.getUpdatedAt() == null || row.getUpdatedAt().isAfter(since);
+            Long survivorId = null;
+            for (int i = 0; i < keptVectors.size(); i++) {
+                if (!changed && !keptChanged.get(i)) {
+                    continue;
+                }
+                if (dot(keptVectors.get(i), vector) >= duplicateThreshold) {
+                    survivorId = keptIds.get(i);
+                    break;
+                }
+            }
+            if (survivorId != null) {
+                duplicates.computeIfAbsent(survivorId, id -> new ArrayList<>()).add(row.getId());
+            } else {
+                keptVectors.add(vector);
+                keptIds.add(row.getId());
+                keptChanged.add(changed);
+            }
+        }
+        return duplicates;
+    }
+
+    /**
+     * 把被取代的记忆移入归档表并记录取代它的记忆，返回实际归档的ID；异步写入合并记忆时也使用
+     */
+    List<Long> archiveDuplicates(Long survivorId, List<Long> duplicateIds) {
+        String placeholders = String.join(", ", Collections.nCopies(duplicateIds.size(), "?"));
+        String sql = """
+                WITH moved AS (
+                    DELETE FROM character_memories
+                    WHERE id IN (%s)
+                    RETURNING %s
+                )
+                INSERT INTO character_memory_archive (%s, archive_reason, superseded_by)
+                SELECT %s, 'DUPLICATE', ? FROM moved
+                RETURNING id
+                """.formatted(placeholders, ARCHIVE_COLUMNS, ARCHIVE_COLUMNS, ARCHIVE_COLUMNS);
+        List<Object> args = new ArrayList<>(duplicateIds);
+        args.add(survivorId);
+        return jdbcTemplate.queryForList(sql, Long.class, args.toArray());
+    }
+
+    /**
+     * 归档按更新时间排在上限之后、且超过stale-after未更新的记忆
+     */
+    private List<Long> archiveStale(UUID userId, UUID characterCardId) {
+        String sql = """
+                WITH moved AS (
+                    DELETE FROM character_memories
+                    WHERE id IN (
+                        SELECT ranked.id
+                        FROM (
+                            SELECT id, updated_at,
+                                   row_number() OVER (ORDER BY updated_at DESC, id DESC) AS rn
+                            FROM character_memories
+                            WHERE user_id = ? AND character_card_id = ?
+                        ) ranked
+                        WHERE ranked.rn > ? AND ranked.updated_at < ?
+                    )
+                    RETURNING %s
+                )
+                INSERT INTO character_memory_archive (%s, archive_reason)
+                SELECT %s, 'STALE' FROM moved
+                RETURNING id
+                """.formatted(ARCHIVE_COLUMNS, ARCHIVE_COLUMNS, ARCHIVE_COLUMNS);
+        Timestamp staleBefore = Timestamp.from(Instant.now().minus(staleAfter));
+        return jdbcTemplate.queryForList(sql, Long.class, userId, characterCardId, maxActivePerPair, staleBefore);
+    }
+
+    private static double dot(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static long parseLong(Object value, long defaultValue) {
+        return value != null ? Long.parseLong(value.toString()) : defaultValue;
+    }
+
+    private static UUID parseUuid(Object value) {
+        return value != null ? UUID.fromString(value.toString()) : MIN_UUID;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (worker != null) {
+            worker.dispose();
+        }
+        if (scheduler != null) {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * 整理统计，watermark之前变化的组合均已整理，inProgress表示有未完成的运行（从游标处继续）
+     */
+    public record ConsolidationStats(boolean enabled, long runs, long pairsProcessed, long duplicatesArchived,
+                                     long staleArchived, Instant lastRunAt, long lastRunMillis,
+                                     Instant watermark, boolean inProgress) {}
+}
@@ -0,0 +1,686 @@
+package com.github.jwj.brilliantavern.service.memory;
+
+import com.github.jwj.brilliantavern.entity.CharacterMemory;
+import com.github.jwj.brilliantavern.repository.CharacterMemoryRepository;
+import com.github.jwj.brilliantavern.repository.CharacterMemoryRepository.MemoryVector;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 角色记忆的进程内向量索引
+ * 活跃的（用户, 角色卡）组合首次检索时把全部记忆向量载入堆外的连续内存，之后的相似度检索在本地完成，
+ * 不再访问数据库；新记忆提交后写入已载入的索引。所有索引共享一个内存上限，超出时按最近最少使用淘汰。
+ * 向量写入前归一化，余弦相似度即点积，与pgvector的余弦距离一致。
+ * 索引在每个节点各自维护：本节点的写入直接更新索引，同时按组合广播给其他节点丢弃对应索引，
+ * 广播丢失时由索引的最长存活时间兜底
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class MemoryVectorIndex {
+
+    private static final int STATS_LOG_INTERVAL = 1000;
+    private static final int INITIAL_CAPACITY = 64;
+    // 每条记忆在堆上的元数据估算（实体对象、ID映射等），不含文本
+    private static final int METADATA_OVERHEAD_BYTES = 160;
+    private static final int MAX_OVERSIZED_PAIRS = 10_000;
+    private static final String INVALIDATION_CHANNEL = "memory:vector-index:invalidate";
+    private static final String NODE_ID = UUID.randomUUID().toString();
+
+    public enum Quantization {
+        /**
+         * 原始float32向量
+         */
+        FLOAT32,
+        /**
+         * 每个向量按最大绝对值缩放到int8，内存为FLOAT32的四分之一
+         */
+        INT8
+    }
+
+    private final CharacterMemoryRepository characterMemoryRepository;
+    private final StringRedisTemplate redisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    @Value("${app.memory.vector-index.enabled:false}")
+    private boolean enabled;
+
+    /**
+     * 所有索引合计的内存上限（向量+元数据估算）
+     */
+    @Value("${app.memory.vector-index.max-size:256MB}")
+    private DataSize maxSize;
+
+    /**
+     * 记忆数超过该值的组合不建立索引，照常查询数据库
+     */
+    @Value("${app.memory.vector-index.max-memories-per-pair:5000}")
+    private int maxMemoriesPerPair;
+
+    @Value("${app.memory.vector-index.quantization:FLOAT32}")
+    private Quantization quantization;
+
+    /**
+     * 索引载入后的最长使用时间，到期后重新载入，兜底丢失的跨节点失效广播
+     */
+    @Value("${app.memory.vector-index.max-age:10m}")
+    private Duration maxAge;
+
+    // 按访问顺序排列，最久未使用的在前
+    private final LinkedHashMap<PairKey, PairIndex> indexes = new LinkedHashMap<>(16, 0.75f, true);
+    // 记忆数超出上限的组合及判定时间，maxAge内不再尝试载入
+    private final LinkedHashMap<PairKey, Long> oversizedPairs = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PairKey, Long> eldest) {
+            return size() > MAX_OVERSIZED_PAIRS;
+        }
+    };
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    private final AtomicLong searches = new AtomicLong();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder searchNanosTotal = new LongAdder();
+
+    @PostConstruct
+    public void subscribeInvalidation() {
+        if (!enabled) {
+            return;
+        }
+        listenerContainer.addMessageListener((message, pattern) ->
+                onInvalidation(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(INVALIDATION_CHANNEL));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 在索引中检索相似记忆，按相似度降序返回；未开启、组合记忆过多或载入失败时返回null，由调用方查询数据库
+     */
+    public List<CharacterMemory> search(UUID userId, UUID characterCardId, float[] queryEmbedding,
+                                        double similarityThreshold, int limit) {
+        if (!enabled || queryEmbedding == null) {
+            return null;
+        }
+        PairKey key = new PairKey(userId, characterCardId);
+        PairIndex index = acquire(key);
+        float[] query = normalize(queryEmbedding);
+        List<CharacterMemory> result = index != null && query != null
+                ? index.search(query, (float) similarityThreshold, limit)
+                : null;
+        if (result == null) {
+            fallbacks.increment();
+            return null;
+        }
+        return result;
+    }
+
+    /**
+     * 写入一条已提交的记忆，只更新已载入的索引，未载入的组合在首次检索时从数据库载入
+     */
+    public void add(CharacterMemory memory) {
+        if (!enabled || memory.getId() == null || memory.getEmbedding() == null) {
+            return;
+        }
+        PairKey key = new PairKey(memory.getUserId(), memory.getCharacterCardId());
+        broadcast(key);
+        PairIndex index;
+        synchronized (indexes) {
+            index = indexes.get(key);
+        }
+        float[] vector = normalize(memory.getEmbedding());
+        if (index == null || vector == null) {
+            return;
+        }
+        long delta = index.add(toIndexedMemory(memory), vector, maxMemoriesPerPair);
+        if (index.isOversized()) {
+            markOversized(key, index);
+        }
+        if (delta != 0) {
+            totalBytes.addAndGet(delta);
+            evictIfNeeded(key);
+        }
+    }
+
+    /**
+     * 从已载入的索引中移除记忆
+     */
+    public void remove(UUID userId, UUID characterCardId, Collection<Long> memoryIds) {
+        if (!enabled || memoryIds.isEmpty()) {
+            return;
+        }
+        PairKey key = new PairKey(userId, characterCardId);
+        broadcast(key);
+        PairIndex index;
+        synchronized (indexes) {
+            index = indexes.get(key);
+        }
+        if (index != null) {
+            totalBytes.addAndGet(index.remove(memoryIds));
+        }
+    }
+
+    /**
+     * 丢弃组合的索引，下次检索时重新载入
+     */
+    public void invalidate(UUID userId, UUID characterCardId) {
+        if (!enabled) {
+            return;
+        }
+        PairKey key = new PairKey(userId, characterCardId);
+        broadcast(key);
+        discard(key);
+    }
+
+    public IndexStats getStats() {
+        int pairs;
+        synchronized (indexes) {
+            pairs = indexes.size();
+        }
+        long searchCount = searches.get();
+        return new IndexStats(pairs, totalBytes.get(), maxSize.toBytes(), searchCount, fallbacks.sum(),
+                loads.sum(), evictions.sum(),
+                searchCount > 0 ? searchNanosTotal.sum() / searchCount / 1000 : 0);
+    }
+
+    private PairIndex acquire(PairKey key) {
+        long now = System.nanoTime();
+        PairIndex index;
+        PairIndex expired = null;
+        synchronized (indexes) {
+            Long oversizedAt = oversizedPairs.get(key);
+            if (oversizedAt != null) {
+                if (now - oversizedAt < maxAge.toNanos()) {
+                    return null;
+                }
+                oversizedPairs.remove(key);
+            }
+            index = indexes.get(key);
+            if (index != null && index.isExpired(now, maxAge.toNanos())) {
+                indexes.remove(key);
+                expired = index;
+                index = null;
+            }
+            if (index == null) {
+                index = new PairIndex();
+                indexes.put(key, index);
+            }
+        }
+        if (expired != null) {
+            totalBytes.addAndGet(-expired.release());
+        }
+        long delta;
+        try {
+            delta = index.ensureLoaded(key);
+        } catch (Exception e) {
+            log.warn("载入记忆向量索引失败: userId={}, characterCardId={}, error={}",
+                    key.userId(), key.characterCardId(), e.getMessage());
+            synchronized (indexes) {
+                indexes.remove(key, index);
+            }
+            return null;
+        }
+        if (index.isOversized()) {
+            markOversized(key, index);
+            return null;
+        }
+        if (delta != 0) {
+            totalBytes.addAndGet(delta);
+            evictIfNeeded(key);
+        }
+        return index;
+    }
+
+    /**
+     * 记忆数超出上限的组合移出索引表，maxAge后的检索重新判断
+     */
+    private void markOversized(PairKey key, PairIndex index) {
+        synchronized (indexes) {
+            indexes.remove(key, index);
+            oversizedPairs.put(key, System.nanoTime());
+        }
+    }
+
+    private void discard(PairKey key) {
+        PairIndex index;
+        synchronized (indexes) {
+            index = indexes.remove(key);
+            oversizedPairs.remove(key);
+        }
+        if (index != null) {
+            totalBytes.addAndGet(-index.release());
+        }
+    }
+
+    /**
+     * 通知其他节点丢弃组合的索引，广播内容格式：节点ID|用户ID|角色卡ID
+     */
+    private void broadcast(PairKey key) {
+        try {
+            redisTemplate.convertAndSend(INVALIDATION_CHANNEL,
+                    NODE_ID + "|" + key.userId() + "|" + key.characterCardId());
+        } catch (Exception e) {
+            log.warn("广播记忆向量索引失效失败，其他节点的索引将在到期后重新载入: userId={}, characterCardId={}, error={}",
+                    key.userId(), key.characterCardId(), e.getMessage());
+        }
+    }
+
+    private void onInvalidation(String payload) {
+        String[] parts = payload.split("\\|");
+        if (parts.length != 3 || NODE_ID.equals(parts[0])) {
+            return;
+        }
+        try {
+            discard(new PairKey(UUID.fromString(parts[1]), UUID.fromString(parts[2])));
+        } catch (IllegalArgumentException e) {
+            log.warn("无效的记忆向量索引失效通知: {}", payload);
+        }
+    }
+
+    /**
+     * 超出内存上限时淘汰最久未使用的索引，刚访问的组合保留
+     */
+    private void evictIfNeeded(PairKey keep) {
+        long limit = maxSize.toBytes();
+        while (totalBytes.get() > limit) {
+            PairIndex victim = null;
+            PairKey victimKey = null;
+            synchronized (indexes) {
+                Iterator<Map.Entry<PairKey, PairIndex>> iterator = indexes.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    Map.Entry<PairKey, PairIndex> entry = iterator.next();
+                    if (!entry.getKey().equals(keep)) {
+                        victimKey = entry.getKey();
+                        victim = entry.getValue();
+                        iterator.remove();
+                        break;
+                    }
+                }
+            }
+            if (victim == null) {
+                return;
+            }
+            totalBytes.addAndGet(-victim.release());
+            evictions.increment();
+            log.debug("淘汰记忆向量索引: userId={}, characterCardId={}", victimKey.userId(), victimKey.characterCardId());
+        }
+    }
+
+    private void recordSearch(long nanos) {
+        searchNanosTotal.add(nanos);
+        if (searches.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+            log.info("记忆向量索引统计: {}", getStats());
+        }
+    }
+
+    private List<MemoryVector> loadVectors(PairKey key) {
+        loads.increment();
+        // 多取一条用于判断是否超出单个组合的上限
+        return characterMemoryRepository.findMemoryVectors(key.userId(), key.characterCardId(), maxMemoriesPerPair + 1);
+    }
+
+    private static CharacterMemory toIndexedMemory(CharacterMemory memory) {
+        // 向量已写入堆外内存，元数据副本不再持有
+        return CharacterMemory.builder()
+                .id(memory.getId())
+                .userId(memory.getUserId())
+                .characterCardId(memory.getCharacterCardId())
+                .memoryContent(memory.getMemoryContent())
+                .createdAt(memory.getCreatedAt())
+                .updatedAt(memory.getUpdatedAt())
+                .build();
+    }
+
+    private static CharacterMemory toIndexedMemory(MemoryVector row) {
+        return CharacterMemory.builder()
+                .id(row.getId())
+                .userId(row.getUserId())
+                .characterCardId(row.getCharacterCardId())
+                .memoryContent(row.getMemoryContent())
+                .createdAt(row.getCreatedAt() != null ? row.getCreatedAt().atOffset(ZoneOffset.UTC) : null)
+                .updatedAt(row.getUpdatedAt() != null ? row.getUpdatedAt().atOffset(ZoneOffset.UTC) : null)
+                .build();
+    }
+
+    /**
+     * 解析pgvector的文本格式 "[0.1,0.2,...]"
+     */
+    static float[] parseVector(String text) {
+        int start = text.indexOf('[') + 1;
+        int end = text.lastIndexOf(']');
+        if (start <= 0 || end < start) {
+            throw new IllegalArgumentException("向量格式错误");
+        }
+        int count = end > start ? 1 : 0;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == ',') {
+                count++;
+            }
+        }
+        float[] vector = new float[count];
+        int from = start;
+        for (int i = 0; i < count; i++) {
+            int comma = text.indexOf(',', from);
+            int to = comma < 0 || comma > end ? end : comma;
+            vector[i] = Float.parseFloat(text.substring(from, to).trim());
+            from = to + 1;
+        }
+        return vector;
+    }
+
+    /**
+     * 归一化为单位向量，零向量返回null
+     */
+    static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float v : vector) {
+            norm += v * v;
+        }
+        if (norm == 0) {
+            return null;
+        }
+        float inverse = (float) (1 / Math.sqrt(norm));
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = vector[i] * inverse;
+        }
+        return normalized;
+    }
+
+    private record PairKey(UUID userId, UUID characterCardId) {}
+
+    /**
+     * 索引统计，bytes为向量与元数据的估算占用
+     */
+    public record IndexStats(int pairs, long bytes, long maxBytes, long searches, long fallbacks,
+                             long loads, long evictions, long avgSearchMicros) {}
+
+    private enum State {
+        NEW, READY, OVERSIZED, RELEASED
+    }
+
+    /**
+     * 单个（用户, 角色卡）组合的索引
+     * 向量按写入顺序连续存放在一个直接缓冲区中，检索时顺序扫描，点积用四路累加展开便于JIT生成SIMD指令
+     */
+    private final class PairIndex {
+        private State state = State.NEW;
+        private int dimensions;
+        private int bytesPerVector;
+        private int size;
+        private int capacity;
+        private ByteBuffer vectors;
+        private float[] scales;
+        private CharacterMemory[] memories;
+        private final Map<Long, Integer> positions = new HashMap<>();
+        private long bytes;
+        private long loadedAt;
+
+        /**
+         * 首次使用时从数据库载入，返回新增的内存占用
+         */
+        synchronized long ensureLoaded(PairKey key) {
+            if (state != State.NEW) {
+                return 0;
+            }
+            long start = System.nanoTime();
+            loadedAt = start;
+            List<MemoryVector> rows = loadVectors(key);
+            if (rows.size() > maxMemoriesPerPair) {
+                state = State.OVERSIZED;
+                log.debug("记忆数超出索引上限，使用数据库检索: userId={}, characterCardId={}, limit={}",
+                        key.userId(), key.characterCardId(), maxMemoriesPerPair);
+                return 0;
+            }
+            long before = bytes;
+            allocate(Math.max(INITIAL_CAPACITY, rows.size()), 0);
+            for (MemoryVector row : rows) {
+                float[] vector = normalize(parseVector(row.getEmbedding()));
+                if (vector != null) {
+                    append(toIndexedMemory(row), vector);
+                }
+            }
+            state = State.READY;
+            log.debug("载入记忆向量索引: userId={}, characterCardId={}, memories={}, 耗时={}ms",
+                    key.userId(), key.characterCardId(), size, (System.nanoTime() - start) / 1_000_000);
+            return bytes - before;
+        }
+
+        synchronized boolean isOversized() {
+            return state == State.OVERSIZED;
+        }
+
+        synchronized boolean isExpired(long now, long maxAgeNanos) {
+            return state == State.READY && now - loadedAt >= maxAgeNanos;
+        }
+
+        synchronized List<CharacterMemory> search(float[] query, float threshold, int limit) {
+            if (state != State.READY || (size > 0 && query.length != dimensions)) {
+                return null;
+            }
+            long start = System.nanoTime();
+            int k = Math.min(limit, size);
+            int[] top = new int[k];
+            float[] topScores = new float[k];
+            int found = 0;
+            for (int i = 0; i < size; i++) {
+                float score = quantization == Quantization.INT8 ? dotInt8(i, query) : dotFloat32(i, query);
+                if (score < threshold || (found == k && (k == 0 || score <= topScores[k - 1]))) {
+                    continue;
+                }
+                // 插入排序维护前k个
+                int pos = found < k ? found++ : k - 1;
+                while (pos > 0 && topScores[pos - 1] < score) {
+                    topScores[pos] = topScores[pos - 1];
+                    top[pos] = top[pos - 1];
+                    pos--;
+                }
+                topScores[pos] = score;
+                top[pos] = i;
+            }
+            List<CharacterMemory> result = new ArrayList<>(found);
+            for (int i = 0; i < found; i++) {
+                result.add(toIndexedMemory(memories[top[i]]));
+            }
+            recordSearch(System.nanoTime() - start);
+            return result;
+        }
+
+        synchronized long add(CharacterMemory memory, float[] vector, int maxMemories) {
+            if (state != State.READY || positions.containsKey(memory.getId())) {
+                return 0;
+            }
+            if (size > 0 && vector.length != dimensions) {
+                log.warn("记忆向量维度不一致，忽略: memoryId={}, expected={}, actual={}",
+                        memory.getId(), dimensions, vector.length);
+                return 0;
+            }
+            if (size >= maxMemories) {
+                // 超出上限后改为数据库检索
+                long released = bytes;
+                clear();
+                state = State.OVERSIZED;
+                return -released;
+            }
+            long before = bytes;
+            append(memory, vector);
+            return bytes - before;
+        }
+
+        /**
+         * 移除记忆，返回释放的内存（负值），向量缓冲区容量不缩小
+         */
+        synchronized long remove(Collection<Long> memoryIds) {
+            if (state != State.READY) {
+                return 0;
+            }
+            long before = bytes;
+            for (Long memoryId : memoryIds) {
+                Integer position = positions.remove(memoryId);
+                if (position == null) {
+                    continue;
+                }
+                bytes -= metadataBytes(memories[position]);
+                // 用最后一条填补空位，保持存储连续
+                int last = size - 1;
+                if (position != last) {
+                    copyVector(last, position);
+                    memories[position] = memories[last];
+                    positions.put(memories[position].getId(), position);
+                }
+                memories[last] = null;
+                size--;
+            }
+            return bytes - before;
+        }
+
+        synchronized long release() {
+            long released = bytes;
+            clear();
+            state = State.RELEASED;
+            return released;
+        }
+
+        private void clear() {
+            vectors = null;
+            scales = null;
+            memories = null;
+            positions.clear();
+            size = 0;
+            capacity = 0;
+            bytes = 0;
+        }
+
+        private void append(CharacterMemory memory, float[] vector) {
+            if (size == 0 && dimensions == 0) {
+                dimensions = vector.length;
+                bytesPerVector = quantization == Quantization.INT8 ? dimensions : dimensions * Float.BYTES;
+                allocate(Math.max(capacity, INITIAL_CAPACITY), 0);
+            } else if (vector.length != dimensions) {
+                return;
+            }
+            if (size == capacity) {
+                allocate(capacity * 2, size);
+            }
+            int base = size * bytesPerVector;
+            if (quantization == Quantization.INT8) {
+                float maxAbs = 0;
+                for (float v : vector) {
+                    maxAbs = Math.max(maxAbs, Math.abs(v));
+                }
+                float scale = maxAbs / 127f;
+                for (int j = 0; j < dimensions; j++) {
+                    vectors.put(base + j, (byte) Math.round(vector[j] / scale));
+                }
+                scales[size] = scale;
+            } else {
+                for (int j = 0; j < dimensions; j++) {
+                    vectors.putFloat(base + j * Float.BYTES, vector[j]);
+                }
+            }
+            memories[size] = memory;
+            positions.put(memory.getId(), size);
+            size++;
+            bytes += metadataBytes(memory);
+        }
+
+        private long metadataBytes(CharacterMemory memory) {
+            String content = memory.getMemoryContent();
+            return METADATA_OVERHEAD_BYTES + (content != null ? content.length() * 2L : 0);
+        }
+
+        /**
+         * 按新容量分配缓冲区并复制已有的前count个向量；维度未知时只分配元数据数组
+         */
+        private void allocate(int newCapacity, int count) {
+            long vectorBytesBefore = vectors != null ? vectors.capacity() : 0;
+            if (bytesPerVector > 0) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(newCapacity * bytesPerVector).order(ByteOrder.nativeOrder());
+                if (vectors != null && count > 0) {
+                    ByteBuffer source = vectors.duplicate();
+                    source.position(0).limit(count * bytesPerVector);
+                    buffer.put(source);
+                }
+                vectors = buffer;
+            }
+            float[] newScales = new float[newCapacity];
+            CharacterMemory[] newMemories = new CharacterMemory[newCapacity];
+            if (memories != null) {
+                System.arraycopy(memories, 0, newMemories, 0, count);
+                System.arraycopy(scales, 0, newScales, 0, count);
+            }
+            memories = newMemories;
+            scales = newScales;
+            capacity = newCapacity;
+            bytes += (vectors != null ? vectors.capacity() : 0) - vectorBytesBefore;
+        }
+
+        private void copyVector(int from, int to) {
+            int source = from * bytesPerVector;
+            int target = to * bytesPerVector;
+            for (int j = 0; j < bytesPerVector; j++) {
+                vectors.put(target + j, vectors.get(source + j));
+            }
+            scales[to] = scales[from];
+        }
+
+        private float dotFloat32(int index, float[] query) {
+            int base = index * bytesPerVector;
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int j = 0;
+            for (; j + 3 < dimensions; j += 4) {
+                int offset = base + j * Float.BYTES;
+                s0 += vectors.getFloat(offset) * query[j];
+                s1 += vectors.getFloat(offset + 4) * query[j + 1];
+                s2 += vectors.getFloat(offset + 8) * query[j + 2];
+                s3 += vectors.getFloat(offset + 12) * query[j + 3];
+            }
+            for (; j < dimensions; j++) {
+                s0 += vectors.getFloat(base + j * Float.BYTES) * query[j];
+            }
+            return s0 + s1 + s2 + s3;
+        }
+
+        private float dotInt8(int index, float[] query) {
+            int base = index * bytesPerVector;
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int j = 0;
+            for (; j + 3 < dimensions; j += 4) {
+                s0 += vectors.get(base + j) * query[j];
+                s1 += vectors.get(base + j + 1) * query[j + 1];
+                s2 += vectors.get(base + j + 2) * query[j + 2];
+                s3 += vectors.get(base + j + 3) * query[j + 3];
+            }
+            for (; j < dimensions; j++) {
+                s0 += vectors.get(base + j) * query[j];
+            }
+            return (s0 + s1 + s2 + s3) * scales[index];
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.github.jwj.brilliantavern.service.memory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.jwj.brilliantavern.entity.CharacterMemory;
+import com.github.jwj.brilliantavern.service.CharacterMemoryService;
+import com.github.jwj.brilliantavern.service.genai.EmbeddingService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.StringUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 角色记忆异步写入
+ * remember()只把记忆写入Redis队列即返回，后台按批取出：批量生成嵌入向量，用一条多行INSERT写入；
+ * 与已有记忆近似重复的，新记忆写入后原记忆移入归档表并记录被新记忆取代，旧内容不会丢失。
+ * 每条记忆的writeId由内容生成，重复投递和重试不会产生重复记录。
+ * 取出的批次先登记为处理中，节点异常退出时超过租约的批次会重新放回队列；整批失败时逐条重试，只有失败的条目放回队列
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MemoryWriteBehindService {
+
+    private static final String QUEUE_KEY = "memory:write:queue";
+    private static final String INFLIGHT_KEY = "memory:write:inflight";
+    private static final String INFLIGHT_CLAIMED_KEY = "memory:write:inflight:claimed";
+    private static final String DEAD_LETTER_KEY = "memory:write:dead";
+    private static final int STATS_LOG_INTERVAL = 100;
+
+    /**
+     * 取出一批：ARGV[1]=最大条数，ARGV[2]=批次ID，ARGV[3]=取出时间；返回取出的条目
+     */
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> CLAIM_SCRIPT = new DefaultRedisScript<>("""
+            local items = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1)
+            if #items == 0 then
+              return items
+            end
+            redis.call('LTRIM', KEYS[1], #items, -1)
+            redis.call('HSET', KEYS[2], ARGV[2], cjson.encode(items))
+            redis.call('ZADD', KEYS[3], ARGV[3], ARGV[2])
+            return items
+            """, List.class);
+
+    /**
+     * 把取出时间早于ARGV[1]的批次放回队列头部；返回放回的批次数
+     */
+    private static final RedisScript<Long> RECOVER_SCRIPT = new DefaultRedisScript<>("""
+            local expired = redis.call('ZRANGEBYSCORE', KEYS[3], '-inf', ARGV[1])
+            for _, batchId in ipairs(expired) do
+              local batch = redis.call('HGET', KEYS[2], batchId)
+              if batch then
+                local items = cjson.decode(batch)
+                for i = #items, 1, -1 do
+                  redis.call('LPUSH', KEYS[1], items[i])
+                end
+              end
+              redis.call('HDEL', KEYS[2], batchId)
+              redis.call('ZREM', KEYS[3], batchId)
+            end
+            return #expired
+            """, Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final ObjectMapper objectMapper;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final EmbeddingService embeddingService;
+    private final CharacterMemoryService characterMemoryService;
+    private final MemoryVectorIndex memoryVectorIndex;
+    private final MemoryConsolidationService memoryConsolidationService;
+
+    @Value("${app.memory.write-behind.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.memory.write-behind.poll-interval:200ms}")
+    private Duration pollInterval;
+
+    @Value("${app.memory.write-behind.batch-size:32}")
+    private int batchSize;
+
+    /**
+     * 与已有记忆的相似度不低于该值时合并为一条
+     */
+    @Value("${app.memory.write-behind.merge-threshold:0.95}")
+    private double mergeThreshold;
+
+    /**
+     * 批次处理中超过该时间未确认视为节点已退出，重新放回队列
+     */
+    @Value("${app.memory.write-behind.lease:5m}")
+    private Duration lease;
+
+    @Value("${app.memory.write-behind.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${app.memory.write-behind.retry-backoff:5s}")
+    private Duration retryBackoff;
+
+    private Scheduler scheduler;
+    private Disposable worker;
+    private volatile long pausedUntil;
+
+    private final LongAdder enqueued = new LongAdder();
+    private final LongAdder inserted = new LongAdder();
+    private final LongAdder merged = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder deadLettered = new LongAdder();
+    private final AtomicLong batches = new AtomicLong();
+    private final LongAdder batchMillisTotal = new LongAdder();
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Schedulers.newSingle("memory-write-behind", true);
+        worker = Flux.interval(pollInterval, scheduler)
+                .onBackpressureDrop()
+                .concatMap(tick -> Mono.fromRunnable(this::drain)
+                        .onErrorResume(error -> {
+                            log.warn("记忆写入队列处理失败: {}", error.getMessage());
+                            return Mono.empty();
+                        }), 1)
+                .subscribe();
+        log.info("记忆异步写入已启动: 轮询间隔={}, 批大小={}, 合并阈值={}, 租约={}",
+                pollInterval, batchSize, mergeThreshold, lease);
+    }
+
+    /**
+     * 记录一条记忆；开启异步写入时入队后立即返回true，否则（或入队失败时）同步写入并返回false
+     */
+    public boolean remember(UUID userId, UUID characterCardId, String memoryContent) {
+        if (!StringUtils.hasText(memoryContent)) {
+            throw new IllegalArgumentException("记忆内容不能为空");
+        }
+        if (enabled) {
+            String content = memoryContent.trim();
+            MemoryWrite write = new MemoryWrite(writeId(userId, characterCardId, content), userId, characterCardId,
+                    content, System.currentTimeMillis(), 0);
+            try {
+                redisTemplate.opsForList().rightPush(QUEUE_KEY, objectMapper.writeValueAsString(write));
+                enqueued.increment();
+                log.debug("记忆已加入写入队列: userId={}, characterCardId={}, writeId={}",
+                        userId, characterCardId, write.writeId());
+                return true;
+            } catch (Exception e) {
+                log.warn("记忆加入写入队列失败，改为同步写入: userId={}, characterCardId={}, error={}",
+                        userId, characterCardId, e.getMessage());
+            }
+        }
+        characterMemoryService.storeMemory(userId, characterCardId, memoryContent);
+        return false;
+    }
+
+    public WriteBehindStats getStats() {
+        Long queueDepth = redisTemplate.opsForList().size(QUEUE_KEY);
+        Long inflight = redisTemplate.opsForZSet().zCard(INFLIGHT_CLAIMED_KEY);
+        Long dead = redisTemplate.opsForList().size(DEAD_LETTER_KEY);
+        long batchCount = batches.get();
+        return new WriteBehindStats(enabled, queueDepth != null ? queueDepth : 0, inflight != null ? inflight : 0,
+                dead != null ? dead : 0, enqueued.sum(), inserted.sum(), merged.sum(), duplicates.sum(),
+                retried.sum(), deadLettered.sum(), batchCount,
+                batchCount > 0 ? batchMillisTotal.sum() / batchCount : 0);
+    }
+
+    /**
+     * 放回超过租约的批次，然后持续取批处理直到队列为空
+     */
+    private void drain() {
+        if (System.currentTimeMillis() < pausedUntil) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Long recovered = redisTemplate.execute(RECOVER_SCRIPT,
+                List.of(QUEUE_KEY, INFLIGHT_KEY, INFLIGHT_CLAIMED_KEY), String.valueOf(now - lease.toMillis()));
+        if (recovered != null && recovered > 0) {
+            log.warn("放回超过租约的记忆写入批次: count={}", recovered);
+        }
+
+        while (!worker.isDisposed()) {
+            String batchId = UUID.randomUUID().toString();
+            List<?> claimed = redisTemplate.execute(CLAIM_SCRIPT,
+                    List.of(QUEUE_KEY, INFLIGHT_KEY, INFLIGHT_CLAIMED_KEY),
+                    String.valueOf(batchSize), batchId, String.valueOf(System.currentTimeMillis()));
+            if (claimed == null || claimed.isEmpty()) {
+                return;
+            }
+            List<MemoryWrite> writes = decode(claimed);
+            List<MemoryWrite> failed = process(writes) ? List.of() : processEach(writes);
+            if (!failed.isEmpty()) {
+                requeue(failed);
+            }
+            acknowledge(batchId);
+            if (!failed.isEmpty()) {
+                pausedUntil = System.currentTimeMillis() + retryBackoff.toMillis();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 整批失败后逐条处理，避免一条无法写入的记忆拖累同批的其他记忆；返回仍然失败的条目
+     */
+    private List<MemoryWrite> processEach(List<MemoryWrite> writes) {
+        if (writes.size() <= 1) {
+            return writes;
+        }
+        List<MemoryWrite> failed = new ArrayList<>();
+        for (MemoryWrite write : writes) {
+            if (!process(List.of(write))) {
+                failed.add(write);
+            }
+        }
+        log.info("记忆写入批次逐条重试完成: size={}, failed={}", writes.size(), failed.size());
+        return failed;
+    }
+
+    private List<MemoryWrite> decode(List<?> claimed) {
+        List<MemoryWrite> writes = new ArrayList<>(claimed.size());
+        for (Object item : claimed) {
+            try {
+                writes.add(objectMapper.readValue(item.toString(), MemoryWrite.class));
+            } catch (Exception e) {
+                log.error("无法解析的记忆写入条目，移入死信队列: {}", e.getMessage());
+                redisTemplate.opsForList().rightPush(DEAD_LETTER_KEY, item.toString());
+                deadLettered.increment();
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * 处理一批写入，失败时整批回滚并返回false
+     */
+    private boolean process(List<MemoryWrite> writes) {
+        if (writes.isEmpty()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            // 同一批内重复投递的条目只处理一次
+            Map<String, MemoryWrite> unique = new LinkedHashMap<>();
+            for (MemoryWrite write : writes) {
+                if (unique.putIfAbsent(write.writeId(), write) != null) {
+                    duplicates.increment();
+                }
+            }
+            List<MemoryWrite> pending = List.copyOf(unique.values());
+            List<float[]> embeddings = embeddingService.embedAll(pending.stream().map(MemoryWrite::content).toList());
+
+            WritePlan plan = plan(pending, embeddings);
+            List<PendingMemory> superseded = new ArrayList<>();
+            List<CharacterMemory> insertedMemories = transactionTemplate.execute(status -> {
+                Map<String, CharacterMemory> rows = insert(plan.memories());
+                for (PendingMemory memory : plan.memories()) {
+                    CharacterMemory row = rows.get(memory.write().writeId());
+                    // 原记忆已被整理任务或本批中的其他记忆归档时不再处理
+                    if (memory.existingId() != null && row != null && !memoryConsolidationService
+                            .archiveDuplicates(row.getId(), List.of(memory.existingId())).isEmpty()) {
+                        superseded.add(memory);
+                    }
+                }
+                return List.copyOf(rows.values());
+            });
+            afterWrite(superseded, insertedMemories != null ? insertedMemories : List.of());
+
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            batchMillisTotal.add(elapsedMillis);
+            merged.add(plan.mergedCount());
+            log.debug("记忆写入批次完成: writes={}, inserted={}, merged={}, 耗时={}ms",
+                    writes.size(), insertedMemories != null ? insertedMemories.size() : 0, plan.mergedCount(),
+                    elapsedMillis);
+            if (batches.incrementAndGet() % STATS_LOG_INTERVAL == 0) {
+                log.info("记忆异步写入统计: {}", getStats());
+            }
+            return true;
+        } catch (Exception e) {
+            log.error("记忆写入批次失败，稍后重试: size={}", writes.size(), e);
+            return false;
+        }
+    }
+
+    /**
+     * 决定每条记忆要取代的已有记忆：与本批中较早的记忆近似重复时用较新的内容替换（尚未落库），
+     * 与已有记忆近似重复时记录其ID，写入后归档原记忆
+     */
+    private WritePlan plan(List<MemoryWrite> writes, List<float[]> embeddings) {
+        List<PendingMemory> memories = new ArrayList<>();
+        int mergedCount = 0;
+        for (int i = 0; i < writes.size(); i++) {
+            PendingMemory memory = new PendingMemory(writes.get(i), embeddings.get(i));
+
+            int batchDuplicate = findBatchDuplicate(memories, memory);
+            if (batchDuplicate >= 0) {
+                memories.set(batchDuplicate, memory.withExistingId(memories.get(batchDuplicate).existingId()));
+                mergedCount++;
+                continue;
+            }
+            List<CharacterMemory> similar = characterMemoryService.findSimilarMemories(
+                    memory.write().userId(), memory.write().characterCardId(), memory.embedding(), mergeThreshold, 1);
+            if (!similar.isEmpty()) {
+                memory = memory.withExistingId(similar.get(0).getId());
+                mergedCount++;
+            }
+            memories.add(memory);
+        }
+        return new WritePlan(memories, mergedCount);
+    }
+
+    private int findBatchDuplicate(List<PendingMemory> memories, PendingMemory memory) {
+        for (int i = 0; i < memories.size(); i++) {
+            PendingMemory other = memories.get(i);
+            if (other.write().userId().equals(memory.write().userId())
+                    && other.write().characterCardId().equals(memory.write().characterCardId())
+                    && cosine(other.embedding(), memory.embedding()) >= mergeThreshold) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 多行INSERT，writeId已存在的跳过；返回实际写入的记忆，键为writeId。
+     * created_at为用户提出记忆的时间，updated_at取数据库写入时的时钟，整理任务按updated_at查找变化的组合
+     */
+    private Map<String, CharacterMemory> insert(List<PendingMemory> memories) {
+        if (memories.isEmpty()) {
+            return Map.of();
+        }
+        StringBuilder sql = new StringBuilder("""
+                INSERT INTO character_memories
+                    (user_id, character_card_id, memory_content, embedding, write_id, created_at, updated_at)
+                VALUES
+                """);
+        for (int i = 0; i < memories.size(); i++) {
+            sql.append(i > 0 ? ",\n" : "").append("(?, ?, ?, CAST(? AS vector), ?, ?, clock_timestamp())");
+        }
+        sql.append("\nON CONFLICT (write_id) DO NOTHING\nRETURNING id, write_id, updated_at");
+
+        Map<String, PendingMemory> byWriteId = new LinkedHashMap<>();
+        memories.forEach(memory -> byWriteId.put(memory.write().writeId(), memory));
+        Map<String, CharacterMemory> result = new LinkedHashMap<>();
+        jdbcTemplate.query(con -> {
+            PreparedStatement statement = con.prepareStatement(sql.toString());
+            int index = 1;
+            for (PendingMemory memory : memories) {
+                OffsetDateTime createdAt = Instant.ofEpochMilli(memory.write().createdAt()).atOffset(ZoneOffset.UTC);
+                index = bind(statement, index, memory, createdAt);
+            }
+            return statement;
+        }, rs -> {
+            PendingMemory memory = byWriteId.get(rs.getString("write_id"));
+            OffsetDateTime createdAt = Instant.ofEpochMilli(memory.write().createdAt()).atOffset(ZoneOffset.UTC);
+            result.put(memory.write().writeId(), CharacterMemory.builder()
+                    .id(rs.getLong("id"))
+                    .userId(memory.write().userId())
+                    .characterCardId(memory.write().characterCardId())
+                    .memoryContent(memory.write().content())
+                    .embedding(memory.embedding())
+                    .createdAt(createdAt)
+                    .updatedAt(rs.getObject("updated_at", OffsetDateTime.class))
+                    .build());
+        });
+        inserted.add(result.size());
+        duplicates.add(memories.size() - result.size());
+        return result;
+    }
+
+    private int bind(PreparedStatement statement, int index, PendingMemory memory, OffsetDateTime createdAt)
+            throws SQLException {
+        statement.setObject(index++, memory.write().userId());
+        statement.setObject(index++, memory.write().characterCardId());
+        statement.setString(index++, memory.write().content());
+        statement.setObject(index++, memory.embedding());
+        statement.setString(index++, memory.write().writeId());
+        statement.setObject(index++, createdAt);
+        return index;
+    }
+
+    /**
+     * 提交后同步进程内索引：移除被取代的记忆，写入新记忆
+     */
+    private void afterWrite(List<PendingMemory> superseded, List<CharacterMemory> insertedMemories) {
+        for (PendingMemory memory : superseded) {
+            memoryVectorIndex.remove(memory.write().userId(), memory.write().characterCardId(),
+                    List.of(memory.existingId()));
+        }
+        insertedMemories.forEach(memoryVectorIndex::add);
+    }
+
+    /**
+     * 处理失败的条目增加重试次数后放回队列，超过次数的移入死信队列
+     */
+    private void requeue(List<MemoryWrite> writes) {
+        for (MemoryWrite write : writes) {
+            MemoryWrite next = write.nextAttempt();
+            try {
+                String encoded = objectMapper.writeValueAsString(next);
+                if (next.attempts() >= maxAttempts) {
+                    log.error("记忆写入重试次数耗尽，移入死信队列: writeId={}, attempts={}", next.writeId(), next.attempts());
+                    redisTemplate.opsForList().rightPush(DEAD_LETTER_KEY, encoded);
+                    deadLettered.increment();
+                } else {
+                    redisTemplate.opsForList().rightPush(QUEUE_KEY, encoded);
+                    retried.increment();
+                }
+            } catch (Exception e) {
+                // 确认前失败时批次仍在处理中，租约到期后整批放回
+                throw new IllegalStateException("记忆写入条目放回队列失败: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void acknowledge(String batchId) {
+        redisTemplate.opsForHash().delete(INFLIGHT_KEY, batchId);
+        redisTemplate.opsForZSet().remove(INFLIGHT_CLAIMED_KEY, batchId);
+    }
+
+    private static double cosine(float[] a, float[] b) {
+        if (a.length != b.length) {
+            return 0;
+        }
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : dot / Math.sqrt(normA * normB);
+    }
+
+    private static String writeId(UUID userId, UUID characterCardId, String content) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String value = userId + "\u0000" + characterCardId + "\u0000" + content;
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256不可用", e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (worker != null) {
+            worker.dispose();
+        }
+        if (scheduler != null) {
+            scheduler.dispose();
+        }
+    }
+
+    /**
+     * 队列中的一条记忆写入，createdAt为用户提出记忆的时间
+     */
+    public record MemoryWrite(String writeId, UUID userId, UUID characterCardId, String content,
+                              long createdAt, int attempts) {
+        MemoryWrite nextAttempt() {
+            return new MemoryWrite(writeId, userId, characterCardId, content, createdAt, attempts + 1);
+        }
+    }
+
+    private record PendingMemory(MemoryWrite write, float[] embedding, Long existingId) {
+        PendingMemory(MemoryWrite write, float[] embedding) {
+            this(write, embedding, null);
+        }
+
+        PendingMemory withExistingId(Long id) {
+            return new PendingMemory(write, embedding, id);
+        }
+    }
+
+    /**
+     * 本批要写入的记忆，existingId不为空的写入后归档被取代的原记忆
+     */
+    private record WritePlan(List<PendingMemory> memories, int mergedCount) {}
+
+    /**
+     * 异步写入统计，queueDepth为等待处理的条数，inflightBatches为已取出尚未确认的批次数
+     */
+    public record WriteBehindStats(boolean enabled, long queueDepth, long inflightBatches, long deadLetters,
+                                   long enqueued, long inserted, long merged, long duplicates,
+                                   long retried, long deadLettered, long batches, long avgBatchMillis) {}
+}
@@ -6,7 +6,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * 记录一次语音轮次中的关键耗时节点，生成可读的耗时报告。
+ * 记录一次语音轮次中的关键耗时节点和数值指标（如上下文Token数），生成可读的耗时报告。
  */
 public final class ConversationMetrics {
 
@@ -14,6 +14,7 @@ public final class ConversationMetrics {
     private final String messageId;
     private final long startNano;
     private final Map<String, Long> marks = new ConcurrentHashMap<>();
+    private final Map<String, Long> values = new ConcurrentHashMap<>();
     private final AtomicBoolean summarized = new AtomicBoolean(false);
 
     private ConversationMetrics(String sessionId, String messageId) {
@@ -34,6 +35,13 @@ public final class ConversationMetrics {
         marks.putIfAbsent(label, System.nanoTime());
     }
 
+    /**
+     * 记录数值指标
+     */
+    public void record(String label, long value) {
+        values.put(label, value);
+    }
+
     public String buildReport() {
         if (!summarized.compareAndSet(false, true)) {
             return "";
@@ -75,6 +83,10 @@ public final class ConversationMetrics {
             }
         }
 
+        // 上下文窗口指标
+        appendContextMetrics(sb);
+        appendMemoryPrefetchMetrics(sb);
+
         // 标签解析和异步处理指标
         appendAsyncEventMetrics(sb);
 
@@ -99,6 +111,49 @@ public final class ConversationMetrics {
         return sb.toString();
     }
 
+    /**
+     * 添加上下文窗口Token指标
+     */
+    private void appendContextMetrics(StringBuilder sb) {
+        Long total = values.get("context_total_tokens");
+        if (total == null) {
+            return;
+        }
+        sb.append("  上下文窗口: ")
+          .append(total)
+          .append(" tokens (系统 ")
+          .append(values.getOrDefault("context_system_tokens", 0L))
+          .append(", 摘要 ")
+          .append(values.getOrDefault("context_summary_tokens", 0L))
+          .append(", 历史 ")
+          .append(values.getOrDefault("context_history_tokens", 0L))
+          .append('/')
+          .append(values.getOrDefault("context_history_messages", 0L))
+          .append("条, 音频 ")
+          .append(values.getOrDefault("context_audio_tokens", 0L))
+          .append("), 窗口外 ")
+          .append(values.getOrDefault("context_evicted_messages", 0L))
+          .append("条\n");
+    }
+
+    /**
+     * 添加记忆预取指标
+     */
+    private void appendMemoryPrefetchMetrics(StringBuilder sb) {
+        Long prefetchMillis = values.get("memory_prefetch_ms");
+        if (prefetchMillis == null) {
+            return;
+        }
+        sb.append("  记忆预取: ")
+          .append(values.getOrDefault("memory_prefetch_count", 0L))
+          .append("条, 耗时 ")
+          .append(prefetchMillis)
+          .append(" ms, ")
+          .append(values.getOrDefault("memory_prefetch_hit", 0L) > 0 ? "命中"
+                  : values.getOrDefault("memory_retrieval_requested", 0L) > 0 ? "未命中(模型仍请求检索)" : "未使用")
+          .append('\n');
+    }
+
     /**
      * 添加异步事件处理指标
      */
@@ -0,0 +1,72 @@
+package com.github.jwj.brilliantavern.service.prompt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 预编译的提示词模板
+ * 模板在加载时拆分为文本片段和占位符，渲染时一次拼接完成，不再逐个占位符整体替换。
+ * 占位符取值中出现的花括号原样保留，不会被再次替换
+ */
+public final class CompiledPromptTemplate {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{([a-z_]+)}");
+
+    private final List<Segment> segments;
+    private final int literalLength;
+
+    private CompiledPromptTemplate(List<Segment> segments, int literalLength) {
+        this.segments = segments;
+        this.literalLength = literalLength;
+    }
+
+    public static CompiledPromptTemplate compile(String template) {
+        List<Segment> segments = new ArrayList<>();
+        int literalLength = 0;
+        int last = 0;
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        while (matcher.find()) {
+            if (matcher.start() > last) {
+                String literal = template.substring(last, matcher.start());
+                segments.add(new Segment(literal, null));
+                literalLength += literal.length();
+            }
+            segments.add(new Segment(matcher.group(), matcher.group(1)));
+            last = matcher.end();
+        }
+        if (last < template.length()) {
+            String literal = template.substring(last);
+            segments.add(new Segment(literal, null));
+            literalLength += literal.length();
+        }
+        return new CompiledPromptTemplate(List.copyOf(segments), literalLength);
+    }
+
+    /**
+     * 渲染模板，未提供取值的占位符保持原样
+     */
+    public String render(Map<String, String> values) {
+        int capacity = literalLength;
+        for (String value : values.values()) {
+            capacity += value != null ? value.length() : 0;
+        }
+        StringBuilder sb = new StringBuilder(capacity + 64);
+        for (Segment segment : segments) {
+            if (segment.placeholder() == null) {
+                sb.append(segment.text());
+                continue;
+            }
+            String value = values.get(segment.placeholder());
+            sb.append(value != null ? value : segment.text());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 模板片段，placeholder为空表示普通文本
+     */
+    private record Segment(String text, String placeholder) {}
+}
@@ -0,0 +1,172 @@
+package com.github.jwj.brilliantavern.service.prompt;
+
+import com.github.jwj.brilliantavern.dto.VoiceMessage;
+import com.github.jwj.brilliantavern.entity.CharacterCard;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 系统提示词服务
+ * 启动时读取并编译提示词模板，渲染结果按角色卡、卡片更新时间和语言组合缓存。
+ * 键中包含更新时间，其他节点修改角色卡后本节点读到新卡片即会重新渲染；本节点修改时主动清除旧条目
+ */
+@Slf4j
+@Service
+public class SystemPromptService {
+
+    @Value("classpath:prompts/character-chat-template.st")
+    private Resource promptTemplate;
+
+    @Value("${app.chat.prompt.cache-size:1000}")
+    private int cacheSize;
+
+    private CompiledPromptTemplate template;
+
+    private Map<PromptKey, String> cache;
+
+    @PostConstruct
+    public void init() {
+        try {
+            template = CompiledPromptTemplate.compile(promptTemplate.getContentAsString(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("读取提示词模板失败", e);
+        }
+        int maxEntries = Math.max(1, cacheSize);
+        cache = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PromptKey, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        log.info("系统提示词模板编译完成: 缓存上限={}", maxEntries);
+    }
+
+    /**
+     * 构建系统提示词，语言优先使用语音消息中的设置，没有则使用角色卡默认设置
+     */
+    public String render(CharacterCard characterCard, VoiceMessage voiceMessage) {
+        String voiceLanguage = (voiceMessage != null && voiceMessage.getVoiceLanguage() != null) ?
+            voiceMessage.getVoiceLanguage() :
+            (characterCard.getVoiceLanguage() != null ? characterCard.getVoiceLanguage() : "zh");
+
+        String subtitleLanguage = (voiceMessage != null && voiceMessage.getSubtitleLanguage() != null) ?
+            voiceMessage.getSubtitleLanguage() :
+            (characterCard.getSubtitleLanguage() != null ? characterCard.getSubtitleLanguage() : "zh");
+
+        if (characterCard.getId() == null) {
+            return doRender(characterCard, voiceLanguage, subtitleLanguage);
+        }
+
+        PromptKey key = new PromptKey(characterCard.getId(), characterCard.getUpdatedAt(), voiceLanguage, subtitleLanguage);
+        String cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null) {
+            return cached;
+        }
+
+        String rendered = doRender(characterCard, voiceLanguage, subtitleLanguage);
+        synchronized (cache) {
+            cache.put(key, rendered);
+        }
+        log.debug("构建系统提示词: cardId={}, voiceLanguage={}, subtitleLanguage={}",
+                characterCard.getId(), voiceLanguage, subtitleLanguage);
+        return rendered;
+    }
+
+    /**
+     * 角色卡修改或删除后清除其缓存的提示词
+     */
+    public void invalidate(UUID cardId) {
+        synchronized (cache) {
+            cache.keySet().removeIf(key -> key.cardId().equals(cardId));
+        }
+    }
+
+    private String doRender(CharacterCard characterCard, String voiceLanguage, String subtitleLanguage) {
+        Map<String, String> values = new HashMap<>(16);
+        values.put("character_name", characterCard.getName());
+        values.put("character_description", getCharacterDescription(characterCard));
+        values.put("character_personality", getCharacterPersonality(characterCard));
+        values.put("character_scenario", getCharacterScenario(characterCard));
+        values.put("character_examples", getCharacterExamples(characterCard));
+        values.put("voice_language", voiceLanguage);
+        values.put("subtitle_language", subtitleLanguage);
+        return template.render(values);
+    }
+
+    /**
+     * 获取角色描述
+     */
+    private String getCharacterDescription(CharacterCard characterCard) {
+        if (characterCard.getCardData() != null && characterCard.getCardData().getDescription() != null) {
+            return characterCard.getCardData().getDescription();
+        }
+        return characterCard.getShortDescription() != null ? characterCard.getShortDescription() : "一个有趣的角色";
+    }
+
+    /**
+     * 获取角色性格
+     */
+    private String getCharacterPersonality(CharacterCard characterCard) {
+        if (characterCard.getCardData() != null && characterCard.getCardData().getPersonality() != null) {
+            return characterCard.getCardData().getPersonality();
+        }
+        return "友好、活泼";
+    }
+
+    /**
+     * 获取角色对话场景
+     */
+    private String getCharacterScenario(CharacterCard characterCard) {
+        if (characterCard.getCardData() != null && characterCard.getCardData().getScenario() != null) {
+            return characterCard.getCardData().getScenario();
+        }
+        return "日常生活场景";
+    }
+
+    /**
+     * 获取角色对话实例
+     */
+    private String getCharacterExamples(CharacterCard characterCard) {
+        if (characterCard.getCardData() != null && characterCard.getCardData().getExampleDialogs() != null) {
+            StringBuilder examples = new StringBuilder();
+            CharacterCard.CharacterCardData.ExampleDialog[] exampleDialogs = characterCard.getCardData().getExampleDialogs();
+
+            for (int i = 0; i < exampleDialogs.length; i++) {
+                CharacterCard.CharacterCardData.ExampleDialog dialog = exampleDialogs[i];
+                if (dialog.getUser() != null && dialog.getAssistant() != null) {
+                    examples.append("示例").append(i + 1).append(":\n");
+                    examples.append("用户: ").append(dialog.getUser()).append("\n");
+                    examples.append(characterCard.getName()).append(": ").append(dialog.getAssistant());
+
+                    // 如果不是最后一个对话，添加分隔符
+                    if (i < exampleDialogs.length - 1) {
+                        examples.append("\n\n");
+                    }
+                }
+            }
+
+            return examples.isEmpty() ? "暂无对话示例" : examples.toString();
+        }
+        return "暂无对话示例";
+    }
+
+    /**
+     * 缓存键：角色卡、卡片更新时间和语言组合
+     */
+    private record PromptKey(UUID cardId, OffsetDateTime updatedAt, String voiceLanguage, String subtitleLanguage) {}
+}
@@ -1,38 +1,55 @@
 package com.github.jwj.brilliantavern.service.streaming;
 
+import com.github.jwj.brilliantavern.config.StreamingDispatcherConfig;
 import com.github.jwj.brilliantavern.dto.voice.VoiceStreamEvent;
 import com.github.jwj.brilliantavern.service.streaming.handlers.EventHandler;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Subscription;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 异步事件分发器
  * 统一管理四个异步事件处理器，实现事件分发和调度
+ * 每种标签类型使用独立命名的有界调度器，并统计排队深度和等待时间
  */
 @Slf4j
 @Component
 public class AsyncEventDispatcher {
 
     private final List<EventHandler> eventHandlers;
-    
-    // 为不同类型的事件使用独立线程池
-    private final Executor ttsExecutor = Executors.newFixedThreadPool(2, 
-            r -> new Thread(r, "TTS-Handler-"));
-    private final Executor subtitleExecutor = Executors.newFixedThreadPool(4, 
-            r -> new Thread(r, "Subtitle-Handler-"));
-    private final Executor asrExecutor = Executors.newFixedThreadPool(2, 
-            r -> new Thread(r, "ASR-Handler-"));
-    private final Executor methodExecutor = Executors.newFixedThreadPool(1, 
-            r -> new Thread(r, "Method-Handler-"));
-
-    public AsyncEventDispatcher(List<EventHandler> eventHandlers) {
+    private final Map<TagEvent.TagType, EventHandler> handlerRoutes = new EnumMap<>(TagEvent.TagType.class);
+    private final Map<TagEvent.TagType, Lane> lanes = new EnumMap<>(TagEvent.TagType.class);
+    private final long slowWaitThresholdNanos;
+    private final Duration shutdownTimeout;
+
+    public AsyncEventDispatcher(List<EventHandler> eventHandlers, StreamingDispatcherConfig config) {
         this.eventHandlers = eventHandlers;
+        registerHandlers(eventHandlers);
+        this.slowWaitThresholdNanos = config.getSlowWaitThreshold().toNanos();
+        this.shutdownTimeout = config.getShutdownTimeout();
+        for (TagEvent.TagType tagType : TagEvent.TagType.values()) {
+            StreamingDispatcherConfig.LaneProperties properties = config.laneFor(tagType);
+            String name = "stream-" + tagType.name().toLowerCase(Locale.ROOT);
+            Scheduler scheduler = Schedulers.newBoundedElastic(
+                    Math.max(1, properties.getThreads()), Math.max(1, properties.getQueueCapacity()), name);
+            lanes.put(tagType, new Lane(tagType, scheduler));
+            log.info("事件调度器初始化: tagType={}, threads={}, queueCapacity={}",
+                    tagType, properties.getThreads(), properties.getQueueCapacity());
+        }
         log.info("异步事件分发器初始化完成，注册处理器数量: {}", eventHandlers.size());
     }
 
@@ -41,54 +58,73 @@ public class AsyncEventDispatcher {
      */
     public Flux<VoiceStreamEvent> dispatchEvent(TagEvent tagEvent, StreamingVoiceOrchestrator.SessionState sessionState) {
         // 找到能处理该事件的处理器
-        EventHandler handler = findHandler(tagEvent);
+        EventHandler handler = handlerRoutes.get(tagEvent.getTagType());
         if (handler == null) {
             log.warn("未找到处理器: tagType={}, eventType={}, sessionId={}, messageId={}", 
                     tagEvent.getTagType(), tagEvent.getEventType(), 
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return EventHandler.NO_OUTPUT;
+        }
+        
+        if (log.isTraceEnabled()) {
+            log.trace("分发事件: tagType={}, eventType={}, sessionId={}, messageId={}, handler={}",
+                    tagEvent.getTagType(), tagEvent.getEventType(),
+                    tagEvent.getSessionId(), tagEvent.getMessageId(),
+                    handler.getClass().getSimpleName());
         }
         
-        // 根据标签类型选择相应的线程池
-        Executor executor = getExecutor(tagEvent.getTagType());
+        // 处理器按事件顺序同步调用，保证同一标签内的内容顺序；返回的流在对应标签类型的调度器上订阅
+        Flux<VoiceStreamEvent> result;
+        try {
+            result = handler.handleEvent(tagEvent, sessionState);
+        } catch (Exception e) {
+            log.error("事件处理失败: tagType={}, eventType={}, sessionId={}, messageId={}",
+                    tagEvent.getTagType(), tagEvent.getEventType(),
+                    tagEvent.getSessionId(), tagEvent.getMessageId(), e);
+            return Flux.just(buildErrorEvent(tagEvent, e.getMessage()));
+        }
         
-        log.debug("分发事件: tagType={}, eventType={}, sessionId={}, messageId={}, handler={}", 
-                tagEvent.getTagType(), tagEvent.getEventType(), 
-                tagEvent.getSessionId(), tagEvent.getMessageId(), 
-                handler.getClass().getSimpleName());
+        // 内容片段通常不产生输出，处理器约定返回NO_OUTPUT，无需调度
+        if (result == null || result == EventHandler.NO_OUTPUT) {
+            return EventHandler.NO_OUTPUT;
+        }
         
-        // 在指定线程池中异步处理事件
-        return handler.handleEvent(tagEvent, sessionState)
-                .subscribeOn(Schedulers.fromExecutor(executor))
-                .doOnError(error -> log.error("事件处理失败: tagType={}, eventType={}, sessionId={}, messageId={}", 
-                        tagEvent.getTagType(), tagEvent.getEventType(), 
-                        tagEvent.getSessionId(), tagEvent.getMessageId(), error))
-                .onErrorResume(error -> {
-                    // 处理失败时返回错误事件
-                    return Flux.just(buildErrorEvent(tagEvent, error.getMessage()));
-                });
+        return lanes.get(tagEvent.getTagType()).schedule(result, tagEvent);
     }
 
     /**
-     * 查找能处理指定事件的处理器
+     * 通知所有处理器释放本轮的上下文，单个处理器失败不影响其他处理器
      */
-    private EventHandler findHandler(TagEvent tagEvent) {
-        return eventHandlers.stream()
-                .filter(handler -> handler.canHandle(tagEvent))
-                .findFirst()
-                .orElse(null);
+    public void releaseTurn(StreamingVoiceOrchestrator.SessionState sessionState) {
+        for (EventHandler handler : eventHandlers) {
+            try {
+                handler.releaseTurn(sessionState);
+            } catch (Exception e) {
+                log.warn("释放处理器上下文失败: handler={}, sessionId={}, messageId={}",
+                        handler.getClass().getSimpleName(), sessionState.getSessionId(),
+                        sessionState.getMessageId(), e);
+            }
+        }
     }
 
     /**
-     * 根据标签类型获取相应的线程池
+     * 按处理器声明的标签类型建立路由表，同一标签类型注册了多个处理器时启动失败
      */
-    private Executor getExecutor(TagEvent.TagType tagType) {
-        return switch (tagType) {
-            case TSS -> ttsExecutor;
-            case SUB -> subtitleExecutor;
-            case ASR -> asrExecutor;
-            case DO -> methodExecutor;
-        };
+    private void registerHandlers(List<EventHandler> handlers) {
+        for (EventHandler handler : handlers) {
+            for (TagEvent.TagType tagType : handler.getSupportedTagTypes()) {
+                EventHandler existing = handlerRoutes.putIfAbsent(tagType, handler);
+                if (existing != null) {
+                    throw new IllegalStateException(String.format("标签类型 %s 存在多个处理器: %s, %s",
+                            tagType, existing.getClass().getSimpleName(), handler.getClass().getSimpleName()));
+                }
+            }
+        }
+        for (TagEvent.TagType tagType : TagEvent.TagType.values()) {
+            if (!handlerRoutes.containsKey(tagType)) {
+                log.warn("标签类型没有对应的处理器: tagType={}", tagType);
+            }
+        }
     }
 
     /**
@@ -117,6 +153,125 @@ public class AsyncEventDispatcher {
         for (EventHandler handler : eventHandlers) {
             stats.append("- ").append(handler.getClass().getSimpleName()).append("\n");
         }
+        for (LaneStats lane : getLaneStats()) {
+            stats.append("- ").append(lane).append("\n");
+        }
         return stats.toString();
     }
-}
\ No newline at end of file
+
+    /**
+     * 各标签类型调度器的排队统计
+     */
+    public List<LaneStats> getLaneStats() {
+        return lanes.values().stream().map(Lane::snapshot).toList();
+    }
+
+    /**
+     * 应用关闭时停止接收新任务，并等待已提交的任务结束
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (Lane lane : lanes.values()) {
+            try {
+                lane.scheduler.disposeGracefully().timeout(shutdownTimeout).block();
+            } catch (Exception e) {
+                log.warn("事件调度器关闭超时，强制关闭: tagType={}", lane.tagType);
+                lane.scheduler.dispose();
+            }
+        }
+        log.info("异步事件分发器已关闭");
+    }
+
+    /**
+     * 单个标签类型的调度通道
+     */
+    private final class Lane {
+        private final TagEvent.TagType tagType;
+        private final Scheduler scheduler;
+        private final AtomicInteger queueDepth = new AtomicInteger();
+        private final LongAdder scheduledCount = new LongAdder();
+        private final LongAdder totalWaitNanos = new LongAdder();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        private Lane(TagEvent.TagType tagType, Scheduler scheduler) {
+            this.tagType = tagType;
+            this.scheduler = scheduler;
+        }
+
+        /**
+         * 在通道调度器上订阅处理结果，失败时转换为错误事件；
+         * 每个事件只分配一个Ticket记录排队状态，其余回调都是通道级的方法引用
+         */
+        private Flux<VoiceStreamEvent> schedule(Flux<VoiceStreamEvent> source, TagEvent tagEvent) {
+            Ticket ticket = new Ticket(tagEvent);
+            return source.doOnSubscribe(ticket::started)
+                    .subscribeOn(scheduler)
+                    .doOnSubscribe(ticket::enqueued)
+                    .doOnCancel(ticket::cancelled)
+                    .onErrorResume(ticket::onError);
+        }
+
+        private void onStarted(long waitNanos) {
+            queueDepth.decrementAndGet();
+            scheduledCount.increment();
+            totalWaitNanos.add(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+            if (waitNanos > slowWaitThresholdNanos) {
+                log.warn("事件处理排队过久: tagType={}, wait={}ms, queueDepth={}",
+                        tagType, waitNanos / 1_000_000, queueDepth.get());
+            }
+        }
+
+        /**
+         * 单个事件的排队状态：订阅时入队，在调度器上开始执行或排队中被取消时出队
+         */
+        private final class Ticket extends AtomicBoolean {
+            private final TagEvent tagEvent;
+            private long enqueuedAt;
+
+            private Ticket(TagEvent tagEvent) {
+                this.tagEvent = tagEvent;
+            }
+
+            private void enqueued(Subscription subscription) {
+                enqueuedAt = System.nanoTime();
+                queueDepth.incrementAndGet();
+            }
+
+            private void started(Subscription subscription) {
+                if (compareAndSet(false, true)) {
+                    onStarted(System.nanoTime() - enqueuedAt);
+                }
+            }
+
+            private void cancelled() {
+                // 任务还在排队时被取消；已开始执行时不重复出队
+                if (compareAndSet(false, true)) {
+                    queueDepth.decrementAndGet();
+                }
+            }
+
+            private Flux<VoiceStreamEvent> onError(Throwable error) {
+                // 调度器队列已满被拒绝时任务不会开始执行
+                cancelled();
+                log.error("事件处理失败: tagType={}, eventType={}, sessionId={}, messageId={}",
+                        tagEvent.getTagType(), tagEvent.getEventType(),
+                        tagEvent.getSessionId(), tagEvent.getMessageId(), error);
+                // 处理失败时返回错误事件
+                return Flux.just(buildErrorEvent(tagEvent, error.getMessage()));
+            }
+        }
+
+        private LaneStats snapshot() {
+            long count = scheduledCount.sum();
+            long avgWaitMicros = count == 0 ? 0 : totalWaitNanos.sum() / count / 1000;
+            return new LaneStats(tagType, queueDepth.get(), count, avgWaitMicros, maxWaitNanos.get() / 1000);
+        }
+    }
+
+    /**
+     * 调度通道统计
+     */
+    public record LaneStats(TagEvent.TagType tagType, int queueDepth, long scheduledCount,
+                            long avgWaitMicros, long maxWaitMicros) {}
+}
@@ -0,0 +1,132 @@
+package com.github.jwj.brilliantavern.service.streaming;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 增量识别回复是否为单个[MEM]标签的记忆检索请求
+ * 只看回复开头：首个非空白字符不能构成"[MEM]"时立即判定为普通回复，之后不再检查；
+ * 以"[MEM]"开头时暂存分片，直到读到"[/MEM]"再判定，标签内出现其他标签或重复的[MEM]则按普通回复处理。
+ * 每个字符只扫描常数次，不再对累积的整段回复反复查找
+ */
+public final class MemRetrievalDetector {
+
+    public enum Decision {
+        /**
+         * 尚未判定，分片已暂存
+         */
+        PENDING,
+        /**
+         * 普通回复，分片照常输出
+         */
+        NORMAL,
+        /**
+         * 记忆检索请求，分片不再输出
+         */
+        RETRIEVAL
+    }
+
+    private static final String MEM_OPEN = "[MEM]";
+    private static final String MEM_CLOSE = "[/MEM]";
+    private static final String[] OTHER_TAGS = {"[TSS:", "[SUB:", "[ASR]", "[DO]", MEM_OPEN};
+    private static final int MAX_TOKEN_LENGTH = MEM_CLOSE.length();
+
+    private Decision decision = Decision.PENDING;
+    private int prefixMatched;
+    private boolean repeatedMemTag;
+    private final StringBuilder body = new StringBuilder();
+    private int scanFrom;
+    private final List<String> held = new ArrayList<>();
+
+    /**
+     * 处理一个文本分片并返回当前判定
+     */
+    public Decision offer(String chunk) {
+        if (decision != Decision.PENDING) {
+            return decision;
+        }
+        held.add(chunk);
+
+        int i = 0;
+        // 匹配开头的"[MEM]"，跳过前导空白
+        while (prefixMatched < MEM_OPEN.length() && i < chunk.length()) {
+            char c = chunk.charAt(i++);
+            if (prefixMatched == 0 && Character.isWhitespace(c)) {
+                continue;
+            }
+            if (c != MEM_OPEN.charAt(prefixMatched)) {
+                return decision = Decision.NORMAL;
+            }
+            prefixMatched++;
+        }
+        if (prefixMatched < MEM_OPEN.length()) {
+            return decision;
+        }
+
+        body.append(chunk, i, chunk.length());
+        // 回退一个标签长度，覆盖跨分片的标签
+        int from = Math.max(0, scanFrom - MAX_TOKEN_LENGTH + 1);
+        for (int pos = body.indexOf("[", from); pos >= 0; pos = body.indexOf("[", pos + 1)) {
+            if (matchesAt(MEM_CLOSE, pos)) {
+                return decision = hasOtherTag(pos + MEM_CLOSE.length()) ? Decision.NORMAL : Decision.RETRIEVAL;
+            }
+            if (isOtherTag(pos)) {
+                repeatedMemTag = matchesAt(MEM_OPEN, pos);
+                return decision = Decision.NORMAL;
+            }
+        }
+        scanFrom = body.length();
+        return decision;
+    }
+
+    public Decision getDecision() {
+        return decision;
+    }
+
+    /**
+     * 判定前出现了重复的[MEM]标签（格式错误）
+     */
+    public boolean hasRepeatedMemTag() {
+        return repeatedMemTag;
+    }
+
+    /**
+     * 取出判定前暂存的分片（含触发判定的分片）
+     */
+    public List<String> drainHeld() {
+        List<String> chunks = List.copyOf(held);
+        held.clear();
+        return chunks;
+    }
+
+    private boolean hasOtherTag(int from) {
+        for (int pos = body.indexOf("[", from); pos >= 0; pos = body.indexOf("[", pos + 1)) {
+            if (isOtherTag(pos)) {
+                repeatedMemTag = matchesAt(MEM_OPEN, pos);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isOtherTag(int pos) {
+        for (String tag : OTHER_TAGS) {
+            if (matchesAt(tag, pos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matchesAt(String tag, int pos) {
+        if (pos + tag.length() > body.length()) {
+            return false;
+        }
+        for (int k = 0; k < tag.length(); k++) {
+            if (body.charAt(pos + k) != tag.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.jwj.brilliantavern.service.streaming;
+
+/**
+ * 解析器诊断信息
+ * 使用固定大小的环形缓冲区保留最近的响应内容，并在扫描过程中累计计数
+ */
+final class ParserDiagnostics {
+
+    private final char[] ring;
+    private int head;
+    private long charCount;
+    private int chunkCount;
+
+    ParserDiagnostics(int captureChars) {
+        this.ring = new char[Math.max(0, captureChars)];
+    }
+
+    /**
+     * 记录一个内容分片
+     */
+    void record(CharSequence chunk) {
+        chunkCount++;
+        int length = chunk.length();
+        charCount += length;
+        if (ring.length == 0) {
+            return;
+        }
+
+        // 只需要写入分片末尾能放进缓冲区的部分
+        int start = Math.max(0, length - ring.length);
+        for (int i = start; i < length; i++) {
+            ring[head] = chunk.charAt(i);
+            head = head + 1 == ring.length ? 0 : head + 1;
+        }
+    }
+
+    /**
+     * 获取最近捕获的内容
+     */
+    String snapshot() {
+        int size = (int) Math.min(charCount, ring.length);
+        if (size == 0) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(size + 16);
+        if (isTruncated()) {
+            sb.append("...(仅保留最后").append(size).append("字符)");
+        }
+        int start = head - size;
+        if (start >= 0) {
+            sb.append(ring, start, size);
+        } else {
+            sb.append(ring, ring.length + start, -start);
+            sb.append(ring, 0, head);
+        }
+        return sb.toString();
+    }
+
+    boolean isTruncated() {
+        return charCount > ring.length;
+    }
+
+    long getCharCount() {
+        return charCount;
+    }
+
+    int getChunkCount() {
+        return chunkCount;
+    }
+}
@@ -11,6 +11,7 @@ import java.time.Duration;
 import java.time.Instant;
 import java.util.Map;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * 重试服务 - 处理指数退避重试逻辑
@@ -32,9 +33,22 @@ public class RetryService {
                                         String messageId,
                                         String operationName,
                                         Function<RetryContext, Flux<VoiceStreamEvent>> progressEventGenerator) {
+        return retryWithProgress(source, sessionId, messageId, operationName, progressEventGenerator, error -> true);
+    }
+    
+    /**
+     * 对 Flux 执行重试，并发送进度事件；只有满足条件的异常才会重试
+     */
+    public <T> Flux<T> retryWithProgress(Flux<T> source, 
+                                        String sessionId, 
+                                        String messageId,
+                                        String operationName,
+                                        Function<RetryContext, Flux<VoiceStreamEvent>> progressEventGenerator,
+                                        Predicate<Throwable> retryable) {
         return source.retryWhen(
                 Retry.backoff(MAX_RETRIES, INITIAL_DELAY)
                         .multiplier(BACKOFF_MULTIPLIER)
+                        .filter(retryable)
                         .doBeforeRetry(retrySignal -> {
                             long attempt = retrySignal.totalRetries() + 1;
                             Duration delay = calculateDelay(attempt);
@@ -2,31 +2,26 @@ package com.github.jwj.brilliantavern.service.streaming;
 
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.FluxSink;
 
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * 流式内容解析器
- * 基于状态机实现实时标签检测和事件触发
+ * 基于状态机实现实时标签检测和事件触发，标签识别由单遍扫描的{@link StreamingTagTokenizer}完成
  */
 @Slf4j
 @Component
 public class StreamingContentParser {
     
-    // 标签模式
-    private static final Pattern TSS_OPEN_PATTERN = Pattern.compile("\\[TSS:([a-z]{2})]");
-    private static final Pattern TSS_CLOSE_PATTERN = Pattern.compile("\\[/TSS]");
-    private static final Pattern SUB_OPEN_PATTERN = Pattern.compile("\\[SUB:([a-z]{2})]");
-    private static final Pattern SUB_CLOSE_PATTERN = Pattern.compile("\\[/SUB]");
-    private static final Pattern ASR_OPEN_PATTERN = Pattern.compile("\\[ASR]");
-    private static final Pattern ASR_CLOSE_PATTERN = Pattern.compile("\\[/ASR]");
-    private static final Pattern DO_OPEN_PATTERN = Pattern.compile("\\[DO]");
-    private static final Pattern DO_CLOSE_PATTERN = Pattern.compile("\\[/DO]");
+    @Value("${app.streaming.parser.diagnostics.enabled:true}")
+    private boolean diagnosticsEnabled;
+    
+    @Value("${app.streaming.parser.diagnostics.capture-kb:4}")
+    private int diagnosticsCaptureKb;
     
     /**
      * 解析器状态
@@ -44,19 +39,21 @@ public class StreamingContentParser {
      */
     private static class ParserContext {
         ParserState state = ParserState.NORMAL;
-        StringBuilder buffer = new StringBuilder();
+        StreamingTagTokenizer tokenizer = new StreamingTagTokenizer();
+        StreamingTagTokenizer.TokenListener listener;
         String currentLanguage = null;
         String sessionId;
         String messageId;
         AtomicInteger position = new AtomicInteger(0);
         FluxSink<TagEvent> sink;
         boolean hasValidTags = false; // 跟踪是否遇到有效标签
-        StringBuilder fullContent = new StringBuilder(); // 用于错误诊断
+        ParserDiagnostics diagnostics; // 用于错误诊断，只保留最近的内容
         
-        ParserContext(String sessionId, String messageId, FluxSink<TagEvent> sink) {
+        ParserContext(String sessionId, String messageId, FluxSink<TagEvent> sink, int captureChars) {
             this.sessionId = sessionId;
             this.messageId = messageId;
             this.sink = sink;
+            this.diagnostics = new ParserDiagnostics(captureChars);
         }
     }
     
@@ -65,7 +62,19 @@ public class StreamingContentParser {
      */
     public Flux<TagEvent> parseStream(Flux<String> contentStream, String sessionId, String messageId) {
         return Flux.<TagEvent>create(sink -> {
-            ParserContext context = new ParserContext(sessionId, messageId, sink);
+            int captureChars = diagnosticsEnabled ? Math.max(0, diagnosticsCaptureKb) * 1024 : 0;
+            ParserContext context = new ParserContext(sessionId, messageId, sink, captureChars);
+            context.listener = new StreamingTagTokenizer.TokenListener() {
+                @Override
+                public void onText(String text) {
+                    processContent(text, context);
+                }
+
+                @Override
+                public void onTag(TagEvent.TagType tagType, boolean open, String language, int length) {
+                    processTag(tagType, open, language, length, context);
+                }
+            };
             
             contentStream.subscribe(
                 chunk -> processChunk(chunk, context),
@@ -76,23 +85,27 @@ public class StreamingContentParser {
                 () -> {
                     // 处理结束时的缓冲区内容
                     flushBuffer(context);
+                    logDiagnostics(context);
                     
                     // 检查是否解析到有效标签，但[MEM]标签请求例外
                     if (!context.hasValidTags) {
-                        String fullContent = context.fullContent.toString();
-                        
                         // 如果是[MEM]标签请求，跳过标签格式验证
-                        if (isSingleMemTagContent(fullContent)) {
+                        if (context.tokenizer.isSingleMemTag()) {
+                            if (context.tokenizer.hasMemTagFormatError()) {
+                                log.warn("检测到MEM标签格式错误，将作为记忆查询处理: sessionId={}, messageId={}", 
+                                        context.sessionId, context.messageId);
+                            }
                             log.debug("检测到[MEM]标签请求，跳过标签格式验证: sessionId={}, messageId={}", 
                                     context.sessionId, context.messageId);
                             sink.complete();
                             return;
                         }
                         
-                        String errorMsg = String.format("AI响应缺少必需的标签格式。完整内容: %s", fullContent);
-                        log.warn("标签解析失败: sessionId={}, messageId={}, content={}", 
-                                context.sessionId, context.messageId, fullContent);
-                        sink.error(new TagParsingException(errorMsg, fullContent));
+                        String capturedContent = context.diagnostics.snapshot();
+                        String errorMsg = String.format("AI响应缺少必需的标签格式。内容: %s", capturedContent);
+                        log.warn("标签解析失败: sessionId={}, messageId={}, chars={}, content={}", 
+                                context.sessionId, context.messageId, context.diagnostics.getCharCount(), capturedContent);
+                        sink.error(new TagParsingException(errorMsg, capturedContent));
                         return;
                     }
                     
@@ -111,102 +124,25 @@ public class StreamingContentParser {
             return;
         }
         
-        // 收集完整内容用于错误诊断
-        context.fullContent.append(chunk);
-        
-        context.buffer.append(chunk);
-        String bufferContent = context.buffer.toString();
-        
-        // 查找并处理标签
-        int processed = 0;
-        while (processed < bufferContent.length()) {
-            TagMatch match = findNextTag(bufferContent, processed);
-            
-            if (match == null) {
-                // 没有找到更多标签，不处理剩余内容，等待更多数据
-                // 保留未完全匹配的内容在缓冲区
-                String remaining = bufferContent.substring(processed);
-                context.buffer.setLength(0);
-                context.buffer.append(remaining);
-                break;
-            }
-            
-            // 处理标签前的内容
-            if (match.start > processed) {
-                String beforeTag = bufferContent.substring(processed, match.start);
-                processContent(beforeTag, context);
-            }
-            
-            // 处理标签
-            processTag(match, context);
-            processed = match.end;
-        }
-        
-        // 更新缓冲区，保留未处理的内容
-        if (processed > 0 && processed < bufferContent.length()) {
-            String remaining = bufferContent.substring(processed);
-            context.buffer.setLength(0);
-            context.buffer.append(remaining);
-        } else if (processed >= bufferContent.length()) {
-            // 所有内容都已处理
-            context.buffer.setLength(0);
-        }
-    }
-    
-    /**
-     * 查找下一个标签
-     */
-    private TagMatch findNextTag(String content, int start) {
-        TagMatch earliest = null;
-        
-        // 检查各种标签模式
-        TagMatch[] candidates = {
-            findPattern(TSS_OPEN_PATTERN, content, start, TagEvent.TagType.TSS, true),
-            findPattern(TSS_CLOSE_PATTERN, content, start, TagEvent.TagType.TSS, false),
-            findPattern(SUB_OPEN_PATTERN, content, start, TagEvent.TagType.SUB, true),
-            findPattern(SUB_CLOSE_PATTERN, content, start, TagEvent.TagType.SUB, false),
-            findPattern(ASR_OPEN_PATTERN, content, start, TagEvent.TagType.ASR, true),
-            findPattern(ASR_CLOSE_PATTERN, content, start, TagEvent.TagType.ASR, false),
-            findPattern(DO_OPEN_PATTERN, content, start, TagEvent.TagType.DO, true),
-            findPattern(DO_CLOSE_PATTERN, content, start, TagEvent.TagType.DO, false)
-        };
-        
-        for (TagMatch candidate : candidates) {
-            if (candidate != null && (earliest == null || candidate.start < earliest.start)) {
-                earliest = candidate;
-            }
-        }
+        // 记录诊断信息（固定大小，不保留完整内容）
+        context.diagnostics.record(chunk);
         
-        return earliest;
-    }
-    
-    /**
-     * 查找模式匹配
-     */
-    private TagMatch findPattern(Pattern pattern, String content, int start, TagEvent.TagType tagType, boolean isOpen) {
-        Matcher matcher = pattern.matcher(content);
-        if (matcher.find(start)) {
-            String language = null;
-            if (matcher.groupCount() > 0) {
-                language = matcher.group(1);
-            }
-            return new TagMatch(matcher.start(), matcher.end(), tagType, isOpen, language);
-        }
-        return null;
+        // 逐字符扫描，只有跨分片的未完成标签会保留在分词器中
+        context.tokenizer.feed(chunk, context.listener);
     }
     
     /**
      * 处理标签
      */
-    private void processTag(TagMatch match, ParserContext context) {
-        int currentPos = context.position.getAndAdd(match.end - match.start);
+    private void processTag(TagEvent.TagType tagType, boolean isOpen, String language, int length, ParserContext context) {
+        int currentPos = context.position.getAndAdd(length);
         
-        if (match.isOpen) {
+        if (isOpen) {
             // 开始标签
-            handleTagOpen(match.tagType, match.language, context, currentPos);
+            handleTagOpen(tagType, language, context, currentPos);
         } else {
             // 结束标签
-            handleTagClose(match.tagType, context, currentPos);
+            handleTagClose(tagType, context, currentPos);
         }
     }
     
@@ -318,87 +254,23 @@ public class StreamingContentParser {
      * 清空缓冲区
      */
     private void flushBuffer(ParserContext context) {
-        if (!context.buffer.isEmpty()) {
-            processContent(context.buffer.toString(), context);
-            context.buffer.setLength(0);
-        }
-    }
-    
-    /**
-     * 标签匹配结果
-     */
-    private static class TagMatch {
-        final int start;
-        final int end;
-        final TagEvent.TagType tagType;
-        final boolean isOpen;
-        final String language;
-        
-        TagMatch(int start, int end, TagEvent.TagType tagType, boolean isOpen, String language) {
-            this.start = start;
-            this.end = end;
-            this.tagType = tagType;
-            this.isOpen = isOpen;
-            this.language = language;
-        }
+        context.tokenizer.finish(context.listener);
     }
     
     /**
-     * 检测是否为单个[MEM]标签内容
+     * 输出本次解析的诊断计数
      */
-    private boolean isSingleMemTagContent(String content) {
-        if (content == null || content.trim().isEmpty()) {
-            return false;
+    private void logDiagnostics(ParserContext context) {
+        if (diagnosticsEnabled && log.isDebugEnabled()) {
+            log.debug("流式解析统计: sessionId={}, messageId={}, chunks={}, chars={}, tags={}", 
+                    context.sessionId, context.messageId, context.diagnostics.getChunkCount(), 
+                    context.diagnostics.getCharCount(), context.tokenizer.getTagCount());
         }
-        
-        String trimmed = content.trim();
-        
-        // 检查是否包含MEM标签
-        if (trimmed.contains("[MEM]") && trimmed.contains("[/MEM]")) {
-            // 确保不包含其他标准标签 (TSS, SUB, ASR, DO)
-            boolean hasOtherTags = trimmed.contains("[TSS:") || 
-                                 trimmed.contains("[SUB:") || 
-                                 trimmed.contains("[ASR]") ||
-                                 trimmed.contains("[DO]");
-            
-            if (hasOtherTags) {
-                return false;
-            }
-            
-            // 检测MEM标签格式错误的情况
-            if (hasMemTagFormatError(trimmed)) {
-                log.warn("检测到MEM标签格式错误，将作为记忆查询处理: {}", trimmed);
-                return true; // 仍然作为MEM标签请求处理，但会跳过标签格式验证
-            }
-            
-            // 检测是否有重复的[MEM]标签（表示格式错误）
-            int memCount = (trimmed.length() - trimmed.replace("[MEM]", "").length()) / 5; // "[MEM]"长度为5
-            boolean hasRepeatedMemTags = memCount > 1;
-            
-            return !hasRepeatedMemTags;
-        }
-        
-        return false;
-    }
-    
-    /**
-     * 检测MEM标签是否有格式错误
-     */
-    private boolean hasMemTagFormatError(String content) {
-        // 检测如 "[MEM[MEM]..." 这种嵌套错误格式
-        if (content.contains("[MEM[MEM]")) {
-            return true;
-        }
-        
-        // 检测不匹配的开始和结束标签数量
-        int openCount = content.length() - content.replace("[MEM]", "").length();
-        int closeCount = content.length() - content.replace("[/MEM]", "").length();
-        
-        return openCount != closeCount;
     }
     
     /**
      * 标签解析异常
+     * fullContent为诊断缓冲区中保留的最近内容，超出容量时只包含末尾部分
      */
     @Getter
     public static class TagParsingException extends RuntimeException {
@@ -0,0 +1,250 @@
+package com.github.jwj.brilliantavern.service.streaming;
+
+/**
+ * 流式标签分词器
+ * 单遍扫描每个字符，遇到'['后沿标签前缀字典树匹配，分片之间只保留尚未闭合的标签片段
+ * 扫描过程中同时记录[MEM]标签特征，流结束时无需再对完整内容做检测
+ */
+final class StreamingTagTokenizer {
+
+    /**
+     * 语言代码通配符，对应正则中的[a-z]
+     */
+    private static final char LANGUAGE_WILDCARD = '?';
+
+    private static final TrieNode ROOT = buildTrie();
+    private static final TrieNode MEM_OPEN_PREFIX = ROOT.walk("[MEM");
+
+    /**
+     * 分词结果回调
+     */
+    interface TokenListener {
+
+        /**
+         * 标签之外或标签之间的文本
+         */
+        void onText(String text);
+
+        /**
+         * 完整识别的标签
+         */
+        void onTag(TagEvent.TagType tagType, boolean open, String language, int length);
+    }
+
+    private final StringBuilder textRun = new StringBuilder();
+    private final StringBuilder partialTag = new StringBuilder(8);
+    private final char[] language = new char[2];
+    private int languageLength;
+    private TrieNode node;
+
+    // 扫描过程中收集的标签特征
+    private int tagCount;
+    private int memOpenCount;
+    private int memCloseCount;
+    private boolean memNested;
+    private boolean memNestCandidate;
+    private boolean otherTagSeen;
+
+    /**
+     * 输入一个内容分片
+     */
+    void feed(CharSequence chunk, TokenListener listener) {
+        int length = chunk.length();
+        int runStart = 0;
+
+        for (int i = 0; i < length; i++) {
+            char c = chunk.charAt(i);
+
+            if (node == null) {
+                if (c == '[') {
+                    textRun.append(chunk, runStart, i);
+                    startTag(c);
+                }
+                continue;
+            }
+
+            TrieNode next = node.next(c);
+            if (next == null) {
+                // 不构成标签：已匹配的片段按普通文本处理，当前字符重新从初始状态扫描
+                boolean nestCandidate = node == MEM_OPEN_PREFIX && c == '[';
+                textRun.append(partialTag);
+                resetTag();
+                runStart = i;
+                if (c == '[') {
+                    startTag(c);
+                    memNestCandidate = nestCandidate;
+                }
+                continue;
+            }
+
+            partialTag.append(c);
+            if (next.wildcard) {
+                language[languageLength++] = c;
+            }
+            if (next.otherTagMarker) {
+                otherTagSeen = true;
+            }
+            node = next;
+
+            if (next.tagType != null) {
+                flushText(listener);
+                tagCount++;
+                String lang = languageLength > 0 ? new String(language, 0, languageLength) : null;
+                listener.onTag(next.tagType, next.open, lang, partialTag.length());
+                resetTag();
+            } else if (next.memTag) {
+                // [MEM]标签不产生事件，按普通文本输出
+                recordMemTag(next.open);
+                textRun.append(partialTag);
+                resetTag();
+            }
+            runStart = i + 1;
+        }
+
+        if (node == null && runStart < length) {
+            textRun.append(chunk, runStart, length);
+        }
+        flushText(listener);
+    }
+
+    /**
+     * 流结束：未闭合的标签片段作为普通文本输出
+     */
+    void finish(TokenListener listener) {
+        if (node != null) {
+            textRun.append(partialTag);
+            resetTag();
+        }
+        flushText(listener);
+    }
+
+    /**
+     * 是否为[MEM]标签的记忆检索内容（同时出现开闭标签且不包含其他标签）
+     * 格式错误（嵌套、重复或开闭数量不一致）的[MEM]内容仍按记忆检索处理
+     */
+    boolean isSingleMemTag() {
+        return memOpenCount > 0 && memCloseCount > 0 && !otherTagSeen;
+    }
+
+    /**
+     * [MEM]标签是否存在格式错误，如"[MEM[MEM]..."、重复标签或开闭数量不匹配
+     */
+    boolean hasMemTagFormatError() {
+        return memNested || memOpenCount > 1 || memOpenCount != memCloseCount;
+    }
+
+    /**
+     * 已识别的标签数量（不含[MEM]）
+     */
+    int getTagCount() {
+        return tagCount;
+    }
+
+    private void recordMemTag(boolean open) {
+        if (open) {
+            memOpenCount++;
+            if (memNestCandidate) {
+                memNested = true;
+            }
+        } else {
+            memCloseCount++;
+        }
+    }
+
+    private void startTag(char c) {
+        node = ROOT.next(c);
+        partialTag.append(c);
+    }
+
+    private void resetTag() {
+        node = null;
+        memNestCandidate = false;
+        partialTag.setLength(0);
+        languageLength = 0;
+    }
+
+    private void flushText(TokenListener listener) {
+        if (!textRun.isEmpty()) {
+            listener.onText(textRun.toString());
+            textRun.setLength(0);
+        }
+    }
+
+    private static TrieNode buildTrie() {
+        TrieNode root = new TrieNode(false);
+        insert(root, "[TSS:??]", TagEvent.TagType.TSS, true);
+        insert(root, "[/TSS]", TagEvent.TagType.TSS, false);
+        insert(root, "[SUB:??]", TagEvent.TagType.SUB, true);
+        insert(root, "[/SUB]", TagEvent.TagType.SUB, false);
+        insert(root, "[ASR]", TagEvent.TagType.ASR, true);
+        insert(root, "[/ASR]", TagEvent.TagType.ASR, false);
+        insert(root, "[DO]", TagEvent.TagType.DO, true);
+        insert(root, "[/DO]", TagEvent.TagType.DO, false);
+        insertMem(root, "[MEM]", true);
+        insertMem(root, "[/MEM]", false);
+
+        // 出现这些前缀即视为包含其他标签
+        root.walk("[TSS:").otherTagMarker = true;
+        root.walk("[SUB:").otherTagMarker = true;
+        root.walk("[ASR]").otherTagMarker = true;
+        root.walk("[DO]").otherTagMarker = true;
+        return root;
+    }
+
+    private static void insert(TrieNode root, String pattern, TagEvent.TagType tagType, boolean open) {
+        TrieNode current = root.walk(pattern);
+        current.tagType = tagType;
+        current.open = open;
+    }
+
+    private static void insertMem(TrieNode root, String pattern, boolean open) {
+        TrieNode current = root.walk(pattern);
+        current.memTag = true;
+        current.open = open;
+    }
+
+    /**
+     * 字典树节点，标签字面量只包含ASCII大写字母与符号，语言代码用小写字母通配
+     */
+    private static final class TrieNode {
+        final boolean wildcard;
+        final TrieNode[] children = new TrieNode[128];
+        TrieNode languageChild;
+        TagEvent.TagType tagType;
+        boolean memTag;
+        boolean open;
+        boolean otherTagMarker;
+
+        TrieNode(boolean wildcard) {
+            this.wildcard = wildcard;
+        }
+
+        TrieNode next(char c) {
+            if (c >= 'a' && c <= 'z') {
+                return languageChild;
+            }
+            return c < 128 ? children[c] : null;
+        }
+
+        TrieNode walk(String path) {
+            TrieNode current = this;
+            for (int i = 0; i < path.length(); i++) {
+                current = current.child(path.charAt(i));
+            }
+            return current;
+        }
+
+        TrieNode child(char c) {
+            if (c == LANGUAGE_WILDCARD) {
+                if (languageChild == null) {
+                    languageChild = new TrieNode(true);
+                }
+                return languageChild;
+            }
+            if (children[c] == null) {
+                children[c] = new TrieNode(false);
+            }
+            return children[c];
+        }
+    }
+}
@@ -16,11 +16,14 @@ import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 import reactor.core.scheduler.Schedulers;
 
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 流式语音对话协调器
@@ -44,6 +47,7 @@ public class StreamingVoiceOrchestrator {
 
     /**
      * 处理语音输入，返回流式事件
+     * 同一会话收到新消息时取消仍在进行的上一轮，上一轮的模型调用、TTS合成和方法执行随之停止
      */
     public Flux<VoiceStreamEvent> processVoiceInput(UUID sessionId, VoiceMessageWithMetadata voiceMessage) {
         String sessionIdStr = sessionId.toString();
@@ -51,7 +55,10 @@ public class StreamingVoiceOrchestrator {
         
         // 创建会话状态
         SessionState sessionState = createSessionState(sessionId, messageId);
-        sessionStates.put(sessionIdStr, sessionState);
+        SessionState previous = sessionStates.put(sessionIdStr, sessionState);
+        if (previous != null) {
+            cancel(previous, "用户发送了新消息，取消上一轮对话");
+        }
         
         log.info("开始处理语音输入: sessionId={}, messageId={}", sessionIdStr, messageId);
         
@@ -74,12 +81,73 @@ public class StreamingVoiceOrchestrator {
                     Flux.just(retryService.createRetryFailedEvent(sessionIdStr, messageId, "对话处理", error)),
                     Flux.just(retryService.createRoundDiscardedEvent(sessionIdStr, messageId, "所有重试均失败，丢弃本次对话"))
             );
-        }).doFinally(signal -> {
-            sessionStates.remove(sessionIdStr);
+        })
+        // 取消信号到达时退订上游：关闭模型响应流，中止进行中的TTS请求，丢弃未完成的方法执行
+        .takeUntilOther(sessionState.cancelSignal.asMono())
+        // 已开始的历史保存不随取消中止，等保存结束后再根据结果发送取消事件
+        .concatWith(Flux.defer(() -> sessionState.cancelled
+                ? sessionState.persistTask.then(Mono.fromSupplier(() -> buildCancelledEvent(sessionState))).flux()
+                : Flux.empty()))
+        .doFinally(signal -> {
+            sessionStates.remove(sessionIdStr, sessionState);
+            eventDispatcher.releaseTurn(sessionState);
             log.info("语音处理{}完成: sessionId={}, messageId={}", 
-                    sessionState.hasProcessingErrors ? "失败并" : "", sessionIdStr, messageId);
+                    sessionState.cancelled ? "被取消" : sessionState.hasProcessingErrors ? "失败并" : "",
+                    sessionIdStr, messageId);
         });
     }
+
+    /**
+     * 取消会话当前进行中的一轮对话，messageId不为空时只取消对应的消息
+     *
+     * @return 是否有对话被取消
+     */
+    public boolean cancelTurn(UUID sessionId, String messageId) {
+        SessionState sessionState = sessionStates.get(sessionId.toString());
+        if (sessionState == null) {
+            return false;
+        }
+        if (StringUtils.hasText(messageId) && !messageId.equals(sessionState.messageId)) {
+            log.debug("取消请求与当前对话不符，忽略: sessionId={}, current={}, requested={}",
+                    sessionId, sessionState.messageId, messageId);
+            return false;
+        }
+        return cancel(sessionState, "用户打断，取消本轮对话");
+    }
+
+    private boolean cancel(SessionState sessionState, String reason) {
+        synchronized (sessionState) {
+            if (sessionState.cancelled) {
+                return false;
+            }
+            sessionState.cancelled = true;
+            sessionState.cancelReason = reason;
+            // 尚未保存的轮次不再保存
+            sessionState.shouldPersist = false;
+        }
+        sessionState.metrics.mark("turn_cancelled");
+        log.info("取消对话轮次: sessionId={}, messageId={}, reason={}",
+                sessionState.sessionId, sessionState.messageId, reason);
+        sessionState.cancelSignal.tryEmitValue(reason);
+        return true;
+    }
+
+    /**
+     * 被取消轮次的结束事件：历史尚未保存时丢弃本轮，已保存时只说明后续输出已停止
+     */
+    private VoiceStreamEvent buildCancelledEvent(SessionState sessionState) {
+        if (!sessionState.persisted) {
+            return retryService.createRoundDiscardedEvent(sessionState.sessionId, sessionState.messageId,
+                    sessionState.cancelReason);
+        }
+        return VoiceStreamEvent.builder()
+                .type(VoiceStreamEvent.Type.PROCESSING_COMPLETED)
+                .sessionId(sessionState.sessionId)
+                .messageId(sessionState.messageId)
+                .timestamp(Instant.now().toEpochMilli())
+                .payload(Map.of("cancelled", true, "reason", sessionState.cancelReason))
+                .build();
+    }
     
     /**
      * 创建会话状态
@@ -126,7 +194,8 @@ public class StreamingVoiceOrchestrator {
                 sessionState.sessionInfo.getCharacterCard(),
                 sessionState.sessionId,
                 sessionState.messageId,
-                sessionState.sessionInfo.getUserId()
+                sessionState.sessionInfo.getUserId(),
+                sessionState.metrics
         ).doOnNext(event -> {
             if (event.getType() == AIService.AIStreamEvent.Type.CHUNK) {
                 sessionState.metrics.markIfAbsent("llm_first_token");
@@ -331,14 +400,20 @@ public class StreamingVoiceOrchestrator {
     
     /**
      * 保存完整对话轮次到历史记录
+     * 保存任务独立订阅，不受本轮取消的退订影响；返回的Mono在保存结束时完成
      */
     private Mono<Void> persistAIResponse(SessionState sessionState, String aiResponse) {
-        return Mono.fromRunnable(() -> {
+        Mono<Void> task = Mono.<Void>fromRunnable(() -> {
             sessionState.metrics.mark("history_start");
             
-            // 检查是否应该持久化
-            if (!sessionState.shouldPersist) {
-                log.info("由于处理错误，跳过对话历史保存: sessionId={}, messageId={}", 
+            // 检查是否应该持久化（处理出错或已被取消）
+            synchronized (sessionState) {
+                if (sessionState.shouldPersist) {
+                    sessionState.persisted = true;
+                }
+            }
+            if (!sessionState.persisted) {
+                log.info("由于处理错误或本轮已取消，跳过对话历史保存: sessionId={}, messageId={}", 
                         sessionState.sessionId, sessionState.messageId);
                 sessionState.metrics.mark("history_skipped");
                 return;
@@ -386,8 +461,7 @@ public class StreamingVoiceOrchestrator {
                     );
                     
                     // 同时保存到Redis缓存供AI上下文使用
-                    chatMemoryService.addUserMessage(sessionState.sessionId, sessionState.getUserMessage());
-                    chatMemoryService.addAssistantMessage(sessionState.sessionId, aiResponse);
+                    chatMemoryService.addTurn(sessionState.sessionId, sessionState.getUserMessage(), aiResponse);
                     
                     sessionState.metrics.mark("history_done");
                     log.info("完整对话轮次保存成功(DB+Redis): sessionId={}, messageId={}, userMsg={}, assistantMsg={}", 
@@ -404,9 +478,13 @@ public class StreamingVoiceOrchestrator {
                 log.error("保存对话历史失败: sessionId={}, messageId={}", sessionState.sessionId, sessionState.messageId, e);
                 // 数据库保存失败也标记为不应持久化，避免部分数据不一致
                 sessionState.shouldPersist = false;
+                sessionState.persisted = false;
                 sessionState.hasProcessingErrors = true;
             }
-        }).subscribeOn(Schedulers.boundedElastic()).then();
+        }).subscribeOn(Schedulers.boundedElastic()).cache();
+        sessionState.persistTask = task;
+        task.subscribe();
+        return task;
     }
 
     
@@ -464,6 +542,17 @@ public class StreamingVoiceOrchestrator {
         private String assistantMessage; // AI回复
         @lombok.Builder.Default
         private List<ImageAttachment> generatedImages = new ArrayList<>(); // 生成的图片
+        @lombok.Builder.Default
+        private AtomicInteger ttsSegmentOrder = new AtomicInteger(0); // 本轮TTS分段序号
+        @lombok.Builder.Default
+        private AtomicReference<Mono<Void>> ttsBlockTail = new AtomicReference<>(Mono.empty()); // 本轮上一个TSS标签的音频输出完成信号
+        @lombok.Builder.Default
+        private Sinks.One<String> cancelSignal = Sinks.one(); // 取消信号，值为取消原因
+        private volatile boolean cancelled; // 本轮已被取消
+        private String cancelReason;
+        private volatile boolean persisted; // 本轮已开始保存历史，之后取消不再丢弃本轮
+        @lombok.Builder.Default
+        private volatile Mono<Void> persistTask = Mono.empty(); // 本轮历史保存任务，完成时保存已结束
     }
     
     /**
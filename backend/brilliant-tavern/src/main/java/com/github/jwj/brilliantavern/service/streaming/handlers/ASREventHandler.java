@@ -13,8 +13,10 @@ import reactor.core.publisher.Flux;
 import reactor.core.scheduler.Schedulers;
 
 import java.time.Instant;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 @Slf4j
@@ -26,8 +28,8 @@ public class ASREventHandler implements EventHandler {
     private final VoiceChatService voiceChatService;
 
     @Override
-    public boolean canHandle(TagEvent tagEvent) {
-        return tagEvent.getTagType() == TagEvent.TagType.ASR;
+    public Set<TagEvent.TagType> getSupportedTagTypes() {
+        return EnumSet.of(TagEvent.TagType.ASR);
     }
 
     @Override
@@ -50,7 +52,7 @@ public class ASREventHandler implements EventHandler {
         log.debug("ASR标签开始: sessionId={}, messageId={}", 
                 tagEvent.getSessionId(), tagEvent.getMessageId());
         
-        return Flux.empty();
+        return NO_OUTPUT;
     }
 
     private Flux<VoiceStreamEvent> handleASRContent(TagEvent tagEvent, String contextKey) {
@@ -61,7 +63,7 @@ public class ASREventHandler implements EventHandler {
                     tagEvent.getSessionId(), tagEvent.getMessageId(), tagEvent.getContent());
         }
         
-        return Flux.empty();
+        return NO_OUTPUT;
     }
 
     private Flux<VoiceStreamEvent> handleASRClosed(TagEvent tagEvent, String contextKey, StreamingVoiceOrchestrator.SessionState sessionState) {
@@ -69,14 +71,14 @@ public class ASREventHandler implements EventHandler {
         if (context == null || context.contentBuffer.isEmpty()) {
             log.warn("ASR标签结束但没有内容: sessionId={}, messageId={}", 
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return NO_OUTPUT;
         }
         
         String transcription = context.contentBuffer.toString().trim();
         if (!StringUtils.hasText(transcription)) {
             log.warn("ASR转写内容为空: sessionId={}, messageId={}", 
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return NO_OUTPUT;
         }
         
         log.info("ASR转写完成: sessionId={}, messageId={}, transcription={}", 
@@ -90,6 +92,11 @@ public class ASREventHandler implements EventHandler {
         return Flux.just(buildASRResultEvent(tagEvent, transcription));
     }
 
+    @Override
+    public void releaseTurn(StreamingVoiceOrchestrator.SessionState sessionState) {
+        asrContexts.remove(sessionState.getSessionId() + "_" + sessionState.getMessageId());
+    }
+
     private VoiceStreamEvent buildASRResultEvent(TagEvent tagEvent, String transcription) {
         Map<String, Object> payload = new HashMap<>();
         payload.put("text", transcription);
@@ -5,19 +5,33 @@ import com.github.jwj.brilliantavern.service.streaming.StreamingVoiceOrchestrato
 import com.github.jwj.brilliantavern.service.streaming.TagEvent;
 import reactor.core.publisher.Flux;
 
+import java.util.Set;
+
 /**
  * 事件处理器接口
  * 定义标签事件处理的通用规范
  */
 public interface EventHandler {
+
+    /**
+     * 没有输出时返回的空流；分发器按引用识别，跳过调度直接返回，
+     * 处理器没有输出时应返回该常量而不是自行构造的空流
+     */
+    Flux<VoiceStreamEvent> NO_OUTPUT = Flux.empty();
     
     /**
-     * 判断是否可以处理指定的标签事件
+     * 该处理器负责的标签类型，分发器启动时据此建立路由表，同一类型只能由一个处理器负责
      */
-    boolean canHandle(TagEvent tagEvent);
+    Set<TagEvent.TagType> getSupportedTagTypes();
     
     /**
-     * 处理标签事件，返回相应的流式事件
+     * 处理标签事件，返回相应的流式事件，没有输出时返回{@link #NO_OUTPUT}
      */
     Flux<VoiceStreamEvent> handleEvent(TagEvent tagEvent, StreamingVoiceOrchestrator.SessionState sessionState);
+
+    /**
+     * 一轮对话结束或被取消时释放该轮的处理上下文，标签未正常关闭时上下文不会被移除
+     */
+    default void releaseTurn(StreamingVoiceOrchestrator.SessionState sessionState) {
+    }
 }
\ No newline at end of file
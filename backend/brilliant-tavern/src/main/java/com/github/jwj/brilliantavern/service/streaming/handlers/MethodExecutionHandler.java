@@ -1,8 +1,8 @@
 package com.github.jwj.brilliantavern.service.streaming.handlers;
 
 import com.github.jwj.brilliantavern.dto.voice.VoiceStreamEvent;
-import com.github.jwj.brilliantavern.service.CharacterMemoryService;
 import com.github.jwj.brilliantavern.service.ImageGenerationService;
+import com.github.jwj.brilliantavern.service.memory.MemoryWriteBehindService;
 import com.github.jwj.brilliantavern.service.streaming.StreamingVoiceOrchestrator;
 import com.github.jwj.brilliantavern.service.streaming.TagEvent;
 import lombok.RequiredArgsConstructor;
@@ -14,8 +14,10 @@ import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import java.time.Instant;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -31,12 +33,12 @@ public class MethodExecutionHandler implements EventHandler {
     // 添加去重机制：跟踪已执行的方法调用
     private final Map<String, java.util.Set<String>> executedMethods = new java.util.concurrent.ConcurrentHashMap<>();
     
-    private final CharacterMemoryService characterMemoryService;
+    private final MemoryWriteBehindService memoryWriteBehindService;
     private final ImageGenerationService imageGenerationService;
 
     @Override
-    public boolean canHandle(TagEvent tagEvent) {
-        return tagEvent.getTagType() == TagEvent.TagType.DO;
+    public Set<TagEvent.TagType> getSupportedTagTypes() {
+        return EnumSet.of(TagEvent.TagType.DO);
     }
 
     @Override
@@ -51,7 +53,7 @@ public class MethodExecutionHandler implements EventHandler {
             case TAG_CLOSED:
                 return handleMethodClosed(tagEvent, contextKey);
             default:
-                return Flux.empty();
+                return NO_OUTPUT;
         }
     }
 
@@ -66,7 +68,7 @@ public class MethodExecutionHandler implements EventHandler {
         log.debug("方法执行标签开始: sessionId={}, messageId={}", 
                 tagEvent.getSessionId(), tagEvent.getMessageId());
         
-        return Flux.empty();
+        return NO_OUTPUT;
     }
 
     private Flux<VoiceStreamEvent> handleMethodContent(TagEvent tagEvent, String contextKey) {
@@ -77,7 +79,7 @@ public class MethodExecutionHandler implements EventHandler {
                     tagEvent.getSessionId(), tagEvent.getMessageId(), tagEvent.getContent());
         }
         
-        return Flux.empty();
+        return NO_OUTPUT;
     }
 
     private Flux<VoiceStreamEvent> handleMethodClosed(TagEvent tagEvent, String contextKey) {
@@ -85,7 +87,7 @@ public class MethodExecutionHandler implements EventHandler {
         if (context == null) {
             log.warn("方法标签结束但没有上下文: sessionId={}, messageId={}", 
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return NO_OUTPUT;
         }
         
         String methodCalls = context.contentBuffer.toString().trim();
@@ -93,7 +95,7 @@ public class MethodExecutionHandler implements EventHandler {
         if (!StringUtils.hasText(methodCalls)) {
             log.debug("方法标签为空，无需执行方法: sessionId={}, messageId={}", 
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return NO_OUTPUT;
         }
         
         log.info("解析方法调用: sessionId={}, messageId={}, methodCalls={}", 
@@ -151,6 +153,13 @@ public class MethodExecutionHandler implements EventHandler {
             });
     }
 
+    @Override
+    public void releaseTurn(StreamingVoiceOrchestrator.SessionState sessionState) {
+        String contextKey = sessionState.getSessionId() + "_" + sessionState.getMessageId();
+        methodContexts.remove(contextKey);
+        executedMethods.remove(contextKey);
+    }
+
     private MethodCall parseMethodCall(String methodCall) {
         Matcher matcher = METHOD_PATTERN.matcher(methodCall);
         if (!matcher.find()) {
@@ -240,6 +249,7 @@ public class MethodExecutionHandler implements EventHandler {
 
         String memoryContent = params[0];
         
+        // 直接在DO通道的线程上执行，排队和耗时计入调度器统计
         return Mono.fromCallable(() -> {
             try {
                 // 从SessionState获取用户ID和角色卡信息
@@ -247,11 +257,11 @@ public class MethodExecutionHandler implements EventHandler {
                 UUID cardId = sessionState.getSessionInfo().getCharacterCard().getId();
                 String characterName = sessionState.getSessionInfo().getCharacterCard().getName();
                 
-                // 调用记忆服务存储记忆
-                characterMemoryService.storeMemory(userId, cardId, memoryContent);
+                // 调用记忆服务存储记忆，开启异步写入时只入队，嵌入和落库在后台完成
+                boolean queued = memoryWriteBehindService.remember(userId, cardId, memoryContent);
 
-                log.info("角色记忆存储成功: userId={}, cardId={}, content={}", 
-                    userId, cardId, memoryContent);
+                log.info("角色记忆存储成功: userId={}, cardId={}, queued={}, content={}", 
+                    userId, cardId, queued, memoryContent);
 
                 Map<String, Object> result = new HashMap<>();
                 result.put("methodName", "remember");
@@ -261,6 +271,7 @@ public class MethodExecutionHandler implements EventHandler {
                     characterName,
                     memoryContent.length() > 20 ? memoryContent.substring(0, 20) + "..." : memoryContent));
                 result.put("memoryContent", memoryContent);
+                result.put("queued", queued);
 
                 return buildMethodResultEvent(tagEvent, result);
 
@@ -269,7 +280,6 @@ public class MethodExecutionHandler implements EventHandler {
                 return buildMethodErrorEvent(tagEvent, "存储记忆失败: " + e.getMessage());
             }
         })
-        .subscribeOn(Schedulers.boundedElastic())
         .flux();
     }
     
@@ -9,8 +9,10 @@ import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
 
 import java.time.Instant;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
@@ -20,8 +22,8 @@ public class SubtitleEventHandler implements EventHandler {
     private final Map<String, SubtitleContext> subtitleContexts = new java.util.concurrent.ConcurrentHashMap<>();
 
     @Override
-    public boolean canHandle(TagEvent tagEvent) {
-        return tagEvent.getTagType() == TagEvent.TagType.SUB;
+    public Set<TagEvent.TagType> getSupportedTagTypes() {
+        return EnumSet.of(TagEvent.TagType.SUB);
     }
 
     @Override
@@ -53,12 +55,12 @@ public class SubtitleEventHandler implements EventHandler {
         if (context == null) {
             log.warn("字幕上下文不存在: sessionId={}, messageId={}", 
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return NO_OUTPUT;
         }
         
         String content = tagEvent.getContent();
         if (!StringUtils.hasText(content)) {
-            return Flux.empty();
+            return NO_OUTPUT;
         }
         
         // 只在上下文中累积内容，不重复累积到SessionState中
@@ -77,7 +79,7 @@ public class SubtitleEventHandler implements EventHandler {
         if (context == null) {
             log.warn("字幕标签结束但上下文不存在: sessionId={}, messageId={}", 
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return NO_OUTPUT;
         }
         
         String fullContent = context.contentBuffer.toString();
@@ -96,6 +98,11 @@ public class SubtitleEventHandler implements EventHandler {
         return Flux.just(buildSubtitleEndEvent(tagEvent, fullContent));
     }
 
+    @Override
+    public void releaseTurn(StreamingVoiceOrchestrator.SessionState sessionState) {
+        subtitleContexts.remove(sessionState.getSessionId() + "_" + sessionState.getMessageId());
+    }
+
     private VoiceStreamEvent buildSubtitleStartEvent(TagEvent tagEvent) {
         Map<String, Object> payload = new HashMap<>();
         payload.put("action", "start");
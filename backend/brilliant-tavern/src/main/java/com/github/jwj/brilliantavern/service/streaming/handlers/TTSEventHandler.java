@@ -5,15 +5,21 @@ import com.github.jwj.brilliantavern.service.TTSManagerService;
 import com.github.jwj.brilliantavern.service.streaming.StreamingVoiceOrchestrator;
 import com.github.jwj.brilliantavern.service.streaming.TagEvent;
 import com.github.jwj.brilliantavern.service.tts.TTSStreamChunk;
+import com.github.jwj.brilliantavern.service.tts.TTSSynthesisScheduler;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 
 import java.time.Instant;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
@@ -22,11 +28,21 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class TTSEventHandler implements EventHandler {
 
     private final TTSManagerService ttsManagerService;
+    private final TTSSynthesisScheduler synthesisScheduler;
     private final Map<String, TTSContext> ttsContexts = new java.util.concurrent.ConcurrentHashMap<>();
 
+    @Value("${app.tts.segmentation.enabled:true}")
+    private boolean segmentationEnabled;
+
+    @Value("${app.tts.segmentation.min-length:6}")
+    private int segmentMinLength;
+
+    @Value("${app.tts.segmentation.clause-min-length:24}")
+    private int clauseMinLength;
+
     @Override
-    public boolean canHandle(TagEvent tagEvent) {
-        return tagEvent.getTagType() == TagEvent.TagType.TSS;
+    public Set<TagEvent.TagType> getSupportedTagTypes() {
+        return EnumSet.of(TagEvent.TagType.TSS);
     }
 
     @Override
@@ -34,83 +50,163 @@ public class TTSEventHandler implements EventHandler {
         String contextKey = sessionState.getSessionId() + "_" + sessionState.getMessageId();
 
         return switch (tagEvent.getEventType()) {
-            case TAG_OPENED -> handleTTSOpened(tagEvent, contextKey);
+            case TAG_OPENED -> handleTTSOpened(tagEvent, contextKey, sessionState);
             case CONTENT_CHUNK -> handleTTSContent(tagEvent, contextKey);
             case TAG_CLOSED -> handleTTSClosed(tagEvent, contextKey, sessionState);
         };
     }
 
-    private Flux<VoiceStreamEvent> handleTTSOpened(TagEvent tagEvent, String contextKey) {
+    private Flux<VoiceStreamEvent> handleTTSOpened(TagEvent tagEvent, String contextKey,
+                                                    StreamingVoiceOrchestrator.SessionState sessionState) {
         TTSContext context = new TTSContext();
         context.language = tagEvent.getLanguage();
         context.sessionId = tagEvent.getSessionId();
         context.messageId = tagEvent.getMessageId();
+        context.segmentOrderSource = sessionState.getTtsSegmentOrder();
         ttsContexts.put(contextKey, context);
-        
-        log.debug("TTS标签开始: sessionId={}, messageId={}, language={}", 
-                tagEvent.getSessionId(), tagEvent.getMessageId(), tagEvent.getLanguage());
-        
-        return Flux.empty();
+
+        log.debug("TTS标签开始: sessionId={}, messageId={}, language={}, segmentation={}",
+                tagEvent.getSessionId(), tagEvent.getMessageId(), tagEvent.getLanguage(), segmentationEnabled);
+
+        if (!segmentationEnabled) {
+            return NO_OUTPUT;
+        }
+
+        // 分句模式：分段在会话并发上限内并行合成，flatMapSequential作为重排缓冲按提交顺序输出音频
+        context.segmenter = new TTSSentenceSegmenter(tagEvent.getLanguage(), segmentMinLength, clauseMinLength);
+        context.segments = Sinks.many().unicast().onBackpressureBuffer();
+        String voiceId = getVoiceId(sessionState);
+
+        Flux<VoiceStreamEvent> audio = context.segments.asFlux()
+                .flatMapSequential(segment -> synthesisScheduler.schedule(sessionState.getSessionId(),
+                                () -> synthesizeSegment(tagEvent, segment, voiceId, sessionState)),
+                        synthesisScheduler.getSessionConcurrency());
+
+        return inBlockOrder(audio, sessionState)
+                .doFinally(signal -> {
+                    ttsContexts.remove(contextKey, context);
+                    sessionState.getMetrics().mark("tts_completed");
+                });
+    }
+
+    @Override
+    public void releaseTurn(StreamingVoiceOrchestrator.SessionState sessionState) {
+        TTSContext context = ttsContexts.remove(sessionState.getSessionId() + "_" + sessionState.getMessageId());
+        if (context != null && context.segments != null) {
+            // 结束分段队列，尚未提交的分段不再合成
+            context.segments.tryEmitComplete();
+            log.debug("释放TTS上下文: sessionId={}, messageId={}, 已提交分段={}",
+                    context.sessionId, context.messageId, context.segmentCount);
+        }
+    }
+
+    /**
+     * 同一轮回复中的多个TSS标签由编排器并行合并，这里让后一个标签的音频等前一个标签输出完毕再推送，
+     * 合成本身不必等待，已合成的音频暂存在重排缓冲中
+     */
+    private Flux<VoiceStreamEvent> inBlockOrder(Flux<VoiceStreamEvent> audio,
+                                                StreamingVoiceOrchestrator.SessionState sessionState) {
+        Sinks.Empty<Void> blockDone = Sinks.empty();
+        Mono<Void> previousBlock = sessionState.getTtsBlockTail().getAndSet(blockDone.asMono());
+        return Flux.mergeSequential(previousBlock.thenMany(Flux.<VoiceStreamEvent>empty()), audio)
+                .doFinally(signal -> blockDone.tryEmitEmpty());
     }
 
     private Flux<VoiceStreamEvent> handleTTSContent(TagEvent tagEvent, String contextKey) {
         TTSContext context = ttsContexts.get(contextKey);
-        if (context != null) {
+        if (context == null) {
+            return NO_OUTPUT;
+        }
+
+        if (context.segmenter != null) {
+            context.segmenter.append(tagEvent.getContent(), text -> emitSegment(context, text, false));
+        } else {
             context.contentBuffer.append(tagEvent.getContent());
-            log.debug("TTS内容累积: sessionId={}, messageId={}, content={}", 
-                    tagEvent.getSessionId(), tagEvent.getMessageId(), tagEvent.getContent());
         }
-        
-        return Flux.empty();
+        log.debug("TTS内容累积: sessionId={}, messageId={}, content={}",
+                tagEvent.getSessionId(), tagEvent.getMessageId(), tagEvent.getContent());
+
+        return NO_OUTPUT;
     }
 
-    private Flux<VoiceStreamEvent> handleTTSClosed(TagEvent tagEvent, String contextKey, 
+    private Flux<VoiceStreamEvent> handleTTSClosed(TagEvent tagEvent, String contextKey,
                                                     StreamingVoiceOrchestrator.SessionState sessionState) {
         TTSContext context = ttsContexts.remove(contextKey);
-        if (context == null || context.contentBuffer.length() == 0) {
-            log.warn("TTS标签结束但没有内容: sessionId={}, messageId={}", 
+        if (context == null) {
+            log.warn("TTS标签结束但没有内容: sessionId={}, messageId={}",
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return NO_OUTPUT;
+        }
+
+        if (context.segmenter != null) {
+            // 剩余内容即为最后一段，随后结束分段流
+            String lastSegment = context.segmenter.drain();
+            if (StringUtils.hasText(lastSegment)) {
+                emitSegment(context, lastSegment, true);
+            } else if (context.segmentCount == 0) {
+                log.warn("TTS文本为空: sessionId={}, messageId={}",
+                        tagEvent.getSessionId(), tagEvent.getMessageId());
+            }
+            context.segments.tryEmitComplete();
+            return NO_OUTPUT;
         }
-        
+
         String ttsText = context.contentBuffer.toString().trim();
         if (!StringUtils.hasText(ttsText)) {
-            log.warn("TTS文本为空: sessionId={}, messageId={}", 
+            log.warn("TTS文本为空: sessionId={}, messageId={}",
                     tagEvent.getSessionId(), tagEvent.getMessageId());
-            return Flux.empty();
+            return NO_OUTPUT;
         }
-        
-        log.info("开始TTS处理: sessionId={}, messageId={}, text={}", 
-                tagEvent.getSessionId(), tagEvent.getMessageId(), ttsText);
-        
+
+        TTSSegment segment = new TTSSegment(ttsText, context.segmentOrderSource.getAndIncrement(), true);
         String voiceId = getVoiceId(sessionState);
-        
-        return ttsManagerService.streamSpeechWithVoice(ttsText, voiceId, sessionState.getSessionId(), sessionState.getMessageId())
-                .doOnSubscribe(sub -> sessionState.getMetrics().mark("tts_start"))
+        Flux<VoiceStreamEvent> audio = synthesisScheduler.schedule(sessionState.getSessionId(),
+                () -> synthesizeSegment(tagEvent, segment, voiceId, sessionState));
+        return inBlockOrder(audio, sessionState)
+                .doFinally(signal -> sessionState.getMetrics().markIfAbsent("tts_completed"));
+    }
+
+    /**
+     * 分配本轮内递增的分段序号并提交合成
+     */
+    private void emitSegment(TTSContext context, String text, boolean last) {
+        int segmentOrder = context.segmentOrderSource.getAndIncrement();
+        context.segmentCount++;
+        log.debug("TTS分段就绪: sessionId={}, messageId={}, segmentOrder={}, last={}, text={}",
+                context.sessionId, context.messageId, segmentOrder, last, text);
+        context.segments.tryEmitNext(new TTSSegment(text, segmentOrder, last));
+    }
+
+    private Flux<VoiceStreamEvent> synthesizeSegment(TagEvent tagEvent, TTSSegment segment, String voiceId,
+                                                      StreamingVoiceOrchestrator.SessionState sessionState) {
+        log.info("开始TTS处理: sessionId={}, messageId={}, segmentOrder={}, text={}",
+                tagEvent.getSessionId(), tagEvent.getMessageId(), segment.segmentOrder(), segment.text());
+
+        return ttsManagerService.streamSpeechWithVoice(segment.text(), voiceId, sessionState.getSessionId(), sessionState.getMessageId())
+                .doOnSubscribe(sub -> sessionState.getMetrics().markIfAbsent("tts_start"))
                 .doOnNext(chunk -> {
                     if (chunk.getAudioData() != null && chunk.getAudioData().length > 0) {
                         sessionState.getMetrics().markIfAbsent("tts_first_chunk");
                     }
                 })
-                .doFinally(signal -> sessionState.getMetrics().markIfAbsent("tts_completed"))
-                .map(chunk -> buildAudioChunkEvent(tagEvent, chunk, context.segmentOrder.getAndIncrement()))
+                .map(chunk -> buildAudioChunkEvent(tagEvent, chunk, segment))
                 .onErrorResume(error -> {
-                    sessionState.getMetrics().markIfAbsent("tts_completed");
-                    log.error("TTS生成失败: sessionId={}, messageId={}", 
-                            tagEvent.getSessionId(), tagEvent.getMessageId(), error);
+                    log.error("TTS生成失败: sessionId={}, messageId={}, segmentOrder={}",
+                            tagEvent.getSessionId(), tagEvent.getMessageId(), segment.segmentOrder(), error);
                     return Flux.just(buildErrorEvent(tagEvent, "TTS生成失败: " + error.getMessage()));
                 });
     }
 
-    private VoiceStreamEvent buildAudioChunkEvent(TagEvent tagEvent, TTSStreamChunk chunk, int segmentOrder) {
+    private VoiceStreamEvent buildAudioChunkEvent(TagEvent tagEvent, TTSStreamChunk chunk, TTSSegment segment) {
         Map<String, Object> payload = new HashMap<>();
-        payload.put("segmentOrder", segmentOrder);
+        payload.put("segmentOrder", segment.segmentOrder());
         payload.put("chunkIndex", chunk.getChunkIndex());
-        payload.put("isLast", chunk.isLast());
-        payload.put("audioFormat", chunk.getAudioFormat() != null 
+        // 只有标签内最后一段的最后一个分片才标记为结束
+        payload.put("isLast", chunk.isLast() && segment.last());
+        payload.put("audioFormat", chunk.getAudioFormat() != null
                 ? chunk.getAudioFormat().name().toLowerCase() : "wav");
         payload.put("fromCache", chunk.isFromCache());
-        
+
         if (chunk.getSampleRate() != null) {
             payload.put("sampleRate", chunk.getSampleRate());
         }
@@ -148,11 +244,19 @@ public class TTSEventHandler implements EventHandler {
         return StringUtils.hasText(voiceIdRaw) ? voiceIdRaw : "default";
     }
 
+    /**
+     * 待合成的文本分段，segmentOrder在一轮对话内递增
+     */
+    private record TTSSegment(String text, int segmentOrder, boolean last) {}
+
     private static class TTSContext {
         String language;
         String sessionId;
         String messageId;
         StringBuilder contentBuffer = new StringBuilder();
-        AtomicInteger segmentOrder = new AtomicInteger(0);
+        TTSSentenceSegmenter segmenter;
+        Sinks.Many<TTSSegment> segments;
+        AtomicInteger segmentOrderSource;
+        int segmentCount;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,143 @@
+package com.github.jwj.brilliantavern.service.streaming.handlers;
+
+import java.util.function.Consumer;
+
+/**
+ * TTS文本增量分句器
+ * 按语言识别句末和分句标点，在内容到达时切分出可以立即合成的片段
+ * 切分点之后出现下一句的正文字符时才输出上一句，保证流结束时剩余内容一定是最后一段
+ */
+final class TTSSentenceSegmenter {
+
+    private static final String ZH_SENTENCE_ENDS = "。！？；…!?;";
+    private static final String ZH_CLAUSE_ENDS = "，、：,:";
+    private static final String JA_SENTENCE_ENDS = "。！？…!?";
+    private static final String JA_CLAUSE_ENDS = "、，；：,;";
+    private static final String EN_SENTENCE_ENDS = ".!?;…";
+    private static final String EN_CLAUSE_ENDS = ",:";
+    private static final String CLOSING_MARKS = "”’」』）)】》\"'";
+
+    private final String sentenceEnds;
+    private final String clauseEnds;
+    private final int minLength;
+    private final int clauseMinLength;
+
+    private final StringBuilder buffer = new StringBuilder();
+    private boolean hasWord;
+    private int cutAt = -1;
+    private boolean cutNeedsSpace;
+    private boolean spaceSeen;
+
+    TTSSentenceSegmenter(String language, int minLength, int clauseMinLength) {
+        String lang = language != null ? language.toLowerCase() : "";
+        switch (lang) {
+            case "zh" -> {
+                this.sentenceEnds = ZH_SENTENCE_ENDS;
+                this.clauseEnds = ZH_CLAUSE_ENDS;
+            }
+            case "ja" -> {
+                this.sentenceEnds = JA_SENTENCE_ENDS;
+                this.clauseEnds = JA_CLAUSE_ENDS;
+            }
+            case "en" -> {
+                this.sentenceEnds = EN_SENTENCE_ENDS;
+                this.clauseEnds = EN_CLAUSE_ENDS;
+            }
+            default -> {
+                this.sentenceEnds = ZH_SENTENCE_ENDS + ".";
+                this.clauseEnds = ZH_CLAUSE_ENDS;
+            }
+        }
+        this.minLength = Math.max(1, minLength);
+        this.clauseMinLength = Math.max(this.minLength, clauseMinLength);
+    }
+
+    /**
+     * 追加内容，每切分出一个完整片段就回调一次
+     */
+    void append(CharSequence text, Consumer<String> onSegment) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            if (cutAt >= 0) {
+                if (Character.isWhitespace(c)) {
+                    spaceSeen = true;
+                    buffer.append(c);
+                    continue;
+                }
+                if (!spaceSeen && (isBoundary(c) || CLOSING_MARKS.indexOf(c) >= 0)) {
+                    // 连续标点或收尾引号归入当前句
+                    buffer.append(c);
+                    cutAt = buffer.length();
+                    continue;
+                }
+                if (!cutNeedsSpace || spaceSeen) {
+                    emit(onSegment);
+                } else {
+                    // 英文句点后未跟空白，如"3.14"，不是句子边界
+                    cutAt = -1;
+                }
+            }
+
+            if (buffer.isEmpty() && Character.isWhitespace(c)) {
+                continue;
+            }
+            buffer.append(c);
+            if (Character.isLetterOrDigit(c)) {
+                hasWord = true;
+            }
+            markBoundary(c);
+        }
+    }
+
+    /**
+     * 流结束，取出剩余的最后一段
+     */
+    String drain() {
+        String remaining = buffer.toString().trim();
+        buffer.setLength(0);
+        hasWord = false;
+        cutAt = -1;
+        return remaining;
+    }
+
+    private void markBoundary(char c) {
+        if (!hasWord) {
+            return;
+        }
+        int threshold;
+        if (c == '\n' || sentenceEnds.indexOf(c) >= 0) {
+            threshold = minLength;
+        } else if (clauseEnds.indexOf(c) >= 0) {
+            threshold = clauseMinLength;
+        } else {
+            return;
+        }
+        if (buffer.length() >= threshold) {
+            cutAt = buffer.length();
+            cutNeedsSpace = c < 128 && c != '\n';
+            spaceSeen = false;
+        }
+    }
+
+    private boolean isBoundary(char c) {
+        return sentenceEnds.indexOf(c) >= 0 || clauseEnds.indexOf(c) >= 0;
+    }
+
+    private void emit(Consumer<String> onSegment) {
+        String segment = buffer.substring(0, cutAt).trim();
+        buffer.delete(0, cutAt);
+        while (!buffer.isEmpty() && Character.isWhitespace(buffer.charAt(0))) {
+            buffer.deleteCharAt(0);
+        }
+        hasWord = false;
+        for (int i = 0; i < buffer.length(); i++) {
+            if (Character.isLetterOrDigit(buffer.charAt(i))) {
+                hasWord = true;
+                break;
+            }
+        }
+        cutAt = -1;
+        onSegment.accept(segment);
+    }
+}
@@ -0,0 +1,110 @@
+package com.github.jwj.brilliantavern.service.tts;
+
+import com.github.jwj.brilliantavern.config.TTSConfig;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 缓存中的合成音频，按原始分片保存，命中时可以按相同的分片顺序回放。
+ * 序列化为紧凑的二进制格式直接存入Redis，不经过JSON和Base64。
+ */
+public record CachedTTSAudio(
+        TTSConfig.AudioFormat audioFormat,
+        Integer sampleRate,
+        Integer channels,
+        Integer bitsPerSample,
+        List<byte[]> chunks
+) {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * 音频数据总字节数
+     */
+    public long totalBytes() {
+        long total = 0;
+        for (byte[] chunk : chunks) {
+            total += chunk.length;
+        }
+        return total;
+    }
+
+    /**
+     * 转换为流式分片，最后一个分片标记为结束
+     */
+    public List<TTSStreamChunk> toStreamChunks() {
+        List<TTSStreamChunk> result = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            result.add(TTSStreamChunk.builder()
+                    .chunkIndex(i)
+                    .audioData(chunks.get(i))
+                    .audioFormat(audioFormat)
+                    .sampleRate(sampleRate)
+                    .channels(channels)
+                    .bitsPerSample(bitsPerSample)
+                    .last(i == chunks.size() - 1)
+                    .fromCache(true)
+                    .build());
+        }
+        return result;
+    }
+
+    public byte[] encode() {
+        int size = 1 + 4 * 5;
+        for (byte[] chunk : chunks) {
+            size += 4 + chunk.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(FORMAT_VERSION);
+        buffer.putInt(audioFormat != null ? audioFormat.ordinal() : -1);
+        buffer.putInt(sampleRate != null ? sampleRate : -1);
+        buffer.putInt(channels != null ? channels : -1);
+        buffer.putInt(bitsPerSample != null ? bitsPerSample : -1);
+        buffer.putInt(chunks.size());
+        for (byte[] chunk : chunks) {
+            buffer.putInt(chunk.length);
+            buffer.put(chunk);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 从二进制数据还原，格式不符时返回null
+     */
+    public static CachedTTSAudio decode(byte[] data) {
+        if (data == null || data.length < 21) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.get() != FORMAT_VERSION) {
+                return null;
+            }
+            int formatOrdinal = buffer.getInt();
+            TTSConfig.AudioFormat[] formats = TTSConfig.AudioFormat.values();
+            TTSConfig.AudioFormat format = formatOrdinal >= 0 && formatOrdinal < formats.length ? formats[formatOrdinal] : null;
+            Integer sampleRate = nullable(buffer.getInt());
+            Integer channels = nullable(buffer.getInt());
+            Integer bitsPerSample = nullable(buffer.getInt());
+            int count = buffer.getInt();
+            if (count <= 0 || count > buffer.remaining() / 4) {
+                return null;
+            }
+            List<byte[]> chunks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] chunk = new byte[buffer.getInt()];
+                buffer.get(chunk);
+                chunks.add(chunk);
+            }
+            return new CachedTTSAudio(format, sampleRate, channels, bitsPerSample, chunks);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Integer nullable(int value) {
+        return value >= 0 ? value : null;
+    }
+}
@@ -49,4 +49,15 @@ public interface TTSService {
         return streamTextToSpeech(text, null);
     }
 
+    /**
+     * 描述影响合成结果的输出格式和采样参数，用作音频缓存键的一部分。
+     * 参数变化后旧的缓存条目自然失效。
+     *
+     * @param streamed 是否为流式分片输出
+     * @return 参数描述
+     */
+    default String cacheProfile(boolean streamed) {
+        return getClass().getSimpleName() + (streamed ? "|stream" : "|file");
+    }
+
 }
@@ -0,0 +1,178 @@
+package com.github.jwj.brilliantavern.service.tts;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * TTS合成调度器
+ * 同时限制全局和单个会话的并发合成数，排队的合成任务按会话轮询放行，
+ * 一个会话的长回复不会占满全部合成通道而饿死其他会话
+ */
+@Slf4j
+@Component
+public class TTSSynthesisScheduler {
+
+    private final int globalConcurrency;
+    private final int sessionConcurrency;
+
+    private final Object lock = new Object();
+    private final Map<String, SessionQueue> sessions = new HashMap<>();
+    // 有等待任务的会话，按轮询顺序排列
+    private final ArrayDeque<SessionQueue> readySessions = new ArrayDeque<>();
+    private int globalActive;
+    private int globalWaiting;
+
+    public TTSSynthesisScheduler(@Value("${app.tts.scheduler.global-concurrency:4}") int globalConcurrency,
+                                 @Value("${app.tts.scheduler.session-concurrency:2}") int sessionConcurrency) {
+        this.globalConcurrency = Math.max(1, globalConcurrency);
+        this.sessionConcurrency = Math.max(1, Math.min(sessionConcurrency, this.globalConcurrency));
+        log.info("TTS合成调度器初始化: 全局并发={}, 会话并发={}", this.globalConcurrency, this.sessionConcurrency);
+    }
+
+    /**
+     * 单个会话允许同时进行的合成数
+     */
+    public int getSessionConcurrency() {
+        return sessionConcurrency;
+    }
+
+    /**
+     * 提交合成任务，获得合成名额后才订阅任务，任务结束或取消时归还名额
+     */
+    public <T> Flux<T> schedule(String sessionId, Supplier<? extends Flux<T>> task) {
+        return Flux.defer(() -> {
+            Ticket ticket = new Ticket(sessionId);
+            return ticket.admitted.asMono()
+                    .thenMany(Flux.defer(() -> {
+                        long waitMillis = (System.nanoTime() - ticket.submittedAt) / 1_000_000;
+                        if (waitMillis > 0) {
+                            log.debug("TTS合成排队: sessionId={}, 等待={}ms", sessionId, waitMillis);
+                        }
+                        return task.get();
+                    }))
+                    .doOnSubscribe(subscription -> submit(ticket))
+                    .doFinally(signal -> release(ticket));
+        });
+    }
+
+    /**
+     * 当前调度状态
+     */
+    public SchedulerStats getStats() {
+        synchronized (lock) {
+            return new SchedulerStats(globalActive, globalWaiting, sessions.size());
+        }
+    }
+
+    private void submit(Ticket ticket) {
+        List<Ticket> admitted;
+        synchronized (lock) {
+            SessionQueue queue = sessions.computeIfAbsent(ticket.sessionId, SessionQueue::new);
+            // 统一进入会话队列再轮询放行，新会话不会越过已在排队的会话
+            queue.waiting.add(ticket);
+            globalWaiting++;
+            if (queue.waiting.size() == 1) {
+                readySessions.add(queue);
+            }
+            admitted = dispatch();
+        }
+        admitted.forEach(next -> next.admitted.tryEmitEmpty());
+    }
+
+    private void release(Ticket ticket) {
+        List<Ticket> admitted;
+        synchronized (lock) {
+            SessionQueue queue = sessions.get(ticket.sessionId);
+            if (queue == null) {
+                return;
+            }
+            if (ticket.granted) {
+                queue.active--;
+                globalActive--;
+            } else if (queue.waiting.remove(ticket)) {
+                globalWaiting--;
+                if (queue.waiting.isEmpty()) {
+                    readySessions.remove(queue);
+                }
+            }
+            if (queue.active == 0 && queue.waiting.isEmpty()) {
+                sessions.remove(ticket.sessionId);
+            }
+            admitted = dispatch();
+        }
+        // 在锁外通知，放行的任务可能直接在当前线程开始订阅
+        admitted.forEach(next -> next.admitted.tryEmitEmpty());
+    }
+
+    /**
+     * 按会话轮询放行排队任务，每个会话每轮最多放行一个
+     */
+    private List<Ticket> dispatch() {
+        List<Ticket> admitted = new ArrayList<>();
+        int blocked = 0;
+        while (globalActive < globalConcurrency && blocked < readySessions.size()) {
+            SessionQueue queue = readySessions.poll();
+            if (!canAdmit(queue)) {
+                // 该会话已达到会话并发上限，留给其他会话
+                readySessions.add(queue);
+                blocked++;
+                continue;
+            }
+            Ticket ticket = queue.waiting.poll();
+            globalWaiting--;
+            grant(queue, ticket);
+            admitted.add(ticket);
+            if (!queue.waiting.isEmpty()) {
+                readySessions.add(queue);
+            }
+            blocked = 0;
+        }
+        return admitted;
+    }
+
+    private boolean canAdmit(SessionQueue queue) {
+        return queue.active < sessionConcurrency;
+    }
+
+    private void grant(SessionQueue queue, Ticket ticket) {
+        ticket.granted = true;
+        queue.active++;
+        globalActive++;
+    }
+
+    private static final class SessionQueue {
+        final String sessionId;
+        final ArrayDeque<Ticket> waiting = new ArrayDeque<>();
+        int active;
+
+        SessionQueue(String sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+
+    private static final class Ticket {
+        final String sessionId;
+        final long submittedAt = System.nanoTime();
+        final Sinks.Empty<Void> admitted = Sinks.empty();
+        boolean granted;
+
+        Ticket(String sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+
+    /**
+     * 调度器统计
+     */
+    public record SchedulerStats(int active, int waiting, int sessions) {}
+}
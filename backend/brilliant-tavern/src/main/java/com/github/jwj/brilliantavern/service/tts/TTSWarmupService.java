@@ -114,7 +114,8 @@ public class TTSWarmupService {
         String healthCheckText = "测试";
         String defaultVoiceId = warmupVoiceIds.isEmpty() ? "1" : warmupVoiceIds.get(0);
         
-        return ttsManagerService.generateSpeechWithVoice(healthCheckText, defaultVoiceId)
+        // 绕过音频缓存，否则缓存命中时TTS服务不可用也会报告健康
+        return ttsManagerService.generateSpeechWithVoice(healthCheckText, defaultVoiceId, false)
             .timeout(warmupTimeout)
             .map(response -> {
                 if (Boolean.TRUE.equals(response.getSuccess())) {
@@ -149,7 +150,8 @@ public class TTSWarmupService {
     private Mono<Void> warmupVoiceAsync(String voiceId) {
         log.debug("预热音色: {}", voiceId);
         
-        return ttsManagerService.streamSpeechWithVoice(warmupText, voiceId, "warmup", "warmup")
+        // 绕过音频缓存，确保请求真正到达TTS服务
+        return ttsManagerService.streamSpeechWithVoice(warmupText, voiceId, "warmup", "warmup", false)
             .timeout(warmupTimeout)
             .doOnNext(chunk -> log.debug("预热音色 {} 收到数据: {} bytes", voiceId, 
                 chunk.getAudioData() != null ? chunk.getAudioData().length : 0))
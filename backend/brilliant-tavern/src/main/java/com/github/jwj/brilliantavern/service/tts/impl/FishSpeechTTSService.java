@@ -25,7 +25,7 @@ import java.time.Duration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.io.ByteArrayOutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * FishSpeech TTS服务实现
@@ -35,6 +35,8 @@ import java.io.ByteArrayOutputStream;
 @RequiredArgsConstructor
 public class FishSpeechTTSService implements TTSService {
 
+    private static final String STREAMING_FORMAT = "wav";
+
     private final WebClient webClient;
     
     @Value("${app.tts.base-url}")
@@ -55,6 +57,9 @@ public class FishSpeechTTSService implements TTSService {
     @Value("${app.tts.audio.streaming:false}")
     private Boolean streaming;
 
+    @Value("${app.tts.audio.stream-min-chunk-ms:200}")
+    private Integer streamMinChunkMillis;
+
     @Value("${app.tts.audio.sample-rate:44100}")
     private Integer sampleRate;
 
@@ -97,79 +102,112 @@ public class FishSpeechTTSService implements TTSService {
 
     @Override
     public Mono<byte[]> textToSpeech(String text, String voiceId) {
-        return streamTextToSpeech(text, voiceId)
-                .filter(chunk -> chunk.getAudioData() != null && chunk.getAudioData().length > 0)
-                .collectList()
-                .map(chunks -> {
-                    try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-                        for (TTSStreamChunk chunk : chunks) {
-                            outputStream.write(chunk.getAudioData());
-                        }
-                        byte[] result = outputStream.toByteArray();
+        // 整体生成始终使用非流式请求，返回完整的音频文件
+        return DataBufferUtils.join(invokeFishSpeech(text, voiceId, false, audioFormat))
+                .map(buffer -> {
+                    try {
+                        byte[] result = new byte[buffer.readableByteCount()];
+                        buffer.read(result);
                         log.debug("FishSpeech TTS转换成功，音频大约 {} 字节", result.length);
                         return result;
-                    } catch (Exception e) {
-                        throw new RuntimeException("聚合TTS音频失败", e);
+                    } finally {
+                        DataBufferUtils.release(buffer);
                     }
-                });
+                })
+                .timeout(timeout);
     }
 
     @Override
     public Flux<TTSStreamChunk> streamTextToSpeech(String text, String voiceId) {
         String preview = text != null && text.length() > 50 ? text.substring(0, 50) + "..." : text;
-        log.info("FishSpeech TTS转换: 文本='{}', 音色='{}'", preview, voiceId);
+        log.info("FishSpeech TTS转换: 文本='{}', 音色='{}', 流式={}", preview, voiceId, streaming);
 
-        TTSConfig.AudioFormat formatEnum = resolveAudioFormat(audioFormat);
+        if (!Boolean.TRUE.equals(streaming)) {
+            TTSConfig.AudioFormat formatEnum = resolveAudioFormat(audioFormat);
+            return textToSpeech(text, voiceId)
+                    .map(completeAudio -> TTSStreamChunk.builder()
+                            .chunkIndex(0)
+                            .audioData(completeAudio)
+                            .audioFormat(formatEnum)
+                            .sampleRate(sampleRate)
+                            .channels(channels)
+                            .bitsPerSample(bitsPerSample)
+                            .last(true)
+                            .build())
+                    .flux()
+                    .doOnError(error -> log.error("FishSpeech TTS转换失败", error));
+        }
 
+        // FishSpeech流式输出只支持WAV：先返回WAV头，随后持续返回PCM数据
         return Flux.defer(() -> {
-            // 收集所有音频数据到一个完整的MP3文件
-            return invokeFishSpeech(text, voiceId)
-                    .map(buffer -> {
-                        byte[] data = new byte[buffer.readableByteCount()];
-                        buffer.read(data);
-                        DataBufferUtils.release(buffer);
-                        return data;
-                    })
-                    .collectList()
-                    .flatMapMany(chunks -> {
-                        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-                            for (byte[] chunk : chunks) {
-                                outputStream.write(chunk);
-                            }
-                            byte[] completeAudio = outputStream.toByteArray();
-                            
-                            log.debug("FishSpeech TTS转换完成，音频大小: {} 字节", completeAudio.length);
-                            
-                            // 返回单个完整的音频块
-                            return Flux.just(TTSStreamChunk.builder()
-                                    .chunkIndex(0)
-                                    .audioData(completeAudio)
-                                    .audioFormat(formatEnum)
-                                    .sampleRate(sampleRate)
-                                    .channels(channels)
-                                    .bitsPerSample(bitsPerSample)
-                                    .last(true)
-                                    .build());
-                        } catch (Exception e) {
-                            return Flux.error(new RuntimeException("合并音频数据失败", e));
+            WavStreamFramer framer = new WavStreamFramer(sampleRate, channels, bitsPerSample, streamMinChunkMillis);
+            AtomicInteger chunkIndex = new AtomicInteger(0);
+
+            return invokeFishSpeech(text, voiceId, true, STREAMING_FORMAT)
+                    .concatMapIterable(buffer -> {
+                        byte[] data;
+                        try {
+                            data = new byte[buffer.readableByteCount()];
+                            buffer.read(data);
+                        } finally {
+                            DataBufferUtils.release(buffer);
                         }
+                        return framer.feed(data);
                     })
+                    .map(audio -> buildWavChunk(framer, chunkIndex.getAndIncrement(), audio, false))
+                    .concatWith(Mono.fromSupplier(() -> buildWavChunk(framer, chunkIndex.getAndIncrement(), framer.finish(), true)))
                     .timeout(timeout)
-                    .doOnError(error -> log.error("FishSpeech TTS转换失败", error));
+                    .doOnDiscard(DataBuffer.class, DataBufferUtils::release)
+                    .doOnComplete(() -> log.debug("FishSpeech TTS流式转换完成，分片数量: {}", chunkIndex.get()))
+                    .doOnError(error -> log.error("FishSpeech TTS流式转换失败", error));
         });
     }
 
-    private Flux<DataBuffer> invokeFishSpeech(String text, String voiceId) {
+    @Override
+    public String cacheProfile(boolean streamed) {
+        boolean chunked = streamed && Boolean.TRUE.equals(streaming);
+        StringBuilder profile = new StringBuilder("fish");
+        if (chunked) {
+            profile.append("|format=").append(STREAMING_FORMAT)
+                    .append("|stream=").append(streamMinChunkMillis)
+                    .append("|sr=").append(sampleRate)
+                    .append("|ch=").append(channels)
+                    .append("|bits=").append(bitsPerSample);
+        } else {
+            profile.append("|format=").append(audioFormat);
+        }
+        return profile.append("|chunk=").append(chunkLength)
+                .append("|normalize=").append(normalize)
+                .append("|tokens=").append(maxNewTokens)
+                .append("|topP=").append(topP)
+                .append("|rp=").append(repetitionPenalty)
+                .append("|temp=").append(temperature)
+                .toString();
+    }
+
+    private TTSStreamChunk buildWavChunk(WavStreamFramer framer, int chunkIndex, byte[] audio, boolean last) {
+        return TTSStreamChunk.builder()
+                .chunkIndex(chunkIndex)
+                .audioData(audio)
+                .audioFormat(TTSConfig.AudioFormat.WAV)
+                .sampleRate(framer.getSampleRate())
+                .channels(framer.getChannels())
+                .bitsPerSample(framer.getBitsPerSample())
+                .last(last)
+                .build();
+    }
+
+    private Flux<DataBuffer> invokeFishSpeech(String text, String voiceId, boolean streamingRequest, String format) {
         Map<String, Object> requestBody = new HashMap<>();
         requestBody.put("text", text);
         requestBody.put("chunk_length", chunkLength);
-        requestBody.put("format", audioFormat);
+        requestBody.put("format", format);
         requestBody.put("references", List.of());
         requestBody.put("reference_id", voiceId != null ? voiceId : "1");
         requestBody.put("seed", null);
         requestBody.put("use_memory_cache", "on");
         requestBody.put("normalize", normalize);
-        requestBody.put("streaming", streaming);
+        requestBody.put("streaming", streamingRequest);
         requestBody.put("max_new_tokens", maxNewTokens);
         requestBody.put("top_p", topP);
         requestBody.put("repetition_penalty", repetitionPenalty);
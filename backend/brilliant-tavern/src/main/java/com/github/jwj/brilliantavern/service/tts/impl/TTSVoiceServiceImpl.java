@@ -9,6 +9,7 @@ import com.github.jwj.brilliantavern.entity.User;
 import com.github.jwj.brilliantavern.repository.TTSVoiceRepository;
 import com.github.jwj.brilliantavern.repository.TTSVoiceLikeRepository;
 import com.github.jwj.brilliantavern.repository.UserRepository;
+import com.github.jwj.brilliantavern.service.GreetingAudioService;
 import com.github.jwj.brilliantavern.service.TTSCacheService;
 import com.github.jwj.brilliantavern.service.tts.TTSVoiceService;
 import lombok.RequiredArgsConstructor;
@@ -50,6 +51,7 @@ public class TTSVoiceServiceImpl implements TTSVoiceService {
     private final UserRepository userRepository;
     private final FishSpeechTTSService fishSpeechService;
     private final TTSCacheService ttsCacheService;
+    private final GreetingAudioService greetingAudioService;
 
     @PersistenceContext
     private EntityManager entityManager;
@@ -122,7 +124,8 @@ public class TTSVoiceServiceImpl implements TTSVoiceService {
                                 voice.setDeleted(true);
                                 voice.setUpdatedAt(OffsetDateTime.now());
                                 ttsVoiceRepository.save(voice);
-                                ttsCacheService.clearVoiceTestCache(voice.getReferenceId());
+                                ttsCacheService.invalidateVoice(voice.getReferenceId());
+                                greetingAudioService.invalidateVoice(voice.getReferenceId());
                             })
                             .subscribeOn(Schedulers.boundedElastic());
                 })
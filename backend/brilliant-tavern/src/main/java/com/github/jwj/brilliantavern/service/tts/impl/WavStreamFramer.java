@@ -0,0 +1,193 @@
+package com.github.jwj.brilliantavern.service.tts.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 流式WAV分帧器
+ * 解析FishSpeech流式响应开头的WAV头，之后的PCM数据按采样帧边界切分，
+ * 每个输出分片都补上独立的WAV头，客户端可以逐片直接播放
+ */
+final class WavStreamFramer {
+
+    static final int WAV_HEADER_SIZE = 44;
+
+    /**
+     * 头部最大长度，超过仍未找到data块视为格式错误
+     */
+    private static final int MAX_HEADER_SIZE = 4096;
+
+    private int sampleRate;
+    private int channels;
+    private int bitsPerSample;
+    private final int minChunkMillis;
+
+    private byte[] headerBuffer = new byte[0];
+    private boolean headerParsed;
+
+    private byte[] pending = new byte[8192];
+    private int pendingLength;
+
+    WavStreamFramer(int sampleRate, int channels, int bitsPerSample, int minChunkMillis) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.minChunkMillis = Math.max(0, minChunkMillis);
+    }
+
+    /**
+     * 输入一段响应字节，返回已经可以输出的完整分片
+     */
+    List<byte[]> feed(byte[] data) {
+        byte[] pcm = data;
+        if (!headerParsed) {
+            pcm = consumeHeader(data);
+            if (pcm == null) {
+                return List.of();
+            }
+        }
+        append(pcm);
+
+        if (pendingLength < minChunkBytes()) {
+            return List.of();
+        }
+        int aligned = pendingLength - pendingLength % blockAlign();
+        if (aligned == 0) {
+            return List.of();
+        }
+        List<byte[]> chunks = new ArrayList<>(1);
+        chunks.add(drainPending(aligned));
+        return chunks;
+    }
+
+    /**
+     * 流结束，输出剩余的完整采样帧，没有剩余数据时返回空数组
+     */
+    byte[] finish() {
+        int aligned = pendingLength - pendingLength % blockAlign();
+        if (aligned == 0) {
+            pendingLength = 0;
+            return new byte[0];
+        }
+        byte[] chunk = drainPending(aligned);
+        pendingLength = 0;
+        return chunk;
+    }
+
+    int getSampleRate() {
+        return sampleRate;
+    }
+
+    int getChannels() {
+        return channels;
+    }
+
+    int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    /**
+     * 累积并解析WAV头，返回头部之后的PCM数据；头部尚不完整时返回null
+     */
+    private byte[] consumeHeader(byte[] data) {
+        byte[] buffer = concat(headerBuffer, data);
+        if (buffer.length < 4) {
+            headerBuffer = buffer;
+            return null;
+        }
+        if (!"RIFF".equals(new String(buffer, 0, 4, StandardCharsets.US_ASCII))) {
+            // 没有WAV头，按配置的参数处理原始PCM
+            headerParsed = true;
+            headerBuffer = null;
+            return buffer;
+        }
+
+        ByteBuffer view = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = 12;
+        while (offset + 8 <= buffer.length) {
+            String chunkId = new String(buffer, offset, 4, StandardCharsets.US_ASCII);
+            int chunkSize = view.getInt(offset + 4);
+            int bodyStart = offset + 8;
+            if ("data".equals(chunkId)) {
+                headerParsed = true;
+                headerBuffer = null;
+                return Arrays.copyOfRange(buffer, bodyStart, buffer.length);
+            }
+            if (chunkSize < 0 || bodyStart + chunkSize > buffer.length) {
+                break;
+            }
+            if ("fmt ".equals(chunkId) && chunkSize >= 16) {
+                channels = view.getShort(bodyStart + 2);
+                sampleRate = view.getInt(bodyStart + 4);
+                bitsPerSample = view.getShort(bodyStart + 14);
+            }
+            offset = bodyStart + chunkSize + (chunkSize & 1);
+        }
+
+        if (buffer.length > MAX_HEADER_SIZE) {
+            throw new IllegalStateException("无法解析WAV流头部");
+        }
+        headerBuffer = buffer;
+        return null;
+    }
+
+    private void append(byte[] data) {
+        if (data.length == 0) {
+            return;
+        }
+        if (pendingLength + data.length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + data.length));
+        }
+        System.arraycopy(data, 0, pending, pendingLength, data.length);
+        pendingLength += data.length;
+    }
+
+    private byte[] drainPending(int length) {
+        byte[] chunk = new byte[WAV_HEADER_SIZE + length];
+        writeHeader(chunk, length);
+        System.arraycopy(pending, 0, chunk, WAV_HEADER_SIZE, length);
+        int remaining = pendingLength - length;
+        System.arraycopy(pending, length, pending, 0, remaining);
+        pendingLength = remaining;
+        return chunk;
+    }
+
+    private void writeHeader(byte[] target, int dataLength) {
+        ByteBuffer header = ByteBuffer.wrap(target, 0, WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(36 + dataLength);
+        header.put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        header.put("fmt ".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(16);
+        header.putShort((short) 1);
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign());
+        header.putShort((short) blockAlign());
+        header.putShort((short) bitsPerSample);
+        header.put("data".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(dataLength);
+    }
+
+    private int blockAlign() {
+        return Math.max(1, channels * bitsPerSample / 8);
+    }
+
+    private int minChunkBytes() {
+        long bytes = (long) sampleRate * blockAlign() * minChunkMillis / 1000;
+        return (int) Math.min(bytes, Integer.MAX_VALUE);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        if (first.length == 0) {
+            return second;
+        }
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+}
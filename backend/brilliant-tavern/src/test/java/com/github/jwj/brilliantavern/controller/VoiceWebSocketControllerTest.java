@@ -0,0 +1,87 @@
+package com.github.jwj.brilliantavern.controller;
+
+import com.github.jwj.brilliantavern.dto.voice.VoiceStreamEvent;
+import com.github.jwj.brilliantavern.service.streaming.StreamingVoiceOrchestrator;
+import org.junit.jupiter.api.Test;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+import reactor.core.publisher.Flux;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class VoiceWebSocketControllerTest {
+
+    private static final Map<String, Object> VOICE_DATA = Map.of("audioData", "UklGRg==", "audioFormat", "wav");
+
+    private final StreamingVoiceOrchestrator orchestrator = mock(StreamingVoiceOrchestrator.class);
+    private final VoiceWebSocketController controller =
+            new VoiceWebSocketController(mock(SimpMessagingTemplate.class), orchestrator);
+
+    @Test
+    void disconnectCancelsAndDisposesActiveTurn() {
+        UUID sessionId = UUID.randomUUID();
+        AtomicBoolean upstreamCancelled = new AtomicBoolean();
+        when(orchestrator.processVoiceInput(eq(sessionId), any()))
+                .thenReturn(Flux.<VoiceStreamEvent>never().doOnCancel(() -> upstreamCancelled.set(true)));
+
+        controller.handleVoiceMessage(sessionId.toString(), VOICE_DATA, stompHeaders("stomp-1"));
+        assertFalse(upstreamCancelled.get());
+
+        controller.handleSessionDisconnect(disconnect("stomp-1"));
+
+        verify(orchestrator).cancelTurn(eq(sessionId), isNull());
+        assertTrue(upstreamCancelled.get());
+    }
+
+    @Test
+    void disconnectOfOtherConnectionKeepsTurn() {
+        UUID sessionId = UUID.randomUUID();
+        AtomicBoolean upstreamCancelled = new AtomicBoolean();
+        when(orchestrator.processVoiceInput(eq(sessionId), any()))
+                .thenReturn(Flux.<VoiceStreamEvent>never().doOnCancel(() -> upstreamCancelled.set(true)));
+
+        controller.handleVoiceMessage(sessionId.toString(), VOICE_DATA, stompHeaders("stomp-1"));
+        controller.handleSessionDisconnect(disconnect("stomp-2"));
+
+        verify(orchestrator, never()).cancelTurn(any(), any());
+        assertFalse(upstreamCancelled.get());
+    }
+
+    @Test
+    void completedTurnIsNotCancelledOnDisconnect() {
+        UUID sessionId = UUID.randomUUID();
+        when(orchestrator.processVoiceInput(eq(sessionId), any())).thenReturn(Flux.empty());
+
+        controller.handleVoiceMessage(sessionId.toString(), VOICE_DATA, stompHeaders("stomp-1"));
+        controller.handleSessionDisconnect(disconnect("stomp-1"));
+
+        verify(orchestrator, never()).cancelTurn(any(), any());
+    }
+
+    private static SimpMessageHeaderAccessor stompHeaders(String stompSessionId) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create();
+        accessor.setSessionId(stompSessionId);
+        return accessor;
+    }
+
+    private SessionDisconnectEvent disconnect(String stompSessionId) {
+        Message<byte[]> message = MessageBuilder.createMessage(new byte[0], stompHeaders(stompSessionId).getMessageHeaders());
+        return new SessionDisconnectEvent(this, message, stompSessionId, CloseStatus.NORMAL);
+    }
+}
@@ -0,0 +1,111 @@
+package com.github.jwj.brilliantavern.service.genai;
+
+import com.google.genai.Client;
+import com.google.genai.ResponseStream;
+import com.google.genai.types.GenerateContentResponse;
+import org.junit.jupiter.api.Test;
+import reactor.core.Disposable;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LLMStreamTransportTest {
+
+    @Test
+    void cancellingSubscriptionClosesBlockedResponseStream() throws Exception {
+        LLMStreamTransport transport = new LLMStreamTransport(mock(Client.class), 2, 10);
+        CountDownLatch closed = new CountDownLatch(1);
+        ResponseStream<GenerateContentResponse> stream = blockingStream("你好", closed);
+
+        List<String> received = new CopyOnWriteArrayList<>();
+        CountDownLatch firstChunk = new CountDownLatch(1);
+        Disposable subscription = transport.streamText(() -> stream)
+                .subscribe(text -> {
+                    received.add(text);
+                    firstChunk.countDown();
+                });
+        try {
+            assertTrue(firstChunk.await(5, TimeUnit.SECONDS));
+            assertEquals(1, transport.getActiveStreams());
+
+            // 读取线程阻塞在下一个片段上，取消应关闭响应流
+            subscription.dispose();
+
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertEquals(0, transport.getActiveStreams());
+            assertEquals(List.of("你好"), received);
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    void completedStreamIsClosed() throws Exception {
+        LLMStreamTransport transport = new LLMStreamTransport(mock(Client.class), 2, 10);
+        CountDownLatch closed = new CountDownLatch(1);
+        GenerateContentResponse response = mock(GenerateContentResponse.class);
+        when(response.text()).thenReturn("完整回复");
+        @SuppressWarnings("unchecked")
+        ResponseStream<GenerateContentResponse> stream = mock(ResponseStream.class);
+        when(stream.iterator()).thenReturn(List.of(response).iterator());
+        doAnswer(invocation -> {
+            closed.countDown();
+            return null;
+        }).when(stream).close();
+
+        try {
+            assertEquals(List.of("完整回复"), transport.streamText(() -> stream).collectList().block());
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertEquals(0, transport.getActiveStreams());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * 返回一个片段后阻塞，直到流被关闭，模拟等待模型输出的SDK迭代器
+     */
+    private static ResponseStream<GenerateContentResponse> blockingStream(String firstText, CountDownLatch closed) {
+        GenerateContentResponse response = mock(GenerateContentResponse.class);
+        when(response.text()).thenReturn(firstText);
+        Iterator<GenerateContentResponse> iterator = new Iterator<>() {
+            private boolean first = true;
+
+            @Override
+            public boolean hasNext() {
+                if (first) {
+                    return true;
+                }
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+
+            @Override
+            public GenerateContentResponse next() {
+                first = false;
+                return response;
+            }
+        };
+        @SuppressWarnings("unchecked")
+        ResponseStream<GenerateContentResponse> stream = mock(ResponseStream.class);
+        when(stream.iterator()).thenReturn(iterator);
+        doAnswer(invocation -> {
+            closed.countDown();
+            return null;
+        }).when(stream).close();
+        return stream;
+    }
+}
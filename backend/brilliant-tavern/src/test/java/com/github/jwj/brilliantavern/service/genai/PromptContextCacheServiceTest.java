@@ -0,0 +1,180 @@
+package com.github.jwj.brilliantavern.service.genai;
+
+import com.github.jwj.brilliantavern.config.GenAIConfig;
+import com.google.genai.Client;
+import com.google.genai.types.HttpOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用本地HTTP服务模拟Gemini cachedContents接口，覆盖创建、续期、角色卡更新失效和请求失败丢弃
+ */
+class PromptContextCacheServiceTest {
+
+    private static final String PROMPT = "你是一个温柔的角色。".repeat(20);
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private volatile int createStatus;
+    private volatile Duration createdTtl;
+    private DisposableServer server;
+    private PromptContextCacheService service;
+    private UUID cardId;
+
+    @BeforeEach
+    void setUp() {
+        createStatus = 200;
+        createdTtl = Duration.ofHours(1);
+        server = HttpServer.create()
+                .port(0)
+                .handle((request, response) -> request.receive().aggregate().asString().defaultIfEmpty("")
+                        .flatMap(body -> {
+                            String path = request.uri().split("\\?")[0];
+                            String method = request.method().name();
+                            requests.add(method + " " + path);
+                            if (method.equals("POST") && path.endsWith("/cachedContents")) {
+                                if (createStatus != 200) {
+                                    return send(response.status(createStatus),
+                                            "{\"error\":{\"code\":" + createStatus + ",\"message\":\"stub\"}}");
+                                }
+                                return send(response, cachedContent("cachedContents/c" + created.incrementAndGet(), createdTtl));
+                            }
+                            if (method.equals("PATCH")) {
+                                return send(response, cachedContent(path.substring(path.indexOf("cachedContents/")),
+                                        Duration.ofHours(1)));
+                            }
+                            if (method.equals("DELETE")) {
+                                return send(response, "{}");
+                            }
+                            return response.status(404).send().then();
+                        }))
+                .bindNow();
+
+        Client client = Client.builder()
+                .apiKey("test-key")
+                .httpOptions(HttpOptions.builder().baseUrl("http://localhost:" + server.port()).build())
+                .build();
+        service = new PromptContextCacheService(client, new GenAIConfig());
+        ReflectionTestUtils.setField(service, "enabled", true);
+        ReflectionTestUtils.setField(service, "ttl", Duration.ofHours(1));
+        ReflectionTestUtils.setField(service, "refreshBefore", Duration.ofMinutes(10));
+        ReflectionTestUtils.setField(service, "minTokens", 0);
+        ReflectionTestUtils.setField(service, "maxEntries", 500);
+        cardId = UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.disposeNow();
+    }
+
+    @Test
+    void createsCacheInBackgroundAndReusesIt() throws InterruptedException {
+        // 首次请求内联发送提示词，缓存在后台创建
+        assertNull(service.resolve(cardId, PROMPT));
+        assertEquals("cachedContents/c1", await(() -> service.resolve(cardId, PROMPT)));
+
+        assertEquals("cachedContents/c1", service.resolve(cardId, PROMPT));
+        assertEquals(1, count("POST"));
+        assertEquals(0, count("PATCH"));
+    }
+
+    @Test
+    void refreshesTtlOnceWhenCloseToExpiry() throws InterruptedException {
+        // 创建的缓存只剩5分钟，低于10分钟的续期阈值
+        createdTtl = Duration.ofMinutes(5);
+        service.resolve(cardId, PROMPT);
+        await(() -> service.resolve(cardId, PROMPT));
+        await(() -> count("PATCH") > 0 ? true : null);
+
+        // 续期后到期时间延长，之后的请求不再续期
+        Thread.sleep(200);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("cachedContents/c1", service.resolve(cardId, PROMPT));
+        }
+        Thread.sleep(200);
+        assertEquals(1, count("PATCH"));
+        assertTrue(requests.contains("PATCH /v1beta/cachedContents/c1"));
+    }
+
+    @Test
+    void cardUpdateDeletesCacheAndRecreatesIt() throws InterruptedException {
+        service.resolve(cardId, PROMPT);
+        await(() -> service.resolve(cardId, PROMPT));
+
+        // CharacterCardService更新或删除角色卡时调用invalidate
+        service.invalidate(cardId);
+        await(() -> requests.contains("DELETE /v1beta/cachedContents/c1") ? true : null);
+
+        String updatedPrompt = PROMPT + "新的设定。";
+        assertNull(service.resolve(cardId, updatedPrompt));
+        assertEquals("cachedContents/c2", await(() -> service.resolve(cardId, updatedPrompt)));
+    }
+
+    @Test
+    void evictedCacheIsNotReusedAndIsRecreated() throws InterruptedException {
+        service.resolve(cardId, PROMPT);
+        String name = await(() -> service.resolve(cardId, PROMPT));
+
+        // 引用缓存的请求失败
+        service.evict(cardId, name);
+
+        assertNull(service.resolve(cardId, PROMPT));
+        assertEquals("cachedContents/c2", await(() -> service.resolve(cardId, PROMPT)));
+    }
+
+    @Test
+    void failedCreationFallsBackToInlinePromptAndRetries() throws InterruptedException {
+        createStatus = 400;
+        assertNull(service.resolve(cardId, PROMPT));
+        await(() -> count("POST") > 0 ? true : null);
+        Thread.sleep(200);
+        assertNull(service.resolve(cardId, PROMPT));
+
+        // 失败的创建不会占住条目，之后可以重新创建
+        createStatus = 200;
+        assertEquals("cachedContents/c1", await(() -> service.resolve(cardId, PROMPT)));
+    }
+
+    private long count(String method) {
+        return requests.stream().filter(r -> r.startsWith(method + " ")).count();
+    }
+
+    private static <T> T await(Supplier<T> condition) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            T value = condition.get();
+            if (value != null) {
+                return value;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("等待超时");
+    }
+
+    private static String cachedContent(String name, Duration ttl) {
+        return "{\"name\":\"" + name + "\",\"model\":\"models/gemini-2.5-flash\",\"expireTime\":\""
+                + Instant.now().plus(ttl) + "\"}";
+    }
+
+    private static Mono<Void> send(HttpServerResponse response, String json) {
+        return response.header("Content-Type", "application/json").sendString(Mono.just(json)).then();
+    }
+}
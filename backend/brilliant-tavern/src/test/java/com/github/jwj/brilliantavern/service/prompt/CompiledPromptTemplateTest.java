@@ -0,0 +1,59 @@
+package com.github.jwj.brilliantavern.service.prompt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompiledPromptTemplateTest {
+
+    @Test
+    void replacesPlaceholders() {
+        CompiledPromptTemplate template = CompiledPromptTemplate.compile("你是{character_name}，{description}。");
+
+        String rendered = template.render(Map.of("character_name", "艾莉", "description", "一名骑士"));
+
+        assertEquals("你是艾莉，一名骑士。", rendered);
+    }
+
+    @Test
+    void replacesRepeatedAndAdjacentPlaceholders() {
+        CompiledPromptTemplate template = CompiledPromptTemplate.compile("{a}{b}-{a}");
+
+        assertEquals("12-1", template.render(Map.of("a", "1", "b", "2")));
+    }
+
+    @Test
+    void keepsPlaceholderWithoutValue() {
+        CompiledPromptTemplate template = CompiledPromptTemplate.compile("语言: {voice_language}, 字幕: {subtitle_language}");
+        Map<String, String> values = new HashMap<>();
+        values.put("voice_language", "zh");
+        values.put("subtitle_language", null);
+
+        assertEquals("语言: zh, 字幕: {subtitle_language}", template.render(values));
+    }
+
+    @Test
+    void doesNotReplacePlaceholdersInsideValues() {
+        CompiledPromptTemplate template = CompiledPromptTemplate.compile("{description}/{example_dialogues}");
+
+        String rendered = template.render(Map.of("description", "{example_dialogues}", "example_dialogues", "对话"));
+
+        assertEquals("{example_dialogues}/对话", rendered);
+    }
+
+    @Test
+    void leavesNonPlaceholderBracesUntouched() {
+        CompiledPromptTemplate template = CompiledPromptTemplate.compile("JSON: {\"key\": 1} {Upper} {} {name}");
+
+        assertEquals("JSON: {\"key\": 1} {Upper} {} 值", template.render(Map.of("name", "值")));
+    }
+
+    @Test
+    void rendersTemplateWithoutPlaceholders() {
+        assertEquals("纯文本", CompiledPromptTemplate.compile("纯文本").render(Map.of()));
+        assertEquals("", CompiledPromptTemplate.compile("").render(Map.of("a", "1")));
+    }
+}
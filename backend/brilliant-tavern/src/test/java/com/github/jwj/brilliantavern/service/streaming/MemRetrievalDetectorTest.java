@@ -0,0 +1,108 @@
+package com.github.jwj.brilliantavern.service.streaming;
+
+import com.github.jwj.brilliantavern.service.streaming.MemRetrievalDetector.Decision;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemRetrievalDetectorTest {
+
+    private static final String RETRIEVAL = "[MEM]用户的生日[/MEM]";
+
+    @Test
+    void detectsRetrievalInSingleChunk() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+
+        assertEquals(Decision.RETRIEVAL, detector.offer(RETRIEVAL));
+        assertEquals(List.of(RETRIEVAL), detector.drainHeld());
+        assertFalse(detector.hasRepeatedMemTag());
+    }
+
+    @Test
+    void detectsRetrievalSplitAtEveryPosition() {
+        for (int split = 1; split < RETRIEVAL.length(); split++) {
+            MemRetrievalDetector detector = new MemRetrievalDetector();
+            String first = RETRIEVAL.substring(0, split);
+            String second = RETRIEVAL.substring(split);
+
+            assertEquals(Decision.PENDING, detector.offer(first), "split at " + split);
+            assertEquals(Decision.RETRIEVAL, detector.offer(second), "split at " + split);
+            assertEquals(List.of(first, second), detector.drainHeld());
+        }
+    }
+
+    @Test
+    void skipsLeadingWhitespace() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+        detector.offer("  \n");
+
+        assertEquals(Decision.RETRIEVAL, detector.offer(RETRIEVAL));
+    }
+
+    @Test
+    void decidesNormalAtFirstMismatch() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+
+        assertEquals(Decision.PENDING, detector.offer("[M"));
+        assertEquals(Decision.NORMAL, detector.offer("X]你好"));
+        assertEquals(List.of("[M", "X]你好"), detector.drainHeld());
+
+        // 判定后的分片不再暂存
+        assertEquals(Decision.NORMAL, detector.offer("[MEM]"));
+        assertEquals(List.of(), detector.drainHeld());
+    }
+
+    @Test
+    void normalReplyIsDecidedImmediately() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+
+        assertEquals(Decision.NORMAL, detector.offer("[TSS:zh]你好[/TSS]"));
+    }
+
+    @Test
+    void unclosedMemTagStaysPending() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+        detector.offer("[MEM]用户的");
+
+        assertEquals(Decision.PENDING, detector.offer("生日"));
+        assertEquals(Decision.PENDING, detector.getDecision());
+        assertEquals(List.of("[MEM]用户的", "生日"), detector.drainHeld());
+    }
+
+    @Test
+    void otherTagInsideMemIsNormal() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+        detector.offer("[MEM]生日[TS");
+
+        assertEquals(Decision.NORMAL, detector.offer("S:zh]"));
+        assertFalse(detector.hasRepeatedMemTag());
+    }
+
+    @Test
+    void otherTagAfterCloseInSameChunkIsNormal() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+
+        assertEquals(Decision.NORMAL, detector.offer(RETRIEVAL + "[DO]remember(x)[/DO]"));
+    }
+
+    @Test
+    void repeatedMemTagIsReported() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+
+        assertEquals(Decision.PENDING, detector.offer("[MEM]生日[ME"));
+        assertEquals(Decision.NORMAL, detector.offer("M]年龄[/MEM]"));
+        assertTrue(detector.hasRepeatedMemTag());
+    }
+
+    @Test
+    void repeatedMemTagAfterCloseIsReported() {
+        MemRetrievalDetector detector = new MemRetrievalDetector();
+
+        assertEquals(Decision.NORMAL, detector.offer(RETRIEVAL + RETRIEVAL));
+        assertTrue(detector.hasRepeatedMemTag());
+    }
+}
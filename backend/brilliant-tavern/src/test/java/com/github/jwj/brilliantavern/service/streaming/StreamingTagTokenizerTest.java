@@ -0,0 +1,154 @@
+package com.github.jwj.brilliantavern.service.streaming;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StreamingTagTokenizerTest {
+
+    private static final String REPLY = "[ASR]你好[/ASR][TSS:zh]今天天气不错。[/TSS][SUB:en]Nice day.[/SUB]";
+
+    private static final List<String> REPLY_TOKENS = List.of(
+            "tag:ASR:open:null:5", "text:你好", "tag:ASR:close:null:6",
+            "tag:TSS:open:zh:8", "text:今天天气不错。", "tag:TSS:close:null:6",
+            "tag:SUB:open:en:8", "text:Nice day.", "tag:SUB:close:null:6");
+
+    @Test
+    void recognizesTagsInSingleChunk() {
+        Recorder recorder = tokenize(REPLY);
+
+        assertEquals(REPLY_TOKENS, recorder.tokens());
+    }
+
+    @Test
+    void recognizesTagsSplitAtEveryPosition() {
+        for (int split = 1; split < REPLY.length(); split++) {
+            Recorder recorder = tokenize(REPLY.substring(0, split), REPLY.substring(split));
+
+            assertEquals(REPLY_TOKENS, recorder.tokens(), "split at " + split);
+        }
+    }
+
+    @Test
+    void recognizesTagsFedOneCharacterAtATime() {
+        Recorder recorder = tokenize(REPLY.split(""));
+
+        assertEquals(REPLY_TOKENS, recorder.tokens());
+    }
+
+    @Test
+    void keepsBracketsThatAreNotTagsAsText() {
+        Recorder recorder = tokenize("数组[0]和[TS]以及[TSS:ZH]", "[DO");
+
+        assertEquals(List.of("text:数组[0]和[TS]以及[TSS:ZH][DO"), recorder.tokens());
+    }
+
+    @Test
+    void restartsMatchingAtBracketInsidePartialTag() {
+        Recorder recorder = tokenize("[TS[DO]执行[/DO]");
+
+        assertEquals(List.of("text:[TS", "tag:DO:open:null:4", "text:执行", "tag:DO:close:null:5"),
+                recorder.tokens());
+    }
+
+    @Test
+    void emitsUnclosedTagFragmentAsTextOnFinish() {
+        Recorder recorder = tokenize("结尾[/TS");
+
+        assertEquals(List.of("text:结尾[/TS"), recorder.tokens());
+    }
+
+    @Test
+    void detectsSingleMemTag() {
+        StreamingTagTokenizer tokenizer = new StreamingTagTokenizer();
+        Recorder recorder = new Recorder();
+        tokenizer.feed("[MEM]用户的", recorder);
+        tokenizer.feed("生日[/M", recorder);
+        tokenizer.feed("EM]", recorder);
+        tokenizer.finish(recorder);
+
+        assertTrue(tokenizer.isSingleMemTag());
+        assertFalse(tokenizer.hasMemTagFormatError());
+        assertEquals(0, tokenizer.getTagCount());
+        assertEquals(List.of("text:[MEM]用户的生日[/MEM]"), recorder.tokens());
+    }
+
+    @Test
+    void unclosedMemTagIsNotRetrieval() {
+        StreamingTagTokenizer tokenizer = new StreamingTagTokenizer();
+        Recorder recorder = new Recorder();
+        tokenizer.feed("[MEM]用户的生日", recorder);
+        tokenizer.finish(recorder);
+
+        assertFalse(tokenizer.isSingleMemTag());
+        assertTrue(tokenizer.hasMemTagFormatError());
+    }
+
+    @Test
+    void nestedMemTagIsFormatError() {
+        StreamingTagTokenizer tokenizer = new StreamingTagTokenizer();
+        Recorder recorder = new Recorder();
+        tokenizer.feed("[MEM[MEM]生日[/MEM]", recorder);
+        tokenizer.finish(recorder);
+
+        assertTrue(tokenizer.isSingleMemTag());
+        assertTrue(tokenizer.hasMemTagFormatError());
+    }
+
+    @Test
+    void memTagWithOtherTagsIsNotRetrieval() {
+        StreamingTagTokenizer tokenizer = new StreamingTagTokenizer();
+        Recorder recorder = new Recorder();
+        tokenizer.feed("[MEM]生日[/MEM][TSS:zh]好的[/TSS]", recorder);
+        tokenizer.finish(recorder);
+
+        assertFalse(tokenizer.isSingleMemTag());
+        assertEquals(2, tokenizer.getTagCount());
+    }
+
+    private static Recorder tokenize(String... chunks) {
+        StreamingTagTokenizer tokenizer = new StreamingTagTokenizer();
+        Recorder recorder = new Recorder();
+        for (String chunk : chunks) {
+            tokenizer.feed(chunk, recorder);
+        }
+        tokenizer.finish(recorder);
+        return recorder;
+    }
+
+    /**
+     * 记录分词结果，相邻的文本合并，便于比较不同分片方式的输出
+     */
+    private static final class Recorder implements StreamingTagTokenizer.TokenListener {
+        private final List<String> tokens = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public void onText(String value) {
+            text.append(value);
+        }
+
+        @Override
+        public void onTag(TagEvent.TagType tagType, boolean open, String language, int length) {
+            flush();
+            tokens.add("tag:" + tagType + ":" + (open ? "open" : "close") + ":" + language + ":" + length);
+        }
+
+        List<String> tokens() {
+            flush();
+            return tokens;
+        }
+
+        private void flush() {
+            if (!text.isEmpty()) {
+                tokens.add("text:" + text);
+                text.setLength(0);
+            }
+        }
+    }
+}
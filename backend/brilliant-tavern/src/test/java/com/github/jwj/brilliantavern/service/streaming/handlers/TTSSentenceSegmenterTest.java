@@ -0,0 +1,82 @@
+package com.github.jwj.brilliantavern.service.streaming.handlers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TTSSentenceSegmenterTest {
+
+    @Test
+    void emitsSentenceOnlyWhenNextSentenceStarts() {
+        TTSSentenceSegmenter segmenter = new TTSSentenceSegmenter("zh", 2, 10);
+        List<String> segments = new ArrayList<>();
+
+        segmenter.append("你好。", segments::add);
+        assertEquals(List.of(), segments);
+
+        segmenter.append("今天", segments::add);
+        assertEquals(List.of("你好。"), segments);
+        assertEquals("今天", segmenter.drain());
+    }
+
+    @Test
+    void segmentsIndependentlyOfChunkBoundaries() {
+        String text = "你好。今天天气不错，我们出去走走吧！好呀";
+        List<String> whole = segment("zh", text);
+
+        for (int split = 1; split < text.length(); split++) {
+            assertEquals(whole, segment("zh", text.substring(0, split), text.substring(split)), "split at " + split);
+        }
+        assertEquals(List.of("你好。", "今天天气不错，我们出去走走吧！", "好呀"), whole);
+    }
+
+    @Test
+    void keepsTrailingPunctuationAndClosingQuotesInSentence() {
+        assertEquals(List.of("真的吗？！", "他说“走吧。”", "然后"), segment("zh", "真的吗？！他说“走吧。”然后"));
+    }
+
+    @Test
+    void cutsAtClauseOnlyAfterClauseMinLength() {
+        assertEquals(List.of("好的，那我们走吧。", "再见"), segment("zh", "好的，那我们走吧。再见"));
+        assertEquals(List.of("这是一个比较长的分句，", "后面还有"), segment("zh", "这是一个比较长的分句，后面还有"));
+    }
+
+    @Test
+    void englishPeriodNeedsFollowingWhitespace() {
+        assertEquals(List.of("Pi is 3.14 today.", "Next one"), segment("en", "Pi is 3.14 today. Next one"));
+    }
+
+    @Test
+    void ignoresPunctuationBeforeAnyWord() {
+        assertEquals(List.of("……你好。", "嗯"), segment("zh", "……你好。嗯"));
+    }
+
+    @Test
+    void drainReturnsEmptyStringWhenNothingLeft() {
+        TTSSentenceSegmenter segmenter = new TTSSentenceSegmenter("ja", 2, 10);
+        List<String> segments = new ArrayList<>();
+        segmenter.append("  ", segments::add);
+
+        assertEquals(List.of(), segments);
+        assertEquals("", segmenter.drain());
+    }
+
+    /**
+     * 依次输入分片，返回全部片段（含流结束时剩余的最后一段）
+     */
+    private static List<String> segment(String language, String... chunks) {
+        TTSSentenceSegmenter segmenter = new TTSSentenceSegmenter(language, 2, 10);
+        List<String> segments = new ArrayList<>();
+        for (String chunk : chunks) {
+            segmenter.append(chunk, segments::add);
+        }
+        String last = segmenter.drain();
+        if (!last.isEmpty()) {
+            segments.add(last);
+        }
+        return segments;
+    }
+}
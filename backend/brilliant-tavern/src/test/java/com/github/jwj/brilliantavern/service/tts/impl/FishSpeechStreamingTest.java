@@ -0,0 +1,201 @@
+package com.github.jwj.brilliantavern.service.tts.impl;
+
+import com.github.jwj.brilliantavern.config.TTSConfig;
+import com.github.jwj.brilliantavern.service.tts.TTSStreamChunk;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.PooledDataBuffer;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.reactive.function.client.ExchangeFilterFunction;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 用本地HTTP服务模拟FishSpeech流式接口：WAV头和PCM数据按奇数大小的小片逐个发送
+ */
+class FishSpeechStreamingTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    // 奇数大小的分片，WAV头被拆在前三片中
+    private static final int[] PIECE_SIZES = {7, 13, 31, 1001, 333, 2047, 5, 4099, 777};
+
+    private final List<DataBuffer> receivedBuffers = new CopyOnWriteArrayList<>();
+    private final AtomicReference<String> requestBody = new AtomicReference<>();
+    private byte[] pcm;
+    private List<byte[]> pieces;
+    private int status;
+    private DisposableServer server;
+    private FishSpeechTTSService service;
+
+    @BeforeEach
+    void setUp() {
+        pcm = pcm(20_000);
+        pieces = split(concat(streamingWavHeader(), pcm), PIECE_SIZES);
+        status = 200;
+        server = HttpServer.create()
+                .port(0)
+                .route(routes -> routes.post("/v1/tts", (request, response) -> request.receive().aggregate().asString()
+                        .flatMap(body -> {
+                            requestBody.set(body);
+                            return response.status(status)
+                                    .header("Content-Type", "application/octet-stream")
+                                    .send(Flux.fromIterable(pieces)
+                                            .delayElements(Duration.ofMillis(5))
+                                            .map(Unpooled::wrappedBuffer), buffer -> true)
+                                    .then();
+                        })))
+                .bindNow();
+
+        // 记录WebClient交给服务的每个DataBuffer，用于检查是否都已释放
+        ExchangeFilterFunction tracking = (request, next) -> next.exchange(request)
+                .map(response -> response.mutate().body(body -> body.doOnNext(receivedBuffers::add)).build());
+        service = new FishSpeechTTSService(WebClient.builder().filter(tracking).build());
+        ReflectionTestUtils.setField(service, "baseUrl", "http://localhost:" + server.port());
+        ReflectionTestUtils.setField(service, "timeout", Duration.ofSeconds(10));
+        ReflectionTestUtils.setField(service, "audioFormat", "mp3");
+        ReflectionTestUtils.setField(service, "chunkLength", 200);
+        ReflectionTestUtils.setField(service, "normalize", true);
+        ReflectionTestUtils.setField(service, "streaming", true);
+        ReflectionTestUtils.setField(service, "streamMinChunkMillis", 50);
+        ReflectionTestUtils.setField(service, "sampleRate", 44100);
+        ReflectionTestUtils.setField(service, "channels", 2);
+        ReflectionTestUtils.setField(service, "bitsPerSample", 16);
+        ReflectionTestUtils.setField(service, "maxNewTokens", 1024);
+        ReflectionTestUtils.setField(service, "topP", 0.8);
+        ReflectionTestUtils.setField(service, "repetitionPenalty", 1.1);
+        ReflectionTestUtils.setField(service, "temperature", 0.8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.disposeNow();
+    }
+
+    @Test
+    void streamsOrderedStandaloneWavChunks() {
+        List<TTSStreamChunk> chunks = service.streamTextToSpeech("你好", "voice-1").collectList().block(Duration.ofSeconds(10));
+
+        assertTrue(requestBody.get().contains("\"streaming\":true"));
+        assertTrue(requestBody.get().contains("\"format\":\"wav\""));
+        assertTrue(chunks.size() > 2);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        for (int i = 0; i < chunks.size(); i++) {
+            TTSStreamChunk chunk = chunks.get(i);
+            assertEquals(i, chunk.getChunkIndex());
+            assertEquals(i == chunks.size() - 1, chunk.isLast());
+            assertEquals(TTSConfig.AudioFormat.WAV, chunk.getAudioFormat());
+            // 采样参数取自流中的WAV头，而不是配置的默认值
+            assertEquals(SAMPLE_RATE, chunk.getSampleRate());
+            assertEquals(1, chunk.getChannels());
+            byte[] audio = chunk.getAudioData();
+            if (audio.length == 0) {
+                continue;
+            }
+            assertEquals("RIFF", new String(audio, 0, 4, StandardCharsets.US_ASCII));
+            int dataLength = ByteBuffer.wrap(audio).order(ByteOrder.LITTLE_ENDIAN).getInt(40);
+            assertEquals(audio.length - WavStreamFramer.WAV_HEADER_SIZE, dataLength);
+            payload.write(audio, WavStreamFramer.WAV_HEADER_SIZE, dataLength);
+        }
+        assertArrayEquals(pcm, payload.toByteArray());
+        assertAllReleased();
+    }
+
+    @Test
+    void cancellingMidStreamReleasesBuffers() throws InterruptedException {
+        TTSStreamChunk first = service.streamTextToSpeech("你好", "voice-1").blockFirst(Duration.ofSeconds(10));
+
+        assertEquals(0, first.getChunkIndex());
+        assertFalse(first.isLast());
+        // 取消在事件循环线程上完成，稍等片刻再检查
+        for (int i = 0; i < 40 && !allReleased(); i++) {
+            Thread.sleep(50);
+        }
+        assertAllReleased();
+    }
+
+    @Test
+    void errorStatusFailsStream() {
+        status = 500;
+
+        assertThrows(RuntimeException.class,
+                () -> service.streamTextToSpeech("你好", "voice-1").collectList().block(Duration.ofSeconds(10)));
+    }
+
+    private void assertAllReleased() {
+        assertFalse(receivedBuffers.isEmpty());
+        assertTrue(allReleased(), "存在未释放的DataBuffer");
+    }
+
+    private boolean allReleased() {
+        for (DataBuffer buffer : receivedBuffers) {
+            if (buffer instanceof PooledDataBuffer pooled && pooled.isAllocated()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * FishSpeech流式输出的WAV头，RIFF和data长度未知
+     */
+    private static byte[] streamingWavHeader() {
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(ascii("RIFF")).putInt(-1).put(ascii("WAVE"));
+        header.put(ascii("fmt ")).putInt(16).putShort((short) 1).putShort((short) 1)
+                .putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16);
+        header.put(ascii("data")).putInt(-1);
+        return header.array();
+    }
+
+    private static List<byte[]> split(byte[] data, int[] sizes) {
+        List<byte[]> result = new ArrayList<>();
+        int offset = 0;
+        for (int i = 0; offset < data.length; i++) {
+            int size = sizes[i % sizes.length];
+            result.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + size)));
+            offset += size;
+        }
+        return result;
+    }
+
+    private static byte[] pcm(int length) {
+        byte[] pcm = new byte[length];
+        for (int i = 0; i < length; i++) {
+            pcm[i] = (byte) (i * 31 + 7);
+        }
+        return pcm;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
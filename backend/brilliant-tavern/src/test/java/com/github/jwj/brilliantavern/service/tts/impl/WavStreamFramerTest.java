@@ -0,0 +1,176 @@
+package com.github.jwj.brilliantavern.service.tts.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WavStreamFramerTest {
+
+    @Test
+    void parsesHeaderSplitAcrossFeeds() {
+        byte[] pcm = pcm(4000);
+        byte[] stream = concat(wavHeader(16000, 1, 16, true), pcm);
+        WavStreamFramer framer = new WavStreamFramer(44100, 2, 16, 0);
+
+        List<byte[]> chunks = new ArrayList<>();
+        for (byte b : stream) {
+            chunks.addAll(framer.feed(new byte[]{b}));
+        }
+        chunks.add(framer.finish());
+
+        assertEquals(16000, framer.getSampleRate());
+        assertEquals(1, framer.getChannels());
+        assertEquals(16, framer.getBitsPerSample());
+        assertArrayEquals(pcm, payloads(chunks, 16000, 1, 16));
+    }
+
+    @Test
+    void coalescesUntilMinimumDuration() {
+        // 16kHz单声道16位，200ms为6400字节
+        WavStreamFramer framer = new WavStreamFramer(16000, 1, 16, 200);
+        assertTrue(framer.feed(wavHeader(16000, 1, 16, false)).isEmpty());
+        assertTrue(framer.feed(pcm(3000)).isEmpty());
+        assertTrue(framer.feed(pcm(3000)).isEmpty());
+
+        List<byte[]> chunks = framer.feed(pcm(1001));
+        assertEquals(1, chunks.size());
+        // 只输出完整的采样帧，奇数字节留到下一片
+        assertEquals(WavStreamFramer.WAV_HEADER_SIZE + 7000, chunks.get(0).length);
+    }
+
+    @Test
+    void lastChunkDropsIncompleteFrame() {
+        WavStreamFramer framer = new WavStreamFramer(16000, 1, 16, 200);
+        framer.feed(wavHeader(16000, 1, 16, false));
+        framer.feed(pcm(7));
+
+        byte[] last = framer.finish();
+        assertEquals(WavStreamFramer.WAV_HEADER_SIZE + 6, last.length);
+        assertEquals(6, dataLength(last));
+    }
+
+    @Test
+    void lastChunkIsEmptyWhenNothingPending() {
+        WavStreamFramer framer = new WavStreamFramer(16000, 1, 16, 0);
+        byte[] pcm = pcm(640);
+        List<byte[]> chunks = framer.feed(concat(wavHeader(16000, 1, 16, false), pcm));
+
+        assertEquals(1, chunks.size());
+        assertEquals(0, framer.finish().length);
+    }
+
+    @Test
+    void everyChunkCarriesStandaloneHeader() {
+        WavStreamFramer framer = new WavStreamFramer(22050, 2, 16, 50);
+        List<byte[]> chunks = new ArrayList<>(framer.feed(wavHeader(22050, 2, 16, true)));
+        byte[] pcm = pcm(20000);
+        for (int offset = 0; offset < pcm.length; offset += 1234) {
+            chunks.addAll(framer.feed(Arrays.copyOfRange(pcm, offset, Math.min(pcm.length, offset + 1234))));
+        }
+        chunks.add(framer.finish());
+
+        assertTrue(chunks.size() > 2);
+        assertArrayEquals(pcm, payloads(chunks, 22050, 2, 16));
+    }
+
+    @Test
+    void treatsStreamWithoutRiffAsRawPcm() {
+        WavStreamFramer framer = new WavStreamFramer(24000, 1, 16, 0);
+        byte[] pcm = pcm(480);
+
+        List<byte[]> chunks = new ArrayList<>(framer.feed(pcm));
+        chunks.add(framer.finish());
+
+        assertEquals(24000, framer.getSampleRate());
+        assertArrayEquals(pcm, payloads(chunks, 24000, 1, 16));
+    }
+
+    @Test
+    void rejectsHeaderWithoutDataChunk() {
+        WavStreamFramer framer = new WavStreamFramer(16000, 1, 16, 0);
+        ByteBuffer header = ByteBuffer.allocate(20).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(ascii("RIFF")).putInt(0).put(ascii("WAVE")).put(ascii("junk")).putInt(100_000);
+        framer.feed(header.array());
+
+        assertThrows(IllegalStateException.class, () -> framer.feed(new byte[5000]));
+    }
+
+    /**
+     * 校验每个非空分片的WAV头并拼接其中的PCM数据
+     */
+    private static byte[] payloads(List<byte[]> chunks, int sampleRate, int channels, int bitsPerSample) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int blockAlign = channels * bitsPerSample / 8;
+        for (byte[] chunk : chunks) {
+            if (chunk.length == 0) {
+                continue;
+            }
+            ByteBuffer header = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals("RIFF", new String(chunk, 0, 4, StandardCharsets.US_ASCII));
+            assertEquals(chunk.length - 8, header.getInt(4));
+            assertEquals("WAVE", new String(chunk, 8, 4, StandardCharsets.US_ASCII));
+            assertEquals(channels, (int) header.getShort(22));
+            assertEquals(sampleRate, header.getInt(24));
+            assertEquals(sampleRate * blockAlign, header.getInt(28));
+            assertEquals(blockAlign, (int) header.getShort(32));
+            assertEquals(bitsPerSample, (int) header.getShort(34));
+            assertEquals("data", new String(chunk, 36, 4, StandardCharsets.US_ASCII));
+            int dataLength = dataLength(chunk);
+            assertEquals(chunk.length - WavStreamFramer.WAV_HEADER_SIZE, dataLength);
+            assertEquals(0, dataLength % blockAlign);
+            out.write(chunk, WavStreamFramer.WAV_HEADER_SIZE, dataLength);
+        }
+        return out.toByteArray();
+    }
+
+    private static int dataLength(byte[] chunk) {
+        return ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN).getInt(40);
+    }
+
+    /**
+     * 流式WAV头，data块长度未知；withList为true时在fmt和data之间插入LIST块
+     */
+    private static byte[] wavHeader(int sampleRate, int channels, int bitsPerSample, boolean withList) {
+        int blockAlign = channels * bitsPerSample / 8;
+        ByteBuffer header = ByteBuffer.allocate(withList ? 58 : 44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(ascii("RIFF")).putInt(-1).put(ascii("WAVE"));
+        header.put(ascii("fmt ")).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * blockAlign).putShort((short) blockAlign)
+                .putShort((short) bitsPerSample);
+        if (withList) {
+            // 奇数长度的块后有一个填充字节
+            header.put(ascii("LIST")).putInt(5).put(ascii("INFOx")).put((byte) 0);
+        }
+        header.put(ascii("data")).putInt(-1);
+        return header.array();
+    }
+
+    private static byte[] pcm(int length) {
+        byte[] pcm = new byte[length];
+        for (int i = 0; i < length; i++) {
+            pcm[i] = (byte) (i * 31 + 7);
+        }
+        return pcm;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,240 @@
+-- =====================================
+-- 角色记忆向量检索基准测试
+-- 在独立的表 bench_character_memories 中生成100万条记忆（2000个用户-角色组合，每组500条），
+-- 对比旧查询（向量以字符串传入并CAST三次）与新查询（real[]参数绑定一次、距离计算一次、按用户-角色索引取候选集后精确排序），
+-- 并以精确扫描为基准检查各查询的召回率：单个组合只占全表0.05%，由HNSW索引排序再过滤时几乎取不到结果。
+--
+-- 用法（本地PostgreSQL，需安装pgvector）：
+--   psql -d brilliant_tavern -f scripts/benchmark_memory_search.sql
+-- 生成数据和建索引耗时较长（约6GB数据），重复执行时可注释掉“生成数据”一节
+-- =====================================
+
+\timing on
+CREATE EXTENSION IF NOT EXISTS vector;
+
+-- =====================================
+-- 1. 生成数据
+-- =====================================
+DROP TABLE IF EXISTS bench_character_memories;
+CREATE TABLE bench_character_memories (
+    id BIGSERIAL PRIMARY KEY,
+    user_id UUID NOT NULL,
+    character_card_id UUID NOT NULL,
+    memory_content TEXT NOT NULL,
+    embedding vector(1536) NOT NULL,
+    created_at TIMESTAMPTZ NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMPTZ NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TEMP TABLE bench_pairs AS
+SELECT pair_no,
+       md5('user-' || (pair_no / 10))::uuid AS user_id,
+       md5('card-' || pair_no)::uuid AS character_card_id
+FROM generate_series(0, 1999) AS pair_no;
+
+INSERT INTO bench_character_memories (user_id, character_card_id, memory_content, embedding)
+SELECT p.user_id,
+       p.character_card_id,
+       'benchmark memory ' || p.pair_no || '-' || n,
+       -- 子查询引用外层的n，每行重新生成随机向量
+       (SELECT array_agg(random() - 0.5)::real[] FROM generate_series(1, 1536) WHERE n > 0)::vector
+FROM bench_pairs p
+CROSS JOIN generate_series(1, 500) AS n;
+
+-- 与 init_database.sql 中 character_memories 的索引一致
+CREATE INDEX bench_character_memories_user_card ON bench_character_memories(user_id, character_card_id);
+CREATE INDEX bench_character_memories_embedding ON bench_character_memories
+    USING hnsw (embedding vector_cosine_ops) WITH (m = 16, ef_construction = 64);
+ANALYZE bench_character_memories;
+
+-- =====================================
+-- 2. 查询语句
+-- =====================================
+DEALLOCATE ALL;
+
+-- 旧查询：向量字符串在投影、WHERE、ORDER BY中各CAST一次，距离计算三次
+PREPARE old_search(uuid, uuid, text, float8, int) AS
+SELECT m.*,
+       (1 - (m.embedding <=> CAST($3 AS vector))) AS similarity_score
+FROM bench_character_memories m
+WHERE m.user_id = $1
+  AND m.character_card_id = $2
+  AND (1 - (m.embedding <=> CAST($3 AS vector))) >= $4
+ORDER BY m.embedding <=> CAST($3 AS vector) ASC
+LIMIT $5;
+
+-- 新查询：与 CharacterMemoryRepository.findSimilarMemories 相同
+PREPARE new_search(uuid, uuid, real[], float8, int) AS
+WITH candidates AS MATERIALIZED (
+    SELECT m.id AS "id",
+           m.user_id AS "userId",
+           m.character_card_id AS "characterCardId",
+           m.memory_content AS "memoryContent",
+           m.created_at AS "createdAt",
+           m.updated_at AS "updatedAt",
+           m.embedding <=> CAST($3 AS vector) AS "distance"
+    FROM bench_character_memories m
+    WHERE m.user_id = $1
+      AND m.character_card_id = $2
+)
+SELECT c.*, 1 - c."distance" AS "similarity"
+FROM candidates c
+WHERE c."distance" <= 1 - $4
+ORDER BY c."distance"
+LIMIT $5;
+
+-- 新查询（仅用户范围）：与 findSimilarMemoriesByUser 相同
+PREPARE new_search_by_user(uuid, real[], float8, int) AS
+WITH candidates AS MATERIALIZED (
+    SELECT m.id AS "id",
+           m.memory_content AS "memoryContent",
+           m.embedding <=> CAST($2 AS vector) AS "distance"
+    FROM bench_character_memories m
+    WHERE m.user_id = $1
+)
+SELECT c.*, 1 - c."distance" AS "similarity"
+FROM candidates c
+WHERE c."distance" <= 1 - $3
+ORDER BY c."distance"
+LIMIT $4;
+
+-- =====================================
+-- 3. 执行对比
+-- =====================================
+SELECT user_id AS bench_user,
+       character_card_id AS bench_card,
+       embedding::text AS bench_vector_text,
+       embedding::real[] AS bench_vector_array
+FROM bench_character_memories
+WHERE id = 12345
+\gset
+
+EXPLAIN (ANALYZE, BUFFERS)
+EXECUTE old_search(:'bench_user', :'bench_card', :'bench_vector_text', 0.7, 5);
+
+EXPLAIN (ANALYZE, BUFFERS)
+EXECUTE new_search(:'bench_user', :'bench_card', :'bench_vector_array', 0.7, 5);
+
+EXPLAIN (ANALYZE, BUFFERS)
+EXECUTE new_search_by_user(:'bench_user', :'bench_vector_array', 0.7, 5);
+
+-- 多次执行取稳定耗时（见 \timing 输出）
+EXECUTE old_search(:'bench_user', :'bench_card', :'bench_vector_text', 0.7, 5);
+EXECUTE old_search(:'bench_user', :'bench_card', :'bench_vector_text', 0.7, 5);
+EXECUTE old_search(:'bench_user', :'bench_card', :'bench_vector_text', 0.7, 5);
+EXECUTE new_search(:'bench_user', :'bench_card', :'bench_vector_array', 0.7, 5);
+EXECUTE new_search(:'bench_user', :'bench_card', :'bench_vector_array', 0.7, 5);
+EXECUTE new_search(:'bench_user', :'bench_card', :'bench_vector_array', 0.7, 5);
+
+-- =====================================
+-- 4. 召回率（以精确扫描为基准）
+-- 随机抽取50个组合，每个组合用一个随机查询向量取前5条，不设相似度阈值。
+-- 精确结果按 (distance + 0) 排序，表达式无法使用HNSW索引，只能走用户-角色索引后全量排序。
+-- 新查询应为1.000；旧查询的 ORDER BY 可由HNSW索引提供，计划选中该索引时只在 ef_search（默认40）个近邻中过滤，召回率明显下降
+-- =====================================
+CREATE TEMP TABLE bench_queries AS
+SELECT p.user_id,
+       p.character_card_id,
+       q.vector_array,
+       q.vector_array::vector::text AS vector_text
+FROM (
+    SELECT pairs.*
+    FROM (SELECT DISTINCT user_id, character_card_id FROM bench_character_memories) pairs
+    ORDER BY random()
+    LIMIT 50
+) p
+CROSS JOIN LATERAL (
+    -- 引用外层的组合，每个组合重新生成随机向量
+    SELECT array_agg(random() - 0.5)::real[] AS vector_array
+    FROM generate_series(1, 1536)
+    WHERE p.user_id IS NOT NULL
+) q;
+
+WITH exact AS (
+    SELECT b.user_id, b.character_card_id, e.id
+    FROM bench_queries b
+    CROSS JOIN LATERAL (
+        SELECT m.id
+        FROM bench_character_memories m
+        WHERE m.user_id = b.user_id
+          AND m.character_card_id = b.character_card_id
+        ORDER BY (m.embedding <=> CAST(b.vector_array AS vector)) + 0
+        LIMIT 5
+    ) e
+),
+old_result AS (
+    SELECT b.user_id, b.character_card_id, r.id
+    FROM bench_queries b
+    CROSS JOIN LATERAL (
+        SELECT m.id
+        FROM bench_character_memories m
+        WHERE m.user_id = b.user_id
+          AND m.character_card_id = b.character_card_id
+          AND (1 - (m.embedding <=> CAST(b.vector_text AS vector))) >= -1
+        ORDER BY m.embedding <=> CAST(b.vector_text AS vector) ASC
+        LIMIT 5
+    ) r
+),
+new_result AS (
+    SELECT b.user_id, b.character_card_id, r.id
+    FROM bench_queries b
+    CROSS JOIN LATERAL (
+        WITH candidates AS MATERIALIZED (
+            SELECT m.id,
+                   m.embedding <=> CAST(b.vector_array AS vector) AS distance
+            FROM bench_character_memories m
+            WHERE m.user_id = b.user_id
+              AND m.character_card_id = b.character_card_id
+        )
+        SELECT c.id
+        FROM candidates c
+        WHERE c.distance <= 2
+        ORDER BY c.distance
+        LIMIT 5
+    ) r
+)
+SELECT 'old_search' AS query,
+       round(count(o.id)::numeric / (SELECT count(*) FROM exact), 3) AS recall_at_5
+FROM exact e
+LEFT JOIN old_result o USING (user_id, character_card_id, id)
+UNION ALL
+SELECT 'new_search',
+       round(count(n.id)::numeric / (SELECT count(*) FROM exact), 3)
+FROM exact e
+LEFT JOIN new_result n USING (user_id, character_card_id, id);
+
+-- 仅用户范围的召回率，精确结果同样绕开HNSW索引
+WITH exact AS (
+    SELECT b.user_id, e.id
+    FROM bench_queries b
+    CROSS JOIN LATERAL (
+        SELECT m.id
+        FROM bench_character_memories m
+        WHERE m.user_id = b.user_id
+        ORDER BY (m.embedding <=> CAST(b.vector_array AS vector)) + 0
+        LIMIT 5
+    ) e
+),
+new_result AS (
+    SELECT b.user_id, r.id
+    FROM bench_queries b
+    CROSS JOIN LATERAL (
+        WITH candidates AS MATERIALIZED (
+            SELECT m.id,
+                   m.embedding <=> CAST(b.vector_array AS vector) AS distance
+            FROM bench_character_memories m
+            WHERE m.user_id = b.user_id
+        )
+        SELECT c.id
+        FROM candidates c
+        WHERE c.distance <= 2
+        ORDER BY c.distance
+        LIMIT 5
+    ) r
+)
+SELECT 'new_search_by_user' AS query,
+       round(count(n.id)::numeric / (SELECT count(*) FROM exact), 3) AS recall_at_5
+FROM exact e
+LEFT JOIN new_result n USING (user_id, id);
+
+-- 清理：DROP TABLE bench_character_memories;
@@ -304,6 +304,7 @@ CREATE TABLE IF NOT EXISTS character_memories (
     character_card_id UUID NOT NULL,
     memory_content TEXT NOT NULL,
     embedding vector(1536) NOT NULL, -- 限制为1536维以支持HNSW索引(最大2000维)
+    write_id VARCHAR(64), -- 异步写入的幂等键，同步写入的记忆为空
     created_at TIMESTAMPTZ NOT NULL DEFAULT CURRENT_TIMESTAMP,
     updated_at TIMESTAMPTZ NOT NULL DEFAULT CURRENT_TIMESTAMP,
     FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE,
@@ -316,6 +317,10 @@ CREATE INDEX IF NOT EXISTS idx_character_memories_character_card_id ON character
 CREATE INDEX IF NOT EXISTS idx_character_memories_user_card ON character_memories(user_id, character_card_id);
 CREATE INDEX IF NOT EXISTS idx_character_memories_created_at ON character_memories(created_at DESC);
 
+-- 已有数据库补充 write_id 列；唯一索引保证重试的写入不会重复插入
+ALTER TABLE character_memories ADD COLUMN IF NOT EXISTS write_id VARCHAR(64);
+CREATE UNIQUE INDEX IF NOT EXISTS idx_character_memories_write_id ON character_memories(write_id);
+
 -- 向量相似度搜索索引 (使用 HNSW 算法，适合高维向量搜索)
 CREATE INDEX IF NOT EXISTS idx_character_memories_embedding ON character_memories 
     USING hnsw (embedding vector_cosine_ops) WITH (m = 16, ef_construction = 64);
@@ -324,4 +329,28 @@ CREATE INDEX IF NOT EXISTS idx_character_memories_embedding ON character_memorie
 CREATE TRIGGER update_character_memories_updated_at BEFORE UPDATE ON character_memories
     FOR EACH ROW EXECUTE FUNCTION update_updated_at_column();
 
+-- =====================================
+-- 9. 角色记忆归档表 (character_memory_archive)
+-- 记忆整理任务及异步写入合并时移出检索表的记忆：DUPLICATE 为被 superseded_by 取代的重复记忆，STALE 为超出上限的长期未更新记忆
+-- =====================================
+CREATE TABLE IF NOT EXISTS character_memory_archive (
+    id BIGINT PRIMARY KEY, -- 沿用 character_memories 中的ID
+    user_id UUID NOT NULL,
+    character_card_id UUID NOT NULL,
+    memory_content TEXT NOT NULL,
+    embedding vector(1536) NOT NULL,
+    write_id VARCHAR(64),
+    created_at TIMESTAMPTZ NOT NULL,
+    updated_at TIMESTAMPTZ NOT NULL,
+    archived_at TIMESTAMPTZ NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    archive_reason VARCHAR(20) NOT NULL CHECK (archive_reason IN ('DUPLICATE', 'STALE')),
+    superseded_by BIGINT,
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE,
+    FOREIGN KEY (character_card_id) REFERENCES character_cards(id) ON DELETE CASCADE
+);
+
+CREATE INDEX IF NOT EXISTS idx_character_memory_archive_user_card ON character_memory_archive(user_id, character_card_id);
+-- 记忆整理按更新时间查找变化的组合
+CREATE INDEX IF NOT EXISTS idx_character_memories_updated_at ON character_memories(updated_at);
+
 